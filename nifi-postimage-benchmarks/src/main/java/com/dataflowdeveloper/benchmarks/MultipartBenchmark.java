@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dataflowdeveloper.processors.BufferPool;
+import com.dataflowdeveloper.processors.MultipartBody;
+
+/**
+ * Multipart encoding of one image, from the content stream into the pooled buffer the IO reactor
+ * writes to the socket, for a thumbnail, a typical camera JPEG and a large photo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartBenchmark {
+
+	@Param({ "16384", "262144", "4194304" })
+	public int imageSize;
+
+	private byte[] image;
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup() {
+		image = new byte[imageSize];
+		new Random(42).nextBytes(image);
+		buffer = ByteBuffer.allocate(BufferPool.DEFAULT_BUFFER_SIZE);
+	}
+
+	@Benchmark
+	public long encode() throws IOException {
+		MultipartBody body = new MultipartBody()
+				.addPart("data", "camera.jpg", "image/jpeg", new ByteArrayInputStream(image), image.length)
+				.finish();
+		long written = 0;
+		int read;
+		while ((read = body.read(buffer)) >= 0) {
+			written += read;
+			((Buffer) buffer).clear();
+		}
+		return written;
+	}
+}
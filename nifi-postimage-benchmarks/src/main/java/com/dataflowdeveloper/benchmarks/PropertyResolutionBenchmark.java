@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dataflowdeveloper.processors.PostImageProcessor;
+import com.dataflowdeveloper.processors.PostRequest;
+import com.dataflowdeveloper.processors.PostRequestTemplate;
+
+/**
+ * Per flowfile resolution of the request properties, evaluating every property each time as
+ * onTrigger once did against the template resolved at schedule time.
+ *
+ * fixed has no expression language, expression takes the URL from a flowfile attribute through
+ * expression language, override sets the url attribute on the flowfile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropertyResolutionBenchmark {
+
+	private static final PropertyDescriptor[] REQUEST_PROPERTIES = {
+			PostImageProcessor.URL_NAME, PostImageProcessor.FIELD_NAME, PostImageProcessor.IMAGE_NAME,
+			PostImageProcessor.IMAGE_TYPE, PostImageProcessor.HEADER_NAME, PostImageProcessor.HEADER_VALUE,
+			PostImageProcessor.BASIC_USERNAME, PostImageProcessor.BASIC_PASSWORD };
+
+	@Param({ "fixed", "expression", "override" })
+	public String mode;
+
+	private ProcessContext context;
+	private PostRequestTemplate template;
+	private MockFlowFile flowFile;
+
+	@Setup
+	public void setup() {
+		TestRunner runner = TestRunners.newTestRunner(PostImageProcessor.class);
+		runner.setProperty(PostImageProcessor.URL_NAME,
+				"expression".equals(mode) ? "${model.url}" : "http://localhost:9999/squeezenet/predict");
+		runner.setProperty(PostImageProcessor.FIELD_NAME, "data");
+		runner.setProperty(PostImageProcessor.IMAGE_NAME, "camera.jpg");
+		runner.setProperty(PostImageProcessor.IMAGE_TYPE, "image/jpeg");
+		runner.setProperty(PostImageProcessor.HEADER_NAME, "Accept");
+		runner.setProperty(PostImageProcessor.HEADER_VALUE, "application/json");
+		context = runner.getProcessContext();
+		template = new PostRequestTemplate(context);
+
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("filename", "camera.jpg");
+		attributes.put("model.url", "http://localhost:9999/squeezenet/predict");
+		if ("override".equals(mode)) {
+			attributes.put(PostImageProcessor.URL_NAME.getName(), "http://localhost:9998/squeezenet/predict");
+		}
+		flowFile = new MockFlowFile(1);
+		flowFile.putAttributes(attributes);
+	}
+
+	@Benchmark
+	public void everyProperty(Blackhole blackhole) {
+		for (PropertyDescriptor descriptor : REQUEST_PROPERTIES) {
+			String value = flowFile.getAttribute(descriptor.getName());
+			if (value == null) {
+				value = context.getProperty(descriptor).evaluateAttributeExpressions(flowFile).getValue();
+			}
+			blackhole.consume(value);
+		}
+	}
+
+	@Benchmark
+	public PostRequest template() {
+		return template.resolve(flowFile);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.benchmarks;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.protocol.BasicHttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dataflowdeveloper.processors.HTTPPostResults;
+import com.dataflowdeveloper.processors.JsonResultExtractor;
+import com.dataflowdeveloper.processors.ResultResponseConsumer;
+
+/**
+ * What happens to a model server response after the post: collecting it from the decoder into
+ * {@link HTTPPostResults}, finding post.results in it, and mapping the results to attributes.
+ * Responses hold the top prediction, the top 5, or scores for all 1000 ImageNet classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseBenchmark {
+
+	@Param({ "1", "5", "1000" })
+	public int predictions;
+
+	private byte[] response;
+	private HTTPPostResults results;
+	private JsonResultExtractor lastElement;
+	private JsonResultExtractor path;
+
+	/** hands the response to the consumer in socket sized reads */
+	private static final class BufferDecoder implements ContentDecoder {
+		private final ByteBuffer content;
+
+		BufferDecoder(byte[] content) {
+			this.content = ByteBuffer.wrap(content);
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!content.hasRemaining()) {
+				return -1;
+			}
+			int length = Math.min(Math.min(dst.remaining(), content.remaining()), 8192);
+			ByteBuffer slice = content.duplicate();
+			((Buffer) slice).limit(slice.position() + length);
+			dst.put(slice);
+			((Buffer) content).position(content.position() + length);
+			return length;
+		}
+
+		@Override
+		public boolean isCompleted() {
+			return !content.hasRemaining();
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder json = new StringBuilder("{\"prediction\":[[");
+		for (int i = 0; i < predictions; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"class\":\"n0").append(2510455 + i).append(" class ").append(i)
+					.append("\",\"probability\":").append(1.0 / (i + 2)).append('}');
+		}
+		json.append("]]}");
+		response = json.toString().getBytes(StandardCharsets.UTF_8);
+		results = consume();
+		lastElement = new JsonResultExtractor(null);
+		path = new JsonResultExtractor("$.prediction[0][0].class");
+	}
+
+	@Benchmark
+	public HTTPPostResults consume() throws IOException {
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContentLength(response.length);
+		entity.setContentType("application/json");
+		HttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		httpResponse.setHeader("Content-Type", "application/json");
+		httpResponse.setEntity(entity);
+
+		ResultResponseConsumer consumer = new ResultResponseConsumer();
+		try {
+			consumer.responseReceived(httpResponse);
+			BufferDecoder decoder = new BufferDecoder(response);
+			while (!decoder.isCompleted()) {
+				consumer.consumeContent(decoder, null);
+			}
+			consumer.responseCompleted(new BasicHttpContext());
+			return consumer.getResult();
+		} catch (HttpException e) {
+			throw new IOException(e);
+		} finally {
+			consumer.close();
+		}
+	}
+
+	@Benchmark
+	public String extractLastElement() {
+		return lastElement.extract(response);
+	}
+
+	@Benchmark
+	public String extractPath() {
+		return path.extract(response);
+	}
+
+	@Benchmark
+	public Map<String, String> attributes() {
+		HTTPPostResults copy = new HTTPPostResults(results);
+		copy.setJsonResultBody(lastElement.extract(copy.getBody()));
+		Map<String, String> attributes = new HashMap<String, String>();
+		copy.putAttributes(attributes);
+		return attributes;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed size buffers shared by the uploads of one processor, so the heap used by a request
+ * does not grow with the size of the image.
+ */
+public class BufferPool {
+
+	/** default buffer size, 64k */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final BlockingQueue<ByteBuffer> buffers;
+	private final int bufferSize;
+
+	/**
+	 *
+	 * @param maxPooled
+	 *            buffers kept for reuse, more are allocated when needed but not kept
+	 * @param bufferSize
+	 *            size of each buffer
+	 */
+	public BufferPool(int maxPooled, int bufferSize) {
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return a cleared buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(bufferSize);
+		}
+		// through Buffer, ByteBuffer's own clear() and flip() only exist from Java 9 and built on a newer
+		// JDK the call would fail on the Java 8 NiFi runs on
+		((Buffer) buffer).clear();
+		return buffer;
+	}
+
+	/**
+	 * @param buffer
+	 *            buffer from {@link #acquire()}, no longer used by the caller
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null) {
+			buffers.offer(buffer);
+		}
+	}
+}
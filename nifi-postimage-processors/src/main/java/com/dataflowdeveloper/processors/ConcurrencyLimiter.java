@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Additive increase, multiplicative decrease limit on the posts in flight to one endpoint.
+ * The limit grows by about one per round of successful posts while it is being used, and is cut
+ * on a failure, a 429, or when recent latency climbs well above the long run average, which is how
+ * an overloaded model server shows up before it starts failing.  Averages rather than the fastest
+ * post are compared, so a mix of small and large images that is always part slow does not read as
+ * overload.
+ */
+public class ConcurrencyLimiter {
+
+	/** share of the limit kept on a drop */
+	private static final double BACKOFF_RATIO = 0.9;
+
+	/** recent latency above this multiple of the baseline counts as a drop */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/** weight of each post in the recent latency, about the last 10 posts */
+	private static final double RECENT_WEIGHT = 0.1;
+
+	/** weight of each post in the baseline, about the last 500 posts, so it can follow the server when it changes */
+	private static final double BASELINE_WEIGHT = 0.002;
+
+	private final int maxLimit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private volatile double limit;
+	private double recentLatency;
+	private double baselineLatency;
+
+	/**
+	 *
+	 * @param initialLimit
+	 *            posts allowed in flight to start with
+	 * @param maxLimit
+	 *            most posts ever allowed in flight
+	 */
+	public ConcurrencyLimiter(int initialLimit, int maxLimit) {
+		this.maxLimit = maxLimit;
+		this.limit = Math.min(initialLimit, maxLimit);
+	}
+
+	/**
+	 * @return true if the post may go out, it must then be released
+	 */
+	public boolean tryAcquire() {
+		for (;;) {
+			int current = inFlight.get();
+			if (current >= (int) limit) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return true if a post would be allowed right now
+	 */
+	public boolean hasCapacity() {
+		return inFlight.get() < (int) limit;
+	}
+
+	/**
+	 * @param latencyNanos
+	 *            how long the post took
+	 * @param dropped
+	 *            true for a failure, timeout or 429
+	 */
+	public void release(long latencyNanos, boolean dropped) {
+		int current = inFlight.getAndDecrement();
+		synchronized (this) {
+			if (!dropped) {
+				if (baselineLatency == 0) {
+					recentLatency = latencyNanos;
+					baselineLatency = latencyNanos;
+				} else {
+					recentLatency += (latencyNanos - recentLatency) * RECENT_WEIGHT;
+					baselineLatency += (latencyNanos - baselineLatency) * BASELINE_WEIGHT;
+				}
+				dropped = recentLatency > baselineLatency * LATENCY_TOLERANCE;
+			}
+			if (dropped) {
+				limit = Math.max(1, limit * BACKOFF_RATIO);
+			} else if (current * 2 >= limit) {
+				// only grow while the limit is actually in use
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+	}
+
+	/**
+	 * the post never went out
+	 */
+	public void cancel() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * @return posts currently allowed in flight
+	 */
+	public int getLimit() {
+		return (int) limit;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return posts turned away since the limiter was created
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+}
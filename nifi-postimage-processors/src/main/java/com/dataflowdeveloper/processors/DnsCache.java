@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Addresses of the model server hosts, resolved once and kept for a time to live so a new
+ * connection does not wait on DNS.  Hosts are resolved ahead when the processor is scheduled.
+ * When a lookup fails the addresses from before are kept, a DNS hiccup does not fail posts to
+ * a server that has not moved.
+ */
+public class DnsCache {
+
+	/** addresses of a host and when to look them up again */
+	private static final class Entry {
+		final InetAddress[] addresses;
+		final long expiresAt;
+
+		Entry(InetAddress[] addresses, long expiresAt) {
+			this.addresses = addresses;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final long ttlNanos;
+	private final int maxHosts;
+	private final ConcurrentMap<String, Entry> hosts = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 *
+	 * @param ttlMillis
+	 *            how long addresses are kept before they are looked up again
+	 * @param maxHosts
+	 *            hosts kept before the cache starts again
+	 */
+	public DnsCache(long ttlMillis, int maxHosts) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.maxHosts = maxHosts;
+	}
+
+	/**
+	 * @param host
+	 *            host name or literal address
+	 * @return its addresses, from the cache while they are fresh
+	 * @throws UnknownHostException
+	 *            if the host does not resolve and was never resolved before
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		final long now = System.nanoTime();
+		final Entry cached = hosts.get(host);
+		if (cached != null && now - cached.expiresAt < 0) {
+			return cached.addresses.clone();
+		}
+		final InetAddress[] addresses;
+		try {
+			addresses = lookup(host);
+		} catch (UnknownHostException e) {
+			if (cached == null) {
+				throw e;
+			}
+			// try again after another ttl, the old addresses are all there is
+			hosts.put(host, new Entry(cached.addresses, now + ttlNanos));
+			return cached.addresses.clone();
+		}
+		if (hosts.size() >= maxHosts) {
+			hosts.clear();
+		}
+		hosts.put(host, new Entry(addresses, now + ttlNanos));
+		return addresses.clone();
+	}
+
+	/**
+	 * the lookup behind the cache
+	 */
+	InetAddress[] lookup(String host) throws UnknownHostException {
+		return InetAddress.getAllByName(host);
+	}
+}
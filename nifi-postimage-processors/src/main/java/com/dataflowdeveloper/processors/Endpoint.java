@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One model server replica with the numbers the {@link LoadBalancer} routes on: posts outstanding,
+ * a moving average of latency, and passive health from recent failures.  Also holds the endpoint's
+ * {@link PostMetrics}.
+ */
+public class Endpoint {
+
+	/** weight of the newest latency in the moving average */
+	private static final double EWMA_ALPHA = 0.2;
+
+	private final String url;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicBoolean probing = new AtomicBoolean();
+	private volatile double latencyEwma;
+	private volatile long ejectedUntil;
+	private final ConcurrencyLimiter limiter;
+	private final PostMetrics metrics = new PostMetrics();
+
+	/**
+	 *
+	 * @param url
+	 *            URL of the replica
+	 * @param limiter
+	 *            adaptive limit on posts in flight, null for no limit
+	 */
+	public Endpoint(String url, ConcurrencyLimiter limiter) {
+		this.url = url;
+		this.limiter = limiter;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return the adaptive limit, null when there is none
+	 */
+	public ConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * @return latency, bytes and status counts of the posts to the endpoint
+	 */
+	public PostMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return moving average of post latency in nanoseconds, 0 before the first post
+	 */
+	public double getLatencyEwma() {
+		return latencyEwma;
+	}
+
+	/**
+	 * @return true if the endpoint takes normal traffic
+	 */
+	public boolean isHealthy() {
+		return ejectedUntil == 0;
+	}
+
+	public long getEjectedUntil() {
+		return ejectedUntil;
+	}
+
+	/**
+	 * Claims the single probe post an ejected endpoint gets once its ejection has run out.
+	 *
+	 * @param now
+	 *            current time in milliseconds
+	 * @return true if the caller should send the probe
+	 */
+	boolean tryProbe(long now) {
+		long until = ejectedUntil;
+		return until != 0 && now >= until && probing.compareAndSet(false, true);
+	}
+
+	/**
+	 * the claimed probe could not start, let the next selection claim it
+	 */
+	void abandonProbe() {
+		probing.set(false);
+	}
+
+	boolean hasCapacity() {
+		return limiter == null || limiter.hasCapacity();
+	}
+
+	/**
+	 * @return true if the post may go out, it is then outstanding until completed or cancelled
+	 */
+	boolean tryStart() {
+		if (limiter != null && !limiter.tryAcquire()) {
+			return false;
+		}
+		outstanding.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * the post never went out, nothing is learned about the endpoint
+	 */
+	void cancelled() {
+		outstanding.decrementAndGet();
+		if (limiter != null) {
+			limiter.cancel();
+		}
+		probing.set(false);
+	}
+
+	/**
+	 * Any post that completes counts as passive health, including the probe and posts started
+	 * before an ejection.
+	 *
+	 * @param latencyNanos
+	 *            how long the post took
+	 * @param failed
+	 *            true for a 5xx, a timeout or a connection failure
+	 * @param overloaded
+	 *            true when the server asked for less traffic, like a 429
+	 * @param failuresToEject
+	 *            consecutive failures that eject the endpoint
+	 * @param ejectMillis
+	 *            how long an ejection lasts before the endpoint is probed
+	 */
+	void completed(long latencyNanos, boolean failed, boolean overloaded, int failuresToEject, long ejectMillis) {
+		outstanding.decrementAndGet();
+		if (limiter != null) {
+			limiter.release(latencyNanos, failed || overloaded);
+		}
+		if (failed) {
+			if (consecutiveFailures.incrementAndGet() >= failuresToEject || probing.get()) {
+				ejectedUntil = System.currentTimeMillis() + ejectMillis;
+			}
+		} else {
+			synchronized (this) {
+				latencyEwma = latencyEwma == 0 ? latencyNanos : latencyEwma + EWMA_ALPHA * (latencyNanos - latencyEwma);
+			}
+			consecutiveFailures.set(0);
+			ejectedUntil = 0;
+		}
+		probing.set(false);
+	}
+
+	@Override
+	public String toString() {
+		return "Endpoint [url=" + url + ", outstanding=" + outstanding + ", latencyEwma=" + latencyEwma
+				+ ", ejectedUntil=" + ejectedUntil + "]";
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Cancelling a CompletableFuture made by thenApply or thenCompose does not cancel the stage it
+ * came from.  These keep cancellation flowing back to the HTTP exchange, so a post that lost a
+ * hedge or belongs to a failed trigger really stops.
+ */
+final class Futures {
+
+	private Futures() {
+	}
+
+	/**
+	 * @param dependent
+	 *            future made from the source
+	 * @param source
+	 *            future cancelled along with the dependent
+	 * @return the dependent
+	 */
+	static <T> CompletableFuture<T> cancelling(final CompletableFuture<T> dependent, final Future<?> source) {
+		dependent.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T value, Throwable error) {
+				if (dependent.isCancelled()) {
+					source.cancel(true);
+				}
+			}
+		});
+		return dependent;
+	}
+
+	/**
+	 * Completes the target like the source, and cancels the source with the target.
+	 */
+	static <T> void forward(final CompletableFuture<T> source, final CompletableFuture<T> target) {
+		source.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T value, Throwable error) {
+				if (error != null) {
+					target.completeExceptionally(error);
+				} else {
+					target.complete(value);
+				}
+			}
+		});
+		cancelling(target, source);
+	}
+
+	/**
+	 * thenCompose that can be cancelled, at whichever stage it is in
+	 */
+	static <T, U> CompletableFuture<U> compose(final CompletableFuture<T> first,
+											   final Function<T, CompletableFuture<U>> next) {
+		final CompletableFuture<U> result = new CompletableFuture<U>();
+		first.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T value, Throwable error) {
+				if (error != null) {
+					result.completeExceptionally(error);
+					return;
+				}
+				if (result.isDone()) {
+					return;
+				}
+				try {
+					forward(next.apply(value), result);
+				} catch (RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			}
+		});
+		return cancelling(result, first);
+	}
+
+	/**
+	 * thenApply that cancels the source with it
+	 */
+	static <T, U> CompletableFuture<U> apply(final CompletableFuture<T> source, final Function<T, U> function) {
+		return cancelling(source.thenApply(function), source);
+	}
+}
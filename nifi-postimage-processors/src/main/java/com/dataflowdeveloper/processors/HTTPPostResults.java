@@ -1,6 +1,7 @@
 package com.dataflowdeveloper.processors;
 
 import java.io.Serializable;
+import java.util.Map;
 
 /**
  * 
@@ -18,6 +19,16 @@ public class HTTPPostResults implements Serializable {
 	private String status;
 	private String jsonResultBody;
 	private int statusCode;
+	private String contentType;
+	private byte[] body;
+	private String retryAfter;
+	private long connectNanos;
+	private long uploadNanos;
+	private long firstByteNanos;
+	private long totalNanos;
+	private long bytesSent;
+	private long bytesReceived;
+	private int inferenceHeaderLength = -1;
 	
 	/**
 	 * 
@@ -51,6 +62,100 @@ public class HTTPPostResults implements Serializable {
 	public void setStatus(String status) {
 		this.status = status;
 	}
+	public String getContentType() {
+		return contentType;
+	}
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+	/**
+	 * @return raw response body, not copied
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+	public void setBody(byte[] body) {
+		this.body = body;
+	}
+	/**
+	 * @return Retry-After header of the response, null when absent
+	 */
+	public String getRetryAfter() {
+		return retryAfter;
+	}
+	public void setRetryAfter(String retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+	/**
+	 * @return from the post starting to a connection being ready
+	 */
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+	/**
+	 * @return from the connection being ready to the request being sent
+	 */
+	public long getUploadNanos() {
+		return uploadNanos;
+	}
+	/**
+	 * @return from the request being sent to the response headers
+	 */
+	public long getFirstByteNanos() {
+		return firstByteNanos;
+	}
+	/**
+	 * @return from the post starting to the whole response being read
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+	/**
+	 * 
+	 * @param connectNanos
+	 * @param uploadNanos
+	 * @param firstByteNanos
+	 * @param totalNanos
+	 */
+	public void setTimings(long connectNanos, long uploadNanos, long firstByteNanos, long totalNanos) {
+		this.connectNanos = connectNanos;
+		this.uploadNanos = uploadNanos;
+		this.firstByteNanos = firstByteNanos;
+		this.totalNanos = totalNanos;
+	}
+	public long getBytesSent() {
+		return bytesSent;
+	}
+	public void setBytesSent(long bytesSent) {
+		this.bytesSent = bytesSent;
+	}
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+	public void setBytesReceived(long bytesReceived) {
+		this.bytesReceived = bytesReceived;
+	}
+	/**
+	 * @return Inference-Header-Content-Length of a KServe V2 binary response, -1 when absent
+	 */
+	public int getInferenceHeaderLength() {
+		return inferenceHeaderLength;
+	}
+	public void setInferenceHeaderLength(int inferenceHeaderLength) {
+		this.inferenceHeaderLength = inferenceHeaderLength;
+	}
+	/**
+	 * puts post.header, post.status, post.statuscode, and post.results when there is a result
+	 * @param attributes
+	 */
+	public void putAttributes(Map<String, String> attributes) {
+		if (jsonResultBody != null) {
+			attributes.put(PostImageProcessor.ATTRIBUTE_OUTPUT_NAME, jsonResultBody);
+		}
+		attributes.put(PostImageProcessor.ATTRIBUTE_OUTPUT_HEADER, header);
+		attributes.put(PostImageProcessor.ATTRIBUTE_OUTPUT_STATUS, status);
+		attributes.put(PostImageProcessor.ATTRIBUTE_OUTPUT_STATUS_CODE, String.valueOf(statusCode));
+	}
 	public String getJsonResultBody() {
 		return jsonResultBody;
 	}
@@ -64,6 +169,24 @@ public class HTTPPostResults implements Serializable {
 		super();
 	}
 
+	/**
+	 * copies the results, the body bytes are shared
+	 * @param other
+	 */
+	public HTTPPostResults(HTTPPostResults other) {
+		this(other.header, other.status, other.jsonResultBody, other.statusCode);
+		this.contentType = other.contentType;
+		this.body = other.body;
+		this.retryAfter = other.retryAfter;
+		this.connectNanos = other.connectNanos;
+		this.uploadNanos = other.uploadNanos;
+		this.firstByteNanos = other.firstByteNanos;
+		this.totalNanos = other.totalNanos;
+		this.bytesSent = other.bytesSent;
+		this.bytesReceived = other.bytesReceived;
+		this.inferenceHeaderLength = other.inferenceHeaderLength;
+	}
+
 	
 	public HTTPPostResults(String header, String status, String jsonResultBody) {
 		super();
@@ -117,6 +240,10 @@ public class HTTPPostResults implements Serializable {
 		builder.append(jsonResultBody);
 		builder.append(", statusCode=");
 		builder.append(statusCode);
+		builder.append(", contentType=");
+		builder.append(contentType);
+		builder.append(", bodyLength=");
+		builder.append(body == null ? 0 : body.length);
 		builder.append("]");
 		return builder.toString();
 	}	
@@ -1,107 +1,436 @@
 package com.dataflowdeveloper.processors;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-import org.apache.http.entity.ContentType;
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.Unirest;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.ManagedNHttpClientConnection;
+import org.apache.http.nio.conn.NHttpConnectionFactory;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
 
 /**
- * 
+ * Non blocking HTTP engine owned by one processor instance.  Posts complete through callbacks
+ * on the IO reactor threads, so a few threads can carry many concurrent requests.  Speaks
+ * HTTP/1.1 over a connection pool, or HTTP/2 through {@link Http2Transport}.
+ *
  * @author tspann
  *
  */
-public class HTTPPostUtility {
+public class HTTPPostUtility implements Closeable {
+
+	private final CloseableHttpAsyncClient client;
+
+	/** HTTP/2 transport, null for HTTP/1.1 */
+	private final Http2Transport http2;
+
+	private final BufferPool bufferPool;
+
+	private volatile OAuth2TokenProvider tokenProvider;
+
+	/** largest response body read when none is given */
+	public static final int DEFAULT_MAX_RESPONSE_SIZE = 64 * 1024 * 1024;
+
+	private final int maxResponseSize;
+
+	/** hosts kept by the DNS cache */
+	private static final int DNS_CACHE_HOSTS = 1024;
 
 	/**
-	 * postImage
-	 * 
-	 * @param urlName
-	 *            name of URL to post to
-	 * @param fieldName
-	 *            data or whatever your server needs. this example works with mms
-	 *            model server
-	 * @param imageName
-	 *            make this a real name like test.jpg
-	 * @param imageType
-	 *            must be a valid content type like image/jpeg
-	 * @param stream
-	 *            InputStream of image / flowfile
-	 * @return JSON results from the POST
+	 *
+	 * @param maxTotal
+	 *            max pooled connections
+	 * @param maxPerRoute
+	 *            max pooled connections to one host
+	 * @param connectTimeout
+	 *            milliseconds to connect
+	 * @param socketTimeout
+	 *            milliseconds of socket inactivity before the post fails
+	 * @param keepAlive
+	 *            milliseconds an idle connection stays pooled, unless the server asks for less
+	 * @throws IOReactorException
+	 *            if the IO reactor cannot be created
+	 */
+	public HTTPPostUtility(int maxTotal, int maxPerRoute, int connectTimeout, int socketTimeout,
+						   final long keepAlive) throws IOReactorException {
+		this(maxTotal, maxPerRoute, connectTimeout, socketTimeout, keepAlive, false);
+	}
+
+	/**
+	 *
+	 * @param maxTotal
+	 *            max pooled connections, with HTTP/2 the buffers kept for uploads
+	 * @param maxPerRoute
+	 *            max pooled connections to one host, not used with HTTP/2
+	 * @param connectTimeout
+	 *            milliseconds to connect
+	 * @param socketTimeout
+	 *            milliseconds of socket inactivity before the post fails
+	 * @param keepAlive
+	 *            milliseconds an idle connection stays pooled, unless the server asks for less
+	 * @param http2
+	 *            true to multiplex the posts to a host over one HTTP/2 connection
+	 * @throws IOReactorException
+	 *            if the IO reactor cannot be created
+	 */
+	public HTTPPostUtility(int maxTotal, int maxPerRoute, int connectTimeout, int socketTimeout,
+						   final long keepAlive, boolean http2) throws IOReactorException {
+		this(maxTotal, maxPerRoute, connectTimeout, socketTimeout, keepAlive, http2, 0);
+	}
+
+	/**
+	 *
+	 * @param maxTotal
+	 *            max pooled connections, with HTTP/2 the buffers kept for uploads
+	 * @param maxPerRoute
+	 *            max pooled connections to one host, not used with HTTP/2
+	 * @param connectTimeout
+	 *            milliseconds to connect
+	 * @param socketTimeout
+	 *            milliseconds of socket inactivity before the post fails
+	 * @param keepAlive
+	 *            milliseconds an idle connection stays pooled, unless the server asks for less
+	 * @param http2
+	 *            true to multiplex the posts to a host over one HTTP/2 connection
+	 * @param dnsCacheTtl
+	 *            milliseconds the addresses of a host are kept, 0 to look them up through the JVM
+	 * @throws IOReactorException
+	 *            if the IO reactor cannot be created
 	 */
-	public static HTTPPostResults postImage(String urlName, String fieldName, String imageName, String imageType,
-											InputStream stream, String headerName, String headerValue,
-											String basicUsername, String basicPassword) {
+	public HTTPPostUtility(int maxTotal, int maxPerRoute, int connectTimeout, int socketTimeout,
+						   final long keepAlive, boolean http2, long dnsCacheTtl) throws IOReactorException {
+		this(maxTotal, maxPerRoute, connectTimeout, socketTimeout, keepAlive, http2, dnsCacheTtl, DEFAULT_MAX_RESPONSE_SIZE);
+	}
 
-		if ( urlName == null || fieldName == null || imageName == null || imageType == null || stream == null ) {
-			return null;
+	/**
+	 *
+	 * @param maxTotal
+	 *            max pooled connections, with HTTP/2 the buffers kept for uploads
+	 * @param maxPerRoute
+	 *            max pooled connections to one host, not used with HTTP/2
+	 * @param connectTimeout
+	 *            milliseconds to connect
+	 * @param socketTimeout
+	 *            milliseconds of socket inactivity before the post fails
+	 * @param keepAlive
+	 *            milliseconds an idle connection stays pooled, unless the server asks for less
+	 * @param http2
+	 *            true to multiplex the posts to a host over one HTTP/2 connection
+	 * @param dnsCacheTtl
+	 *            milliseconds the addresses of a host are kept, 0 to look them up through the JVM
+	 * @param maxResponseSize
+	 *            bytes of response body read before the post fails
+	 * @throws IOReactorException
+	 *            if the IO reactor cannot be created
+	 */
+	public HTTPPostUtility(int maxTotal, int maxPerRoute, int connectTimeout, int socketTimeout,
+						   final long keepAlive, boolean http2, long dnsCacheTtl, int maxResponseSize)
+			throws IOReactorException {
+		this.maxResponseSize = maxResponseSize;
+		this.bufferPool = new BufferPool(maxTotal, BufferPool.DEFAULT_BUFFER_SIZE);
+		final DnsCache dnsCache = dnsCacheTtl > 0 ? new DnsCache(dnsCacheTtl, DNS_CACHE_HOSTS) : null;
+		if (http2) {
+			this.http2 = new Http2Transport(connectTimeout, socketTimeout, bufferPool, dnsCache, maxResponseSize);
+			this.client = null;
+			return;
 		}
-		
-		HTTPPostResults results = new HTTPPostResults();
+		this.http2 = null;
 
-		try {
-			/** Do we want a timeout
-			// do we want to allow users to set this
-			// connectionTimeout
-			// connectionTimeout
-			// http://unirest.io/java.html
+		IOReactorConfig reactorConfig = IOReactorConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSoTimeout(socketTimeout)
+				.setSoKeepAlive(true)
+				.build();
 
-			 Need base auth
+		// the JVM's default TLS context keeps one session cache for every pool, so handshakes after
+		// the first, and after the processor restarts, resume the session rather than start over
+		PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+				new DefaultConnectingIOReactor(reactorConfig), (NHttpConnectionFactory<ManagedNHttpClientConnection>) null,
+				RegistryBuilder.<SchemeIOSessionStrategy>create()
+						.register("http", NoopIOSessionStrategy.INSTANCE)
+						.register("https", new SSLIOSessionStrategy(tlsContext()))
+						.build(),
+				dnsCache == null ? null : new DnsResolver() {
+					@Override
+					public InetAddress[] resolve(String host) throws UnknownHostException {
+						return dnsCache.resolve(host);
+					}
+				});
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
 
-			 .basicAuth("username", "password")
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.build();
 
-			 add
+		this.client = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setConnectionReuseStrategy(new DefaultConnectionReuseStrategy() {
+					@Override
+					public boolean keepAlive(HttpResponse response, HttpContext context) {
+						// httpcore 4.3 wants a length on every 200, the warm-up HEAD answers have no body to delimit
+						final Object request = context.getAttribute(HttpCoreContext.HTTP_REQUEST);
+						if (request instanceof HttpRequest
+								&& HttpHead.METHOD_NAME.equals(((HttpRequest) request).getRequestLine().getMethod())) {
+							final Header connection = response.getFirstHeader(HTTP.CONN_DIRECTIVE);
+							if (connection != null) {
+								return !HTTP.CONN_CLOSE.equalsIgnoreCase(connection.getValue());
+							}
+							return response.getStatusLine().getProtocolVersion().greaterEquals(HttpVersion.HTTP_1_1);
+						}
+						return super.keepAlive(response, context);
+					}
+				})
+				.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+					@Override
+					public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+						long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+						return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+					}
+				})
+				.build();
+		this.client.start();
+	}
 
-			 headers
+	/**
+	 * postImage
+	 *
+	 * @param url
+	 *            URL to post to, one of the replicas when the request has several
+	 * @param request
+	 *            field name, image name and type, and headers of the post
+	 * @param stream
+	 *            InputStream of image / flowfile, streamed to the socket by the IO reactor, the
+	 *            caller closes it once the future completes
+	 * @param size
+	 *            number of bytes in the stream
+	 * @return future results from the POST with the raw response body, completed on an IO reactor thread
+	 * @throws IOException
+	 *            if the request cannot be prepared
+	 */
+	public CompletableFuture<HTTPPostResults> postImage(String url, PostRequest request, InputStream stream,
+														long size) throws IOException {
+		return postImages(url, new PostRequest[] { request }, new String[] { request.getFieldName() },
+				new InputStream[] { stream }, new long[] { size });
+	}
 
-			 .header("accept", "application/json")
+	/**
+	 * Posts several images as the parts of one multipart request, for model servers that run
+	 * inference on a batch.
+	 *
+	 * @param url
+	 *            URL to post to, one of the replicas when the request has several
+	 * @param requests
+	 *            image name and type of each image, headers come from the first
+	 * @param fieldNames
+	 *            form field of each image
+	 * @param streams
+	 *            InputStream of each image, the caller closes them once the future completes
+	 * @param sizes
+	 *            number of bytes in each stream
+	 * @return future results from the POST with the raw response body, completed on an IO reactor thread
+	 * @throws IOException
+	 *            if the request cannot be prepared
+	 */
+	public CompletableFuture<HTTPPostResults> postImages(String url, PostRequest[] requests, String[] fieldNames,
+														 InputStream[] streams, long[] sizes) throws IOException {
+		if ( url == null || requests.length == 0 ) {
+			return CompletableFuture.completedFuture(null);
+		}
 
-			*/
-			Unirest.setTimeouts(90000, 180000);
-			
-			HttpResponse<JsonNode> resp = null;
+		MultipartBody body = new MultipartBody();
+		for (int i = 0; i < requests.length; i++) {
+			if ( fieldNames[i] == null || requests[i].getImageName() == null
+					|| requests[i].getImageType() == null || streams[i] == null ) {
+				return CompletableFuture.completedFuture(null);
+			}
+			body.addPart(fieldNames[i], requests[i].getImageName(), requests[i].getImageType(), streams[i], sizes[i]);
+		}
+		body.finish();
+		return postBody(url, body, requests[0].getHeaders());
+	}
 
-			if (headerName == null || headerName.length() <= 0 || headerValue == null || headerValue.length() <= 0) {
-				resp = Unirest.post(urlName)
-						.field(fieldName, stream, ContentType.parse(imageType), imageName)
-						.asJson();
+	/**
+	 * Posts a finished body as it is, like a KServe V2 binary inference request.
+	 *
+	 * @param url
+	 *            URL to post to
+	 * @param body
+	 *            finished body, its streams are closed by the caller once the future completes
+	 * @param headers
+	 *            request headers
+	 * @return future results from the POST with the raw response body, completed on an IO reactor thread
+	 */
+	public CompletableFuture<HTTPPostResults> postBody(final String url, final MultipartBody body, final Header[] headers) {
+		final OAuth2TokenProvider tokens = tokenProvider;
+		if (tokens == null) {
+			return send(url, body, headers);
+		}
+		// the token is cached, so this composes on a completed future without a thread hop
+		return Futures.compose(tokens.authorization(), new Function<Header, CompletableFuture<HTTPPostResults>>() {
+			@Override
+			public CompletableFuture<HTTPPostResults> apply(final Header authorization) {
+				final Header[] authorized = Arrays.copyOf(headers, headers.length + 1);
+				authorized[headers.length] = authorization;
+				return send(url, body, authorized).whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+					@Override
+					public void accept(HTTPPostResults results, Throwable error) {
+						if (results != null && results.getStatusCode() == 401) {
+							tokens.invalidate(authorization);
+						}
+					}
+				});
 			}
-			else {
-				resp = Unirest.post(urlName)
-						.header(headerName,headerValue)
-						.field(fieldName, stream, ContentType.parse(imageType), imageName)
-						.asJson();
+		});
+	}
+
+	/**
+	 * Opens connections to the server before the first post, so the posts after a start do not
+	 * wait on DNS, TCP and TLS handshakes.  Each connection is opened by a HEAD request, whatever
+	 * status the server answers with, and then stays pooled.  With HTTP/2 the one shared connection
+	 * is opened whatever the count.
+	 *
+	 * @param url
+	 *            URL the posts go to
+	 * @param connections
+	 *            connections to open
+	 * @return future count of the connections opened, completed when every request is done
+	 */
+	public CompletableFuture<Integer> warmUp(String url, int connections) {
+		if (http2 != null) {
+			return http2.warmUp(URI.create(url));
+		}
+		final CompletableFuture<Integer> opened = new CompletableFuture<Integer>();
+		final AtomicInteger remaining = new AtomicInteger(connections);
+		final AtomicInteger answered = new AtomicInteger();
+		final FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse response) {
+				answered.incrementAndGet();
+				done();
 			}
 
-			if (resp.getBody() != null && resp.getBody().getArray() != null && resp.getBody().getArray().length() > 0) {
-				for (int i = 0; i < resp.getBody().getArray().length(); i++) {
-					if (resp.getBody().getArray().get(i) != null) {
-						results.setJsonResultBody(resp.getBody().getArray().get(i).toString());
-					}
-				}
+			@Override
+			public void failed(Exception ex) {
+				done();
 			}
 
-			if ( resp.getHeaders() != null) { 
-				results.setHeader( resp.getHeaders().toString() );
+			@Override
+			public void cancelled() {
+				done();
 			}
-			if ( resp.getStatusText() != null ) { 
-				results.setStatus(resp.getStatusText());
+
+			private void done() {
+				if (remaining.decrementAndGet() == 0) {
+					opened.complete(answered.get());
+				}
 			}
-			
-			results.setStatusCode(resp.getStatus());
-			
-//			try {
-//				Unirest.shutdown();
-//			} catch (IOException e) {
-//				e.printStackTrace();
-//			}
-		} catch (Throwable t) {
-			t.printStackTrace();
+		};
+		// all at once, so the pool opens a connection for each rather than reuse the first
+		for (int i = 0; i < connections; i++) {
+			client.execute(new HttpHead(url), callback);
+		}
+		if (connections <= 0) {
+			opened.complete(0);
+		}
+		return opened;
+	}
+
+	/**
+	 * @return the JVM's default TLS context, its session cache is shared by every client
+	 */
+	static SSLContext tlsContext() {
+		try {
+			return SSLContext.getDefault();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No default TLS context", e);
 		}
+	}
+
+	/**
+	 * @param tokenProvider
+	 *            bearer tokens added to every post, null for none
+	 */
+	public void setTokenProvider(OAuth2TokenProvider tokenProvider) {
+		this.tokenProvider = tokenProvider;
+	}
 
-		return results;
+	/**
+	 * posts without a bearer token, like the token request itself
+	 */
+	CompletableFuture<HTTPPostResults> send(String url, MultipartBody body, Header[] headers) {
+		if (http2 != null) {
+			return http2.post(URI.create(url), body, headers);
+		}
+		MultipartRequestProducer producer = new MultipartRequestProducer(URI.create(url), body, bufferPool);
+		for (Header header : headers) {
+			producer.getRequest().addHeader(header);
+		}
+
+		final CompletableFuture<HTTPPostResults> future = new CompletableFuture<HTTPPostResults>();
+		final Future<HTTPPostResults> exchange = client.execute(producer, new ResultResponseConsumer(producer, maxResponseSize),
+				new FutureCallback<HTTPPostResults>() {
+					@Override
+					public void completed(HTTPPostResults results) {
+						future.complete(results);
+					}
+
+					@Override
+					public void failed(Exception ex) {
+						future.completeExceptionally(ex);
+					}
+
+					@Override
+					public void cancelled() {
+						future.cancel(false);
+					}
+				});
+		// a hedge that lost cancels its exchange and frees the connection
+		return Futures.cancelling(future, exchange);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (http2 != null) {
+			http2.close();
+		} else {
+			client.close();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Hedged posts: when a post has no response after the hedge delay, the same image goes to
+ * another replica, the first response wins and the other post is cancelled.  The delay is fixed,
+ * or a percentile of the replica's own latency so only its slowest posts are hedged.  Hedges are
+ * limited by a budget, a share of the posts that went out, like retries in {@link RetryPolicy}.
+ */
+public class HedgePolicy {
+
+	/** percentile delays start with p, like p95 */
+	public static final String PERCENTILE = "p";
+
+	/** posts a replica needs before its percentile is trusted */
+	private static final long MIN_SAMPLES = 20;
+
+	/** how often a replica's percentile is worked out again */
+	private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** most hedges saved up in the budget, so a quiet spell does not allow a burst */
+	private static final double MAX_BALANCE = 10;
+
+	/** replicas whose delay is kept before the cache starts again */
+	private static final int MAX_ENDPOINTS = 1024;
+
+	/** a replica's delay and when it was worked out */
+	private static final class Delay {
+		final long millis;
+		final long at;
+
+		Delay(long millis, long at) {
+			this.millis = millis;
+			this.at = at;
+		}
+	}
+
+	/**
+	 * One post and its hedge, if one was sent.
+	 */
+	public static final class Race {
+
+		private final CompletableFuture<HTTPPostResults> result = new CompletableFuture<HTTPPostResults>();
+		private final CompletableFuture<HTTPPostResults> first;
+		private CompletableFuture<HTTPPostResults> hedge;
+		private ScheduledFuture<?> timer;
+		private boolean hedgePending;
+		private Throwable firstError;
+		private boolean firstFailed;
+		private boolean hedgeFailed;
+		private volatile boolean hedged;
+		private volatile boolean hedgeWon;
+
+		Race(CompletableFuture<HTTPPostResults> first) {
+			this.first = first;
+		}
+
+		/**
+		 * @return the winning response, cancelling it cancels both posts
+		 */
+		public CompletableFuture<HTTPPostResults> getFuture() {
+			return result;
+		}
+
+		/**
+		 * @return true if a hedge was sent
+		 */
+		public boolean isHedged() {
+			return hedged;
+		}
+
+		/**
+		 * @return true if the hedge answered first
+		 */
+		public boolean isHedgeWon() {
+			return hedgeWon;
+		}
+
+		/** marks the hedge as on its way before it is sent, returns false if the race is already over */
+		synchronized boolean starting() {
+			if (result.isDone()) {
+				return false;
+			}
+			hedgePending = true;
+			return true;
+		}
+
+		/** no hedge after all, a failed post ends the race */
+		synchronized void abandoned() {
+			hedgePending = false;
+			if (firstFailed && !result.isDone()) {
+				result.completeExceptionally(firstError);
+			}
+		}
+
+		/** records the hedge that was sent, cancels it and returns false if the race is already over */
+		synchronized boolean start(CompletableFuture<HTTPPostResults> hedge) {
+			hedgePending = false;
+			if (result.isDone()) {
+				hedge.cancel(true);
+				return false;
+			}
+			this.hedge = hedge;
+			this.hedged = true;
+			return true;
+		}
+
+		synchronized boolean isOver() {
+			return result.isDone();
+		}
+
+		/**
+		 * a response wins, a failure only ends the race when the other post cannot answer
+		 */
+		void finished(boolean isHedge, HTTPPostResults results, Throwable error) {
+			final CompletableFuture<HTTPPostResults> loser;
+			synchronized (this) {
+				if (result.isDone()) {
+					return;
+				}
+				if (error != null) {
+					if (isHedge) {
+						hedgeFailed = true;
+					} else {
+						firstFailed = true;
+						firstError = error;
+					}
+					// wait for the other post while it can still answer, or is being sent
+					if ((hedge != null || hedgePending) && !(firstFailed && hedgeFailed)) {
+						return;
+					}
+					result.completeExceptionally(error);
+				} else {
+					hedgeWon = isHedge;
+					result.complete(results);
+				}
+				loser = isHedge ? first : hedge;
+				if (timer != null) {
+					timer.cancel(false);
+				}
+			}
+			if (loser != null) {
+				loser.cancel(true);
+			}
+		}
+
+		synchronized void cancelled() {
+			if (timer != null) {
+				timer.cancel(false);
+			}
+			first.cancel(true);
+			if (hedge != null) {
+				hedge.cancel(true);
+			}
+		}
+	}
+
+	private final long fixedDelayMillis;
+	private final double percentile;
+	private final double budgetRatio;
+	private final ScheduledExecutorService timer;
+	private final ConcurrentMap<Endpoint, Delay> delays = new ConcurrentHashMap<Endpoint, Delay>();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong wins = new AtomicLong();
+	private double balance = MAX_BALANCE;
+
+	/**
+	 *
+	 * @param delay
+	 *            a percentile like p95 or milliseconds
+	 * @param budgetRatio
+	 *            hedges allowed per post, like 0.05
+	 * @param timer
+	 *            runs the hedges when their delay is up
+	 */
+	public HedgePolicy(String delay, double budgetRatio, ScheduledExecutorService timer) {
+		final String value = delay.trim();
+		if (value.startsWith(PERCENTILE)) {
+			this.percentile = Double.parseDouble(value.substring(PERCENTILE.length()));
+			this.fixedDelayMillis = -1;
+		} else {
+			this.percentile = 0;
+			this.fixedDelayMillis = Long.parseLong(value);
+		}
+		this.budgetRatio = budgetRatio;
+		this.timer = timer;
+	}
+
+	/**
+	 * @param delay
+	 *            hedge delay property value
+	 * @return true for a percentile strictly between 0 and 100, like p95
+	 */
+	public static boolean isPercentile(String delay) {
+		if (delay == null || !delay.trim().startsWith(PERCENTILE)) {
+			return false;
+		}
+		try {
+			final double percentile = Double.parseDouble(delay.trim().substring(PERCENTILE.length()));
+			return percentile > 0 && percentile < 100;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param endpoint
+	 *            replica the post went to
+	 * @return milliseconds to wait for a response before hedging, -1 when the replica has too few
+	 *            posts to know its percentile
+	 */
+	public long delayMillis(Endpoint endpoint) {
+		if (fixedDelayMillis >= 0) {
+			return fixedDelayMillis;
+		}
+		final long now = System.nanoTime();
+		final Delay cached = delays.get(endpoint);
+		if (cached != null && now - cached.at < REFRESH_NANOS) {
+			return cached.millis;
+		}
+		final PostMetrics metrics = endpoint.getMetrics();
+		final long millis = metrics.getCount() < MIN_SAMPLES ? -1 : (long) Math.ceil(metrics.percentileMillis(percentile));
+		if (delays.size() >= MAX_ENDPOINTS) {
+			delays.clear();
+		}
+		delays.put(endpoint, new Delay(millis, now));
+		return millis;
+	}
+
+	/**
+	 * Starts the race of a post that went out, the hedge is sent when the delay is up if the post
+	 * has not answered and the budget allows.
+	 *
+	 * @param first
+	 *            the post
+	 * @param delayMillis
+	 *            how long to wait for it before hedging
+	 * @param hedge
+	 *            sends the hedge, null when there is no replica or capacity for it
+	 * @return the race
+	 */
+	public Race race(final CompletableFuture<HTTPPostResults> first, final long delayMillis,
+					 final Supplier<CompletableFuture<HTTPPostResults>> hedge) {
+		synchronized (this) {
+			balance = Math.min(MAX_BALANCE, balance + budgetRatio);
+		}
+		final Race race = new Race(first);
+		first.whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+			@Override
+			public void accept(HTTPPostResults results, Throwable error) {
+				race.finished(false, results, error);
+			}
+		});
+		race.getFuture().whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+			@Override
+			public void accept(HTTPPostResults results, Throwable error) {
+				if (race.getFuture().isCancelled()) {
+					race.cancelled();
+				}
+			}
+		});
+		final ScheduledFuture<?> scheduled = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!race.starting()) {
+					return;
+				}
+				if (!tryHedge()) {
+					race.abandoned();
+					return;
+				}
+				final CompletableFuture<HTTPPostResults> second = hedge.get();
+				if (second == null) {
+					refund();
+					race.abandoned();
+					return;
+				}
+				if (!race.start(second)) {
+					return;
+				}
+				hedges.incrementAndGet();
+				second.whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+					@Override
+					public void accept(HTTPPostResults results, Throwable error) {
+						race.finished(true, results, error);
+						if (race.isHedgeWon()) {
+							wins.incrementAndGet();
+						}
+					}
+				});
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+		synchronized (race) {
+			race.timer = scheduled;
+			if (race.result.isDone()) {
+				scheduled.cancel(false);
+			}
+		}
+		return race;
+	}
+
+	private synchronized boolean tryHedge() {
+		if (balance < 1) {
+			return false;
+		}
+		balance -= 1;
+		return true;
+	}
+
+	private synchronized void refund() {
+		balance = Math.min(MAX_BALANCE, balance + 1);
+	}
+
+	/**
+	 * @return hedges sent so far
+	 */
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * @return hedges that answered before the post they hedged
+	 */
+	public long getWins() {
+		return wins.get();
+	}
+}
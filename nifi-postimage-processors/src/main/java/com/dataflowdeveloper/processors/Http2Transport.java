@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequests;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.ssl.DefaultClientTlsStrategy;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AbstractAsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.Timeout;
+
+/**
+ * HTTP/2 transport for {@link HTTPPostUtility}.  Every post to a host is a stream on one shared
+ * connection, so many uploads are in flight without a socket and handshake each.  https URLs
+ * negotiate h2 with ALPN, http URLs speak h2c with prior knowledge, the server has to support it.
+ *
+ * Request bodies are streamed under HTTP/2 flow control, a post only reads more of its image when
+ * the stream's window has room, so a slow server holds back the uploads rather than the heap.
+ */
+public class Http2Transport implements Closeable {
+
+	private final CloseableHttpAsyncClient client;
+	private final BufferPool bufferPool;
+	private final int maxResponseSize;
+
+	/**
+	 *
+	 * @param connectTimeout
+	 *            milliseconds to connect
+	 * @param socketTimeout
+	 *            milliseconds of inactivity before a post fails
+	 * @param bufferPool
+	 *            pool to borrow the upload buffers from
+	 * @param dnsCache
+	 *            addresses of the hosts, null to look them up through the JVM
+	 * @param maxResponseSize
+	 *            bytes of response body read before the post fails
+	 */
+	public Http2Transport(int connectTimeout, int socketTimeout, BufferPool bufferPool, final DnsCache dnsCache,
+						  int maxResponseSize) {
+		this.bufferPool = bufferPool;
+		this.maxResponseSize = maxResponseSize;
+		final H2AsyncClientBuilder builder = HttpAsyncClients.customHttp2();
+		if (dnsCache != null) {
+			builder.setDnsResolver(new DnsResolver() {
+				@Override
+				public InetAddress[] resolve(String host) throws UnknownHostException {
+					return dnsCache.resolve(host);
+				}
+
+				@Override
+				public String resolveCanonicalHostname(String host) throws UnknownHostException {
+					return SystemDefaultDnsResolver.INSTANCE.resolveCanonicalHostname(host);
+				}
+			});
+		}
+		this.client = builder
+				.setTlsStrategy(new DefaultClientTlsStrategy(HTTPPostUtility.tlsContext()))
+				.setIOReactorConfig(IOReactorConfig.custom()
+						.setSoTimeout(Timeout.ofMilliseconds(socketTimeout))
+						.setSoKeepAlive(true)
+						.build())
+				.setH2Config(H2Config.custom().setPushEnabled(false).build())
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(Timeout.ofMilliseconds(connectTimeout))
+						.setResponseTimeout(Timeout.ofMilliseconds(socketTimeout))
+						.build())
+				.build();
+		this.client.start();
+	}
+
+	/**
+	 * @param uri
+	 *            where to post
+	 * @param body
+	 *            finished multipart body
+	 * @param headers
+	 *            extra request headers
+	 * @return future results, completed on an IO reactor thread
+	 */
+	public CompletableFuture<HTTPPostResults> post(URI uri, MultipartBody body, org.apache.http.Header[] headers) {
+		BasicHttpRequest request = new BasicHttpRequest(Method.POST, uri);
+		for (org.apache.http.Header header : headers) {
+			request.addHeader(header.getName(), header.getValue());
+		}
+		BodyProducer producer = new BodyProducer(body, bufferPool);
+
+		final CompletableFuture<HTTPPostResults> future = new CompletableFuture<HTTPPostResults>();
+		final Future<HTTPPostResults> exchange = client.execute(new BasicRequestProducer(request, producer), new ResultConsumer(producer, maxResponseSize),
+				new FutureCallback<HTTPPostResults>() {
+					@Override
+					public void completed(HTTPPostResults results) {
+						future.complete(results);
+					}
+
+					@Override
+					public void failed(Exception ex) {
+						future.completeExceptionally(ex);
+					}
+
+					@Override
+					public void cancelled() {
+						future.cancel(false);
+					}
+				});
+		// cancelling resets the stream, the connection stays up
+		return Futures.cancelling(future, exchange);
+	}
+
+	/**
+	 * Opens the connection to the host with a HEAD request, whatever status it answers with.
+	 *
+	 * @param uri
+	 *            where the posts go
+	 * @return future count of connections opened, 1 or 0
+	 */
+	public CompletableFuture<Integer> warmUp(URI uri) {
+		final CompletableFuture<Integer> opened = new CompletableFuture<Integer>();
+		client.execute(SimpleHttpRequests.head(uri), new FutureCallback<SimpleHttpResponse>() {
+			@Override
+			public void completed(SimpleHttpResponse response) {
+				opened.complete(1);
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				opened.complete(0);
+			}
+
+			@Override
+			public void cancelled() {
+				opened.complete(0);
+			}
+		});
+		return opened;
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.close(CloseMode.GRACEFUL);
+	}
+
+	/**
+	 * Writes the multipart body to the stream as the flow control window allows.
+	 */
+	private static final class BodyProducer implements AsyncEntityProducer {
+
+		private final MultipartBody body;
+		private final BufferPool bufferPool;
+		private ByteBuffer buffer;
+		private long remaining;
+		private boolean ended;
+		private final long created = System.nanoTime();
+		private volatile long connected;
+		private volatile long sent;
+
+		BodyProducer(MultipartBody body, BufferPool bufferPool) {
+			this.body = body;
+			this.bufferPool = bufferPool;
+			this.remaining = body.getContentLength();
+		}
+
+		@Override
+		public int available() {
+			if (ended) {
+				return 0;
+			}
+			int buffered = buffer == null ? 0 : buffer.remaining();
+			return (int) Math.min(Integer.MAX_VALUE, Math.max(1, remaining + buffered));
+		}
+
+		@Override
+		public void produce(DataStreamChannel channel) throws IOException {
+			if (ended) {
+				return;
+			}
+			if (buffer == null) {
+				connected = System.nanoTime();
+				buffer = bufferPool.acquire();
+				((Buffer) buffer).flip();
+			}
+			for (;;) {
+				if (buffer.hasRemaining()) {
+					channel.write(buffer);
+					if (buffer.hasRemaining()) {
+						// the window is full, produce is called again when it opens
+						return;
+					}
+				}
+				((Buffer) buffer).clear();
+				int read = body.read(buffer);
+				((Buffer) buffer).flip();
+				if (read < 0) {
+					channel.endStream();
+					sent = System.nanoTime();
+					bufferPool.release(buffer);
+					buffer = null;
+					ended = true;
+					return;
+				}
+				remaining -= read;
+			}
+		}
+
+		@Override
+		public long getContentLength() {
+			return body.getContentLength();
+		}
+
+		@Override
+		public String getContentType() {
+			return body.getContentType();
+		}
+
+		@Override
+		public String getContentEncoding() {
+			return null;
+		}
+
+		@Override
+		public boolean isChunked() {
+			return false;
+		}
+
+		@Override
+		public Set<String> getTrailerNames() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		@Override
+		public void failed(Exception cause) {
+		}
+
+		@Override
+		public void releaseResources() {
+			// the stream may be reset while the IO thread still holds the buffer, so it is dropped
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Collects the response into {@link HTTPPostResults} the way {@link ResultResponseConsumer} does.
+	 */
+	private static final class ResultConsumer extends AbstractAsyncResponseConsumer<HTTPPostResults, byte[]> {
+
+		private final BodyProducer producer;
+		private final long[] responseReceived;
+
+		ResultConsumer(BodyProducer producer, int maxResponseSize) {
+			this(producer, maxResponseSize, new long[1]);
+		}
+
+		private ResultConsumer(BodyProducer producer, final int maxResponseSize, final long[] responseReceived) {
+			// the entity starts right after the response headers, a response without one is timed when built
+			super(new BasicAsyncEntityConsumer() {
+				private long length;
+
+				@Override
+				protected void streamStart(ContentType contentType) {
+					responseReceived[0] = System.nanoTime();
+				}
+
+				@Override
+				protected void data(ByteBuffer src, boolean endOfStream) throws IOException {
+					length += src.remaining();
+					if (length > maxResponseSize) {
+						throw new IOException("Response is larger than the " + maxResponseSize + " bytes allowed");
+					}
+					super.data(src, endOfStream);
+				}
+			});
+			this.producer = producer;
+			this.responseReceived = responseReceived;
+		}
+
+		@Override
+		protected HTTPPostResults buildResult(HttpResponse response, byte[] entity, ContentType contentType) {
+			long now = System.nanoTime();
+			long received = responseReceived[0] == 0 ? now : responseReceived[0];
+			HTTPPostResults results = new HTTPPostResults();
+			results.setHeader(headers(response));
+			// HTTP/2 has no reason phrase, use the standard one so post.status reads as before
+			results.setStatus(response.getReasonPhrase() != null ? response.getReasonPhrase()
+					: EnglishReasonPhraseCatalog.INSTANCE.getReason(response.getCode(), Locale.ENGLISH));
+			results.setStatusCode(response.getCode());
+			results.setContentType(contentType != null ? contentType.toString() : null);
+			results.setBody(entity != null ? entity : new byte[0]);
+			results.setBytesReceived(entity != null ? entity.length : 0);
+			results.setBytesSent(producer.getContentLength());
+			long connected = producer.connected == 0 ? producer.created : producer.connected;
+			long sent = producer.sent == 0 ? received : producer.sent;
+			results.setTimings(connected - producer.created, Math.max(0, sent - connected),
+					Math.max(0, received - sent), now - producer.created);
+			Header retryAfter = response.getFirstHeader("Retry-After");
+			if (retryAfter != null) {
+				results.setRetryAfter(retryAfter.getValue());
+			}
+			Header inferenceHeader = response.getFirstHeader(KServeV2Codec.HEADER_LENGTH);
+			if (inferenceHeader != null) {
+				results.setInferenceHeaderLength(KServeV2Codec.headerLength(inferenceHeader.getValue()));
+			}
+			return results;
+		}
+
+		@Override
+		public void informationResponse(HttpResponse response, HttpContext context) {
+		}
+
+		private static String headers(HttpResponse response) {
+			Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+			for (Header header : response.getHeaders()) {
+				List<String> values = headers.get(header.getName());
+				if (values == null) {
+					values = new ArrayList<String>();
+					headers.put(header.getName(), values);
+				}
+				values.add(header.getValue());
+			}
+			return headers.toString();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Shrinks an image to the model's input size before it is posted.  The decoder skips source
+ * pixels with subsampling, so a 12MP photo is only decoded at a little over the target size and
+ * never sits in the heap at full resolution.  Thread safe, every call uses its own reader and writer.
+ */
+public class ImageTransformer {
+
+	/** output formats */
+	public static final String FORMAT_JPEG = "jpeg";
+	public static final String FORMAT_PNG = "png";
+
+	private final int width;
+	private final int height;
+	private final String format;
+	private final float quality;
+
+	/**
+	 *
+	 * @param width
+	 *            width the image is scaled to fit
+	 * @param height
+	 *            height the image is scaled to fit
+	 * @param format
+	 *            jpeg or png
+	 * @param quality
+	 *            jpeg quality from 0 to 1
+	 */
+	public ImageTransformer(int width, int height, String format, float quality) {
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.quality = quality;
+	}
+
+	/**
+	 * @return content type of the transformed image
+	 */
+	public String getContentType() {
+		return FORMAT_PNG.equals(format) ? "image/png" : "image/jpeg";
+	}
+
+	/**
+	 * @return file extension of the transformed image
+	 */
+	public String getExtension() {
+		return FORMAT_PNG.equals(format) ? ".png" : ".jpg";
+	}
+
+	/**
+	 * @param in
+	 *            encoded image, left open
+	 * @return the image scaled to fit the target size, keeping its aspect ratio, and re-encoded
+	 * @throws IOException
+	 *            if the image cannot be decoded or encoded
+	 */
+	public byte[] transform(InputStream in) throws IOException {
+		BufferedImage image = scale(decode(in));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 4);
+		encode(image, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param in
+	 *            encoded image, left open
+	 * @return the image stretched to exactly the target size as RGB pixels, for a model input tensor
+	 * @throws IOException
+	 *            if the image cannot be decoded
+	 */
+	public BufferedImage resize(InputStream in) throws IOException {
+		BufferedImage source = decode(in);
+		if (source.getWidth() == width && source.getHeight() == height
+				&& source.getType() == BufferedImage.TYPE_INT_RGB) {
+			return source;
+		}
+		BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = resized.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(source, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return resized;
+	}
+
+	private BufferedImage decode(InputStream in) throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(in);
+		if (input == null) {
+			throw new IOException("Unable to read image");
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new IOException("Unknown image format");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				// keep at least the target size so the final scale only ever shrinks
+				int subsampling = Math.max(1, Math.min(reader.getWidth(0) / width, reader.getHeight(0) / height));
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	private BufferedImage scale(BufferedImage source) {
+		double ratio = Math.min((double) width / source.getWidth(), (double) height / source.getHeight());
+		int scaledWidth = Math.max(1, (int) Math.round(source.getWidth() * Math.min(1, ratio)));
+		int scaledHeight = Math.max(1, (int) Math.round(source.getHeight() * Math.min(1, ratio)));
+		boolean alpha = FORMAT_PNG.equals(format) && source.getColorModel().hasAlpha();
+		if (scaledWidth == source.getWidth() && scaledHeight == source.getHeight()
+				&& source.getType() == (alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB)) {
+			return source;
+		}
+		BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight,
+				alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(source, 0, 0, scaledWidth, scaledHeight, null);
+		} finally {
+			graphics.dispose();
+		}
+		return scaled;
+	}
+
+	private void encode(BufferedImage image, ByteArrayOutputStream out) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		if (!writers.hasNext()) {
+			throw new IOException("No writer for " + format);
+		}
+		ImageWriter writer = writers.next();
+		ImageOutputStream output = ImageIO.createImageOutputStream(out);
+		try {
+			writer.setOutput(output);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (FORMAT_JPEG.equals(format)) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality);
+			}
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+			output.close();
+		}
+	}
+}
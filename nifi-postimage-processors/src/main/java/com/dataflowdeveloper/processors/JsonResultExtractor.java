@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Pulls one value out of a JSON response in a single streaming pass.  No tree is built, the
+ * matching value is sliced out of the response bytes and everything else is skipped.
+ *
+ * Paths are a small subset of JSON path, like $.prediction[0] or [0].class.  With no path the
+ * last element of a top level array, or the whole object, is returned as before.
+ *
+ * For a batched post the path points at the array holding one result per image, and
+ * {@link #elements(byte[])} slices out every element.
+ */
+public class JsonResultExtractor {
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	/** field names and array indexes, in order */
+	private final List<Object> steps;
+
+	/**
+	 *
+	 * @param path
+	 *            path to extract, null or empty for the last element of the response
+	 */
+	public JsonResultExtractor(String path) {
+		this.steps = path == null || path.trim().isEmpty() ? null : parsePath(path.trim());
+	}
+
+	/**
+	 * @param body
+	 *            JSON response
+	 * @return the value as JSON text, strings without quotes, null if absent or not JSON
+	 */
+	public String extract(byte[] body) {
+		if (body == null || body.length == 0) {
+			return null;
+		}
+		try (JsonParser parser = FACTORY.createParser(body)) {
+			if (parser.nextToken() == null) {
+				return null;
+			}
+			if (steps == null) {
+				return lastElement(parser, body);
+			}
+			return seek(parser, 0) ? value(parser, body) : null;
+		} catch (IOException e) {
+			// not JSON
+			return null;
+		}
+	}
+
+	/**
+	 * @param body
+	 *            JSON response to a batched post
+	 * @return each element of the array at the path as JSON text, null elements as null, or null
+	 *            if there is no array there
+	 */
+	public List<String> elements(byte[] body) {
+		if (body == null || body.length == 0) {
+			return null;
+		}
+		try (JsonParser parser = FACTORY.createParser(body)) {
+			if (parser.nextToken() == null || (steps != null && !seek(parser, 0))
+					|| parser.getCurrentToken() != JsonToken.START_ARRAY) {
+				return null;
+			}
+			List<String> elements = new ArrayList<String>();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				elements.add(value(parser, body));
+			}
+			return elements;
+		} catch (IOException e) {
+			// not JSON
+			return null;
+		}
+	}
+
+	/**
+	 * @param body
+	 *            JSON response
+	 * @return a parser on the value at the path, or on the whole response with no path, null if
+	 *            there is none.  The caller closes it
+	 * @throws IOException
+	 *            if the response is not JSON
+	 */
+	JsonParser open(byte[] body) throws IOException {
+		if (body == null || body.length == 0) {
+			return null;
+		}
+		JsonParser parser = FACTORY.createParser(body);
+		if (parser.nextToken() != null && (steps == null || seek(parser, 0))) {
+			return parser;
+		}
+		parser.close();
+		return null;
+	}
+
+	/**
+	 * moves the parser onto the value at the path
+	 */
+	private boolean seek(JsonParser parser, int depth) throws IOException {
+		if (depth == steps.size()) {
+			return true;
+		}
+		Object step = steps.get(depth);
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.START_OBJECT && step instanceof String) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if (name.equals(step)) {
+					return seek(parser, depth + 1);
+				}
+				parser.skipChildren();
+			}
+		} else if (token == JsonToken.START_ARRAY && step instanceof Integer) {
+			int index = (Integer) step;
+			for (int i = 0; parser.nextToken() != JsonToken.END_ARRAY; i++) {
+				if (i == index) {
+					return seek(parser, depth + 1);
+				}
+				parser.skipChildren();
+			}
+		}
+		return false;
+	}
+
+	private String lastElement(JsonParser parser, byte[] body) throws IOException {
+		if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+			return value(parser, body);
+		}
+		String last = null;
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+				continue;
+			}
+			last = value(parser, body);
+		}
+		return last;
+	}
+
+	/**
+	 * the value under the parser as text, leaving the parser on its last token
+	 */
+	static String value(JsonParser parser, byte[] body) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (token.isScalarValue()) {
+			return parser.getText();
+		}
+		int start = (int) parser.getTokenLocation().getByteOffset();
+		// some parser versions report the offset of the separator before the value
+		while (body[start] != '{' && body[start] != '[') {
+			start++;
+		}
+		parser.skipChildren();
+		int end = (int) parser.getCurrentLocation().getByteOffset();
+		return new String(body, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	static List<Object> parsePath(String path) {
+		List<Object> steps = new ArrayList<Object>();
+		int i = path.startsWith("$") ? 1 : 0;
+		while (i < path.length()) {
+			char c = path.charAt(i);
+			if (c == '.') {
+				i++;
+			} else if (c == '[') {
+				int open = i + 1;
+				while (open < path.length() && path.charAt(open) == ' ') {
+					open++;
+				}
+				int close;
+				if (open < path.length() && (path.charAt(open) == '\'' || path.charAt(open) == '"')) {
+					// a quoted name may hold ] or . of its own
+					int quote = path.indexOf(path.charAt(open), open + 1);
+					if (quote < 0) {
+						throw new IllegalArgumentException("Unclosed " + path.charAt(open) + " at offset " + open + " in " + path);
+					}
+					close = path.indexOf(']', quote + 1);
+					if (close < 0 || !path.substring(quote + 1, close).trim().isEmpty()) {
+						throw new IllegalArgumentException("Expected ] at offset " + (quote + 1) + " in " + path);
+					}
+					steps.add(path.substring(open + 1, quote));
+				} else {
+					close = path.indexOf(']', i);
+					if (close < 0) {
+						throw new IllegalArgumentException("Unclosed [ at offset " + i + " in " + path);
+					}
+					try {
+						steps.add(Integer.valueOf(path.substring(i + 1, close).trim()));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Expected an index or a quoted name at offset " + (i + 1) + " in " + path);
+					}
+				}
+				i = close + 1;
+			} else {
+				int end = i;
+				while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+					end++;
+				}
+				steps.add(path.substring(i, end));
+				i = end;
+			}
+		}
+		return Collections.unmodifiableList(steps);
+	}
+}
@@ -0,0 +1,523 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Speaks the KServe V2 inference protocol with the binary data extension, as Triton and KServe
+ * servers do.  A request is a small JSON header followed by the raw input tensor, with the header
+ * length in Inference-Header-Content-Length, so nothing is base64 encoded or wrapped in multipart.
+ *
+ * The input is either the encoded image as a one element BYTES tensor, decoded by the model's
+ * pipeline, or pixels decoded here into a [1,H,W,3] UINT8 tensor or a normalized [1,3,H,W] FP32
+ * tensor, so the server runs the model straight away.
+ *
+ * Outputs are asked for as binary and read without parsing a JSON number per value.  The response
+ * is turned into a short JSON document with the top scores of each output, or every value.
+ */
+public class KServeV2Codec {
+
+	/** header holding the length of the JSON header in a binary request or response */
+	public static final String HEADER_LENGTH = "Inference-Header-Content-Length";
+
+	public static final String CONTENT_TYPE = "application/octet-stream";
+
+	/** input datatypes */
+	public static final String BYTES = "BYTES";
+	public static final String UINT8 = "UINT8";
+	public static final String FP32 = "FP32";
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	/** an output tensor described in the response header */
+	private static final class Output {
+		String name;
+		String datatype;
+		long[] shape = new long[0];
+		long binarySize = -1;
+		String data;
+	}
+
+	private final String inputName;
+	private final String outputName;
+	private final String datatype;
+	private final float[] mean;
+	private final float[] std;
+	private final int topK;
+
+	/**
+	 *
+	 * @param inputName
+	 *            name of the model input
+	 * @param outputName
+	 *            name of the output to ask for, null for every output
+	 * @param datatype
+	 *            BYTES, UINT8 or FP32
+	 * @param mean
+	 *            per channel mean subtracted from FP32 pixels scaled to 0 to 1
+	 * @param std
+	 *            per channel deviation FP32 pixels are divided by
+	 * @param topK
+	 *            highest values kept from each output, 0 keeps them all
+	 */
+	public KServeV2Codec(String inputName, String outputName, String datatype, float[] mean, float[] std, int topK) {
+		this.inputName = inputName;
+		this.outputName = outputName == null || outputName.isEmpty() ? null : outputName;
+		this.datatype = datatype;
+		this.mean = mean;
+		this.std = std;
+		this.topK = topK;
+	}
+
+	/**
+	 * @return true when the image is decoded into pixels here rather than sent encoded
+	 */
+	public boolean isDecoded() {
+		return !BYTES.equals(datatype);
+	}
+
+	/**
+	 * @param image
+	 *            encoded image, read but not closed by the body
+	 * @param size
+	 *            number of bytes in the stream
+	 * @return request with the image as a one element BYTES tensor
+	 * @throws IOException
+	 *            if the body cannot be built
+	 */
+	public Request encode(InputStream image, long size) throws IOException {
+		byte[] header = header(new long[] { 1 }, size + 4);
+		byte[] length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) size).array();
+		return new Request(new MultipartBody(CONTENT_TYPE).addSegment(header).addSegment(length)
+				.addSegment(image, size), header.length);
+	}
+
+	/**
+	 * @param image
+	 *            RGB image already at the model's input size
+	 * @return request with the pixels as a UINT8 or FP32 tensor
+	 * @throws IOException
+	 *            if the body cannot be built
+	 */
+	public Request encode(BufferedImage image) throws IOException {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int pixels = width * height;
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		byte[] tensor;
+		long[] shape;
+		if (UINT8.equals(datatype)) {
+			// HWC, the layout of TensorFlow image models
+			tensor = new byte[pixels * 3];
+			for (int i = 0; i < pixels; i++) {
+				tensor[i * 3] = (byte) (rgb[i] >> 16);
+				tensor[i * 3 + 1] = (byte) (rgb[i] >> 8);
+				tensor[i * 3 + 2] = (byte) rgb[i];
+			}
+			shape = new long[] { 1, height, width, 3 };
+		} else {
+			// CHW, the layout of PyTorch and ONNX image models
+			ByteBuffer buffer = ByteBuffer.allocate(pixels * 3 * 4).order(ByteOrder.LITTLE_ENDIAN);
+			for (int channel = 0; channel < 3; channel++) {
+				int shift = 16 - channel * 8;
+				for (int i = 0; i < pixels; i++) {
+					buffer.putFloat((((rgb[i] >> shift) & 0xff) / 255f - mean[channel]) / std[channel]);
+				}
+			}
+			tensor = buffer.array();
+			shape = new long[] { 1, 3, height, width };
+		}
+		byte[] header = header(shape, tensor.length);
+		return new Request(new MultipartBody(CONTENT_TYPE).addSegment(header).addSegment(tensor), header.length);
+	}
+
+	private byte[] header(long[] shape, long binarySize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try (JsonGenerator generator = FACTORY.createGenerator(out)) {
+			generator.writeStartObject();
+			generator.writeArrayFieldStart("inputs");
+			generator.writeStartObject();
+			generator.writeStringField("name", inputName);
+			generator.writeArrayFieldStart("shape");
+			for (long dimension : shape) {
+				generator.writeNumber(dimension);
+			}
+			generator.writeEndArray();
+			generator.writeStringField("datatype", datatype);
+			generator.writeObjectFieldStart("parameters");
+			generator.writeNumberField("binary_data_size", binarySize);
+			generator.writeEndObject();
+			generator.writeEndObject();
+			generator.writeEndArray();
+			if (outputName != null) {
+				generator.writeArrayFieldStart("outputs");
+				generator.writeStartObject();
+				generator.writeStringField("name", outputName);
+				generator.writeObjectFieldStart("parameters");
+				generator.writeBooleanField("binary_data", true);
+				generator.writeEndObject();
+				generator.writeEndObject();
+				generator.writeEndArray();
+			} else {
+				generator.writeObjectFieldStart("parameters");
+				generator.writeBooleanField("binary_data_output", true);
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param value
+	 *            Inference-Header-Content-Length of a response
+	 * @return the length, -1 if it is not a number
+	 */
+	public static int headerLength(String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Turns a binary response into JSON like
+	 * {"model_name":"resnet","outputs":[{"name":"OUTPUT__0","datatype":"FP32","shape":[1,1000],"top":[{"index":388,"score":0.95}]}]}.
+	 * With top k of 0 every value is in data instead, and BYTES outputs are always data as strings.
+	 * A response that is all JSON, or not a success, is returned as it is.
+	 *
+	 * @param results
+	 *            raw response
+	 * @return results with the JSON body, or the same results
+	 * @throws IOException
+	 *            if the header or the tensors are malformed
+	 */
+	public HTTPPostResults decode(HTTPPostResults results) throws IOException {
+		byte[] body = results == null ? null : results.getBody();
+		if (body == null || results.getInferenceHeaderLength() < 0
+				|| results.getStatusCode() < 200 || results.getStatusCode() >= 300) {
+			return results;
+		}
+		int headerLength = results.getInferenceHeaderLength();
+		if (headerLength > body.length) {
+			throw new IOException("Inference header of " + headerLength + " bytes is longer than the response");
+		}
+
+		String modelName = null;
+		String modelVersion = null;
+		List<Output> outputs = new ArrayList<Output>();
+		try (JsonParser parser = FACTORY.createParser(body, 0, headerLength)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Inference header is not a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("model_name".equals(field)) {
+					modelName = parser.getText();
+				} else if ("model_version".equals(field)) {
+					modelVersion = parser.getText();
+				} else if ("outputs".equals(field) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						outputs.add(output(parser, body));
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+
+		ByteBuffer tensors = ByteBuffer.wrap(body, headerLength, body.length - headerLength).slice()
+				.order(ByteOrder.LITTLE_ENDIAN);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try (JsonGenerator generator = FACTORY.createGenerator(out)) {
+			generator.writeStartObject();
+			if (modelName != null) {
+				generator.writeStringField("model_name", modelName);
+			}
+			if (modelVersion != null) {
+				generator.writeStringField("model_version", modelVersion);
+			}
+			generator.writeArrayFieldStart("outputs");
+			for (Output output : outputs) {
+				generator.writeStartObject();
+				generator.writeStringField("name", output.name);
+				generator.writeStringField("datatype", output.datatype);
+				generator.writeArrayFieldStart("shape");
+				for (long dimension : output.shape) {
+					generator.writeNumber(dimension);
+				}
+				generator.writeEndArray();
+				if (output.binarySize >= 0) {
+					if (output.binarySize > tensors.remaining()) {
+						throw new IOException("Output " + output.name + " is cut short");
+					}
+					ByteBuffer tensor = tensors.slice().order(ByteOrder.LITTLE_ENDIAN);
+					((Buffer) tensor).limit((int) output.binarySize);
+					((Buffer) tensors).position(tensors.position() + (int) output.binarySize);
+					write(generator, output, tensor);
+				} else if (output.data != null) {
+					generator.writeFieldName("data");
+					generator.writeRawValue(output.data);
+				}
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+		}
+
+		HTTPPostResults decoded = new HTTPPostResults(results);
+		decoded.setBody(out.toByteArray());
+		decoded.setContentType("application/json");
+		return decoded;
+	}
+
+	private static Output output(JsonParser parser, byte[] body) throws IOException {
+		Output output = new Output();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("name".equals(field)) {
+				output.name = parser.getText();
+			} else if ("datatype".equals(field)) {
+				output.datatype = parser.getText();
+			} else if ("shape".equals(field) && token == JsonToken.START_ARRAY) {
+				List<Long> shape = new ArrayList<Long>();
+				while (parser.nextToken() != JsonToken.END_ARRAY) {
+					shape.add(parser.getLongValue());
+				}
+				output.shape = new long[shape.size()];
+				for (int i = 0; i < output.shape.length; i++) {
+					output.shape[i] = shape.get(i);
+				}
+			} else if ("parameters".equals(field) && token == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String parameter = parser.getCurrentName();
+					parser.nextToken();
+					if ("binary_data_size".equals(parameter)) {
+						output.binarySize = parser.getLongValue();
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} else if ("data".equals(field)) {
+				output.data = JsonResultExtractor.value(parser, body);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (output.datatype == null) {
+			throw new IOException("Output " + output.name + " has no datatype");
+		}
+		return output;
+	}
+
+	private void write(JsonGenerator generator, Output output, ByteBuffer tensor) throws IOException {
+		if (BYTES.equals(output.datatype)) {
+			generator.writeArrayFieldStart("data");
+			while (tensor.remaining() >= 4) {
+				int length = tensor.getInt();
+				if (length < 0 || length > tensor.remaining()) {
+					throw new IOException("Output " + output.name + " has a malformed BYTES element");
+				}
+				generator.writeString(new String(tensor.array(), tensor.arrayOffset() + tensor.position(), length,
+						StandardCharsets.UTF_8));
+				((Buffer) tensor).position(tensor.position() + length);
+			}
+			generator.writeEndArray();
+			return;
+		}
+
+		int width = width(output.datatype);
+		if (width <= 0) {
+			throw new IOException("Output " + output.name + " has unknown datatype " + output.datatype);
+		}
+		int count = tensor.remaining() / width;
+		if (topK <= 0) {
+			generator.writeArrayFieldStart("data");
+			for (int i = 0; i < count; i++) {
+				number(generator, output.datatype, value(tensor, output.datatype, i * width));
+			}
+			generator.writeEndArray();
+			return;
+		}
+
+		// insertion into a short sorted array, k is a handful against thousands of classes
+		int k = Math.min(topK, count);
+		int[] indexes = new int[k];
+		double[] scores = new double[k];
+		Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			double score = value(tensor, output.datatype, i * width);
+			if (size == k && !(score > scores[k - 1])) {
+				continue;
+			}
+			int position = size < k ? size++ : k - 1;
+			while (position > 0 && scores[position - 1] < score) {
+				scores[position] = scores[position - 1];
+				indexes[position] = indexes[position - 1];
+				position--;
+			}
+			scores[position] = score;
+			indexes[position] = i;
+		}
+		generator.writeArrayFieldStart("top");
+		for (int i = 0; i < size; i++) {
+			generator.writeStartObject();
+			generator.writeNumberField("index", indexes[i]);
+			generator.writeFieldName("score");
+			number(generator, output.datatype, scores[i]);
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+	}
+
+	/**
+	 * bytes per element, 0 when the datatype is not numeric
+	 */
+	private static int width(String datatype) {
+		switch (datatype) {
+		case "BOOL":
+		case "UINT8":
+		case "INT8":
+			return 1;
+		case "UINT16":
+		case "INT16":
+		case "FP16":
+			return 2;
+		case "UINT32":
+		case "INT32":
+		case "FP32":
+			return 4;
+		case "UINT64":
+		case "INT64":
+		case "FP64":
+			return 8;
+		default:
+			return 0;
+		}
+	}
+
+	private static double value(ByteBuffer tensor, String datatype, int offset) {
+		switch (datatype) {
+		case "BOOL":
+		case "UINT8":
+			return tensor.get(offset) & 0xff;
+		case "INT8":
+			return tensor.get(offset);
+		case "UINT16":
+			return tensor.getShort(offset) & 0xffff;
+		case "INT16":
+			return tensor.getShort(offset);
+		case "FP16":
+			return halfToFloat(tensor.getShort(offset));
+		case "UINT32":
+			return tensor.getInt(offset) & 0xffffffffL;
+		case "INT32":
+			return tensor.getInt(offset);
+		case "FP32":
+			return tensor.getFloat(offset);
+		case "UINT64":
+		case "INT64":
+			return tensor.getLong(offset);
+		default:
+			return tensor.getDouble(offset);
+		}
+	}
+
+	/**
+	 * floats are written at their own precision so 0.95 does not come out as 0.949999988079071
+	 */
+	private static void number(JsonGenerator generator, String datatype, double value) throws IOException {
+		if ("FP32".equals(datatype) || "FP16".equals(datatype)) {
+			generator.writeNumber((float) value);
+		} else if ("FP64".equals(datatype)) {
+			generator.writeNumber(value);
+		} else {
+			generator.writeNumber((long) value);
+		}
+	}
+
+	private static float halfToFloat(short half) {
+		int bits = half & 0xffff;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >> 10) & 0x1f;
+		int mantissa = bits & 0x3ff;
+		if (exponent == 0x1f) {
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		if (exponent == 0) {
+			float subnormal = mantissa / 16777216f;
+			return sign == 0 ? subnormal : -subnormal;
+		}
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * A binary inference request, its body and the length of the JSON header that starts it.
+	 */
+	public static final class Request {
+
+		private final MultipartBody body;
+		private final int headerLength;
+
+		Request(MultipartBody body, int headerLength) {
+			this.body = body;
+			this.headerLength = headerLength;
+		}
+
+		public MultipartBody getBody() {
+			return body;
+		}
+
+		public int getHeaderLength() {
+			return headerLength;
+		}
+
+		/**
+		 * @param headers
+		 *            headers of the post
+		 * @return the headers with Inference-Header-Content-Length added
+		 */
+		public Header[] headers(Header[] headers) {
+			Header[] all = Arrays.copyOf(headers, headers.length + 1);
+			all[headers.length] = new BasicHeader(HEADER_LENGTH, String.valueOf(headerLength));
+			return all;
+		}
+	}
+}
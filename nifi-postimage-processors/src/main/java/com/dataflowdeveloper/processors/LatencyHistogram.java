@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in microseconds with log linear buckets, the layout HdrHistogram uses.  Values
+ * below 128 have a bucket each, above that every power of two is split into 64 buckets, so any
+ * recorded value is reported within 1.6% up to an hour.  Recording is a few atomic adds and never
+ * allocates, so it can run on the IO reactor threads for every post.
+ */
+public class LatencyHistogram {
+
+	/** buckets per power of two above the linear range */
+	private static final int SUB_BUCKETS = 64;
+
+	/** values with a bucket each */
+	private static final int LINEAR = SUB_BUCKETS * 2;
+
+	/** highest value tracked, larger values count as this */
+	public static final long MAX_MICROS = 3600L * 1000 * 1000;
+
+	private static final int BUCKETS = index(MAX_MICROS) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            latency to record, negative values count as 0
+	 */
+	public void record(long nanos) {
+		long micros = Math.min(MAX_MICROS, Math.max(0, nanos / 1000));
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long current = max.get();
+		while (micros > current && !max.compareAndSet(current, micros)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return a copy of the counts, later records do not change it
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			total += copy[i];
+		}
+		return new Snapshot(copy, total, sum.get(), max.get());
+	}
+
+	static int index(long micros) {
+		if (micros < LINEAR) {
+			return (int) micros;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - 6;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return highest value that lands in the bucket
+	 */
+	static long highestValue(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long subBucket = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Histogram counts at one moment.
+	 */
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return mean in milliseconds, 0 when nothing was recorded
+		 */
+		public double getMeanMillis() {
+			return count == 0 ? 0 : sum / (double) count / 1000;
+		}
+
+		/**
+		 * @return highest value recorded in milliseconds
+		 */
+		public double getMaxMillis() {
+			return max / 1000.0;
+		}
+
+		/**
+		 * @param percentile
+		 *            from 0 to 100
+		 * @return value at the percentile in milliseconds, 0 when nothing was recorded
+		 */
+		public double getPercentileMillis(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highestValue(i), max) / 1000.0;
+				}
+			}
+			return max / 1000.0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1fms p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms", count,
+					getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getPercentileMillis(99.9),
+					getMaxMillis());
+		}
+	}
+}
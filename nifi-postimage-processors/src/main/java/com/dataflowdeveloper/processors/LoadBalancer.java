@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads posts across the replicas in a comma separated URL list.  Replicas that keep failing
+ * are ejected for a while, then get a single probe post before they take traffic again.  When
+ * every replica is ejected the one due back soonest is used rather than failing outright.
+ *
+ * With adaptive concurrency on, each replica has a {@link ConcurrencyLimiter} and no replica is
+ * selected once all are at their limit, so the caller can leave the work queued.
+ */
+public class LoadBalancer {
+
+	/** round robin strategy */
+	public static final String ROUND_ROBIN = "round-robin";
+
+	/** fewest posts outstanding strategy */
+	public static final String LEAST_OUTSTANDING = "least-outstanding";
+
+	/** lowest moving average latency, weighted by posts outstanding */
+	public static final String LATENCY_WEIGHTED = "latency-weighted";
+
+	/** URL lists seen before the groups are dropped, in case the URL comes from expression language */
+	private static final int MAX_GROUPS = 1024;
+
+	/** replicas of one URL list */
+	private static final class Group {
+		final Endpoint[] endpoints;
+		final AtomicInteger next = new AtomicInteger();
+
+		Group(Endpoint[] endpoints) {
+			this.endpoints = endpoints;
+		}
+	}
+
+	private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+	private final String strategy;
+	private final int failuresToEject;
+	private final long ejectMillis;
+	private final int initialLimit;
+	private final int maxLimit;
+
+	/**
+	 *
+	 * @param strategy
+	 *            one of the strategy constants
+	 * @param failuresToEject
+	 *            consecutive failures that eject a replica
+	 * @param ejectMillis
+	 *            how long an ejected replica waits before it is probed
+	 * @param initialLimit
+	 *            starting adaptive limit on posts in flight per replica, 0 for no limit
+	 * @param maxLimit
+	 *            highest adaptive limit per replica
+	 */
+	public LoadBalancer(String strategy, int failuresToEject, long ejectMillis, int initialLimit, int maxLimit) {
+		this.strategy = strategy;
+		this.failuresToEject = failuresToEject;
+		this.ejectMillis = ejectMillis;
+		this.initialLimit = initialLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Picks the replica for the next post and counts it as outstanding.
+	 *
+	 * @param urls
+	 *            one URL or a comma separated list
+	 * @return the replica to post to, pass it to {@link #completed} or {@link #cancelled} when the post
+	 *            finishes, null when every replica is at its concurrency limit
+	 */
+	public Endpoint select(String urls) {
+		return select(urls, null);
+	}
+
+	/**
+	 * Picks a replica for a hedge, another one than the post it hedges went to when there is one.
+	 * Ejected replicas are not probed with hedges.
+	 *
+	 * @param urls
+	 *            one URL or a comma separated list
+	 * @param exclude
+	 *            replica to avoid, null for none
+	 * @return the replica, as from {@link #select(String)}
+	 */
+	public Endpoint select(String urls, Endpoint exclude) {
+		Group group = group(urls);
+		if (group.endpoints.length == 1) {
+			return group.endpoints[0].tryStart() ? group.endpoints[0] : null;
+		}
+		long now = System.currentTimeMillis();
+
+		// an ejected replica that is due back gets one probe before anything else
+		for (Endpoint endpoint : exclude == null ? group.endpoints : new Endpoint[0]) {
+			if (endpoint.tryProbe(now)) {
+				if (endpoint.tryStart()) {
+					return endpoint;
+				}
+				endpoint.abandonProbe();
+			}
+		}
+
+		// another task can take the last slot between choosing and starting, so try a few times
+		for (int attempt = 0; attempt < 3; attempt++) {
+			Endpoint selected = choose(group, exclude);
+			if (selected == null) {
+				return null;
+			}
+			if (selected.tryStart()) {
+				return selected;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param endpoint
+	 *            replica from {@link #select(String)}
+	 * @param latencyNanos
+	 *            how long the post took
+	 * @param failed
+	 *            true for a 5xx, a timeout or a connection failure
+	 * @param overloaded
+	 *            true when the server asked for less traffic, like a 429
+	 */
+	public void completed(Endpoint endpoint, long latencyNanos, boolean failed, boolean overloaded) {
+		endpoint.completed(latencyNanos, failed, overloaded, failuresToEject, ejectMillis);
+	}
+
+	/**
+	 * @param endpoint
+	 *            replica from {@link #select(String)} that was never posted to
+	 */
+	public void cancelled(Endpoint endpoint) {
+		endpoint.cancelled();
+	}
+
+	/**
+	 * @return every replica currently known
+	 */
+	public List<Endpoint> endpoints() {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for (Group group : groups.values()) {
+			for (Endpoint endpoint : group.endpoints) {
+				endpoints.add(endpoint);
+			}
+		}
+		return endpoints;
+	}
+
+	/**
+	 * @param urls
+	 *            one URL or a comma separated list
+	 * @return the replicas of the list
+	 */
+	public Endpoint[] endpoints(String urls) {
+		return group(urls).endpoints;
+	}
+
+	private Group group(String urls) {
+		Group group = groups.get(urls);
+		if (group == null) {
+			if (groups.size() >= MAX_GROUPS) {
+				groups.clear();
+			}
+			List<Endpoint> endpoints = new ArrayList<Endpoint>();
+			for (String url : urls.split(",")) {
+				if (!url.trim().isEmpty()) {
+					endpoints.add(new Endpoint(url.trim(),
+							initialLimit > 0 ? new ConcurrencyLimiter(initialLimit, maxLimit) : null));
+				}
+			}
+			if (endpoints.isEmpty()) {
+				throw new IllegalArgumentException("No URL in " + urls);
+			}
+			group = new Group(endpoints.toArray(new Endpoint[endpoints.size()]));
+			Group existing = groups.putIfAbsent(urls, group);
+			if (existing != null) {
+				group = existing;
+			}
+		}
+		return group;
+	}
+
+	/**
+	 * latency weighted by load, a replica with no latency yet is tried once before it is measured
+	 */
+	private static double latencyCost(Endpoint endpoint) {
+		double latency = endpoint.getLatencyEwma();
+		if (latency == 0) {
+			return endpoint.getOutstanding() == 0 ? 0 : Double.MAX_VALUE / 2;
+		}
+		return latency * (endpoint.getOutstanding() + 1);
+	}
+
+	private Endpoint choose(Group group, Endpoint exclude) {
+		Endpoint[] endpoints = group.endpoints;
+		Endpoint best = null;
+		double bestCost = Double.MAX_VALUE;
+		int start = group.next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < endpoints.length; i++) {
+			Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+			if (endpoint == exclude || !endpoint.isHealthy() || !endpoint.hasCapacity()) {
+				continue;
+			}
+			if (ROUND_ROBIN.equals(strategy)) {
+				return endpoint;
+			}
+			double cost = LEAST_OUTSTANDING.equals(strategy) ? endpoint.getOutstanding() : latencyCost(endpoint);
+			if (cost < bestCost) {
+				best = endpoint;
+				bestCost = cost;
+			}
+		}
+		if (best != null) {
+			return best;
+		}
+
+		// all ejected or full, fail open to the ejected replica due back first
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint != exclude && !endpoint.isHealthy() && endpoint.hasCapacity()
+					&& (best == null || endpoint.getEjectedUntil() < best.getEjectedUntil())) {
+				best = endpoint;
+			}
+		}
+		return best;
+	}
+}
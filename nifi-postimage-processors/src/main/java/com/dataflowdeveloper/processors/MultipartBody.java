@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.nio.FileContentEncoder;
+
+/**
+ * multipart/form-data body that is never held in memory.  The part headers are a few hundred
+ * bytes, the image content is copied from its stream as the socket accepts it, and a file backed
+ * stream is handed to the socket with {@link FileChannel#transferTo}.  The length is known up
+ * front so the request is sent with a Content-Length rather than chunked.
+ *
+ * A body can also be a run of raw segments with its own content type, like the JSON header and
+ * binary tensor of a KServe V2 inference request.
+ */
+public class MultipartBody {
+
+	private static final char[] BOUNDARY_CHARS =
+			"-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+	private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/** one run of bytes in the body */
+	private static final class Segment {
+		final byte[] bytes;
+		final InputStream stream;
+		final FileChannel channel;
+		final long offset;
+		final long length;
+		long sent;
+
+		Segment(byte[] bytes) {
+			this.bytes = bytes;
+			this.stream = null;
+			this.channel = null;
+			this.offset = 0;
+			this.length = bytes.length;
+		}
+
+		Segment(InputStream stream, long length) throws IOException {
+			this.bytes = null;
+			this.stream = stream;
+			this.length = length;
+			if (stream instanceof FileInputStream) {
+				this.channel = ((FileInputStream) stream).getChannel();
+				this.offset = channel.position();
+			} else {
+				this.channel = null;
+				this.offset = 0;
+			}
+		}
+
+		long remaining() {
+			return length - sent;
+		}
+	}
+
+	private final String boundary;
+	private final String contentType;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long contentLength;
+	private int current;
+
+	public MultipartBody() {
+		StringBuilder builder = new StringBuilder(32);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < 32; i++) {
+			builder.append(BOUNDARY_CHARS[random.nextInt(BOUNDARY_CHARS.length)]);
+		}
+		this.boundary = builder.toString();
+		this.contentType = null;
+	}
+
+	/**
+	 * @param contentType
+	 *            content type of a body of raw segments
+	 */
+	public MultipartBody(String contentType) {
+		this.boundary = null;
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Adds bytes to a body of raw segments.
+	 *
+	 * @param bytes
+	 *            bytes sent as they are
+	 * @return this
+	 */
+	public MultipartBody addSegment(byte[] bytes) {
+		add(new Segment(bytes));
+		return this;
+	}
+
+	/**
+	 * Adds a stream to a body of raw segments.  The stream is read, not closed, by the body.
+	 *
+	 * @param stream
+	 *            content sent as it is
+	 * @param length
+	 *            exact number of bytes the stream holds
+	 * @return this
+	 * @throws IOException
+	 *            if a file backed stream cannot report its position
+	 */
+	public MultipartBody addSegment(InputStream stream, long length) throws IOException {
+		add(new Segment(stream, length));
+		return this;
+	}
+
+	/**
+	 * Adds a file part.  The stream is read, not closed, by the body.
+	 *
+	 * @param fieldName
+	 *            form field name
+	 * @param fileName
+	 *            file name sent with the part
+	 * @param contentType
+	 *            content type of the part
+	 * @param stream
+	 *            content of the part
+	 * @param length
+	 *            exact number of bytes the stream holds
+	 * @return this
+	 * @throws IOException
+	 *            if a file backed stream cannot report its position
+	 */
+	public MultipartBody addPart(String fieldName, String fileName, String contentType, InputStream stream,
+								 long length) throws IOException {
+		StringBuilder header = new StringBuilder(128);
+		if (!segments.isEmpty()) {
+			header.append("\r\n");
+		}
+		header.append("--").append(boundary).append("\r\n")
+				.append("Content-Disposition: form-data; name=");
+		quote(header, "Field name", fieldName);
+		header.append("; filename=");
+		quote(header, "File name", fileName);
+		header.append("\r\nContent-Type: ").append(checkLine("Content type", contentType)).append("\r\n\r\n");
+		add(new Segment(header.toString().getBytes(StandardCharsets.UTF_8)));
+
+		add(new Segment(stream, length));
+		return this;
+	}
+
+	/**
+	 * Appends a quoted parameter value, with quotes and backslashes escaped the way browsers and
+	 * httpmime send them.
+	 */
+	private static void quote(StringBuilder header, String what, String value) {
+		header.append('"');
+		for (char c : String.valueOf(checkLine(what, value)).toCharArray()) {
+			if (c == '"' || c == '\\') {
+				header.append('\\');
+			}
+			header.append(c);
+		}
+		header.append('"');
+	}
+
+	/**
+	 * @param what
+	 *            what the value is, for the error
+	 * @param value
+	 *            text that goes into a part header
+	 * @return the value
+	 * @throws IllegalArgumentException
+	 *            if the value would break the header onto another line
+	 */
+	static String checkLine(String what, String value) {
+		if (value != null && (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0)) {
+			throw new IllegalArgumentException(what + " may not contain a line break");
+		}
+		return value;
+	}
+
+	/**
+	 * Ends the body, no parts can be added afterwards.
+	 *
+	 * @return this
+	 */
+	public MultipartBody finish() {
+		add(new Segment(CRLF));
+		add(new Segment(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII)));
+		return this;
+	}
+
+	private void add(Segment segment) {
+		segments.add(segment);
+		contentLength += segment.length;
+	}
+
+	public String getContentType() {
+		if (contentType != null) {
+			return contentType;
+		}
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return true once every byte has been read or transferred
+	 */
+	public boolean isComplete() {
+		while (current < segments.size() && segments.get(current).remaining() <= 0) {
+			current++;
+		}
+		return current >= segments.size();
+	}
+
+	/**
+	 * Fills the buffer with the next bytes of the body.
+	 *
+	 * @param dst
+	 *            heap buffer in write mode
+	 * @return bytes written to the buffer, -1 at the end of the body
+	 * @throws IOException
+	 *            if a stream fails or ends before its declared length
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (isComplete()) {
+			return -1;
+		}
+		int total = 0;
+		while (dst.hasRemaining() && !isComplete()) {
+			Segment segment = segments.get(current);
+			int count = (int) Math.min(dst.remaining(), segment.remaining());
+			if (segment.bytes != null) {
+				dst.put(segment.bytes, (int) segment.sent, count);
+			} else {
+				count = segment.stream.read(dst.array(), dst.arrayOffset() + dst.position(), count);
+				if (count < 0) {
+					throw new EOFException("Image content ended before its size");
+				}
+				((Buffer) dst).position(dst.position() + count);
+			}
+			segment.sent += count;
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Transfers the current part straight from its file to the encoder when it is file backed.
+	 *
+	 * @param encoder
+	 *            file aware encoder of the connection
+	 * @return bytes transferred, -1 if the current segment is not file backed
+	 * @throws IOException
+	 *            if the transfer fails
+	 */
+	public long transferTo(FileContentEncoder encoder) throws IOException {
+		if (isComplete()) {
+			return -1;
+		}
+		Segment segment = segments.get(current);
+		if (segment.channel == null) {
+			return -1;
+		}
+		long count = encoder.transfer(segment.channel, segment.offset + segment.sent, segment.remaining());
+		segment.sent += count;
+		return count;
+	}
+}
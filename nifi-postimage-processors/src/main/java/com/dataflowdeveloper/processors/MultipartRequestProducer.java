@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Streams a {@link MultipartBody} to the connection through one pooled buffer.  Content is only
+ * read when the socket can take more, so memory per request stays at one buffer.
+ */
+public class MultipartRequestProducer implements HttpAsyncRequestProducer {
+
+	private final HttpHost target;
+	private final HttpPost request;
+	private final MultipartBody body;
+	private final BufferPool bufferPool;
+	private ByteBuffer buffer;
+
+	/** System.nanoTime of each step, read by the response consumer */
+	private final long created = System.nanoTime();
+	private volatile long connected;
+	private volatile long sent;
+
+	/**
+	 *
+	 * @param uri
+	 *            where to post
+	 * @param body
+	 *            finished multipart body
+	 * @param bufferPool
+	 *            pool to borrow the transfer buffer from
+	 */
+	public MultipartRequestProducer(URI uri, MultipartBody body, BufferPool bufferPool) {
+		this.target = URIUtils.extractHost(uri);
+		if (this.target == null) {
+			throw new IllegalArgumentException("URL has no host " + uri);
+		}
+		this.body = body;
+		this.bufferPool = bufferPool;
+
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContentLength(body.getContentLength());
+		entity.setContentType(body.getContentType());
+		this.request = new HttpPost(uri);
+		this.request.setEntity(entity);
+	}
+
+	/**
+	 * @return the request, to add headers before it is executed
+	 */
+	public HttpPost getRequest() {
+		return request;
+	}
+
+	@Override
+	public HttpHost getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return when the post started
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return when a connection was ready for the request, 0 until then
+	 */
+	public long getConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return when the last byte of the request was sent, 0 until then
+	 */
+	public long getSent() {
+		return sent;
+	}
+
+	/**
+	 * @return bytes of the request body
+	 */
+	public long getContentLength() {
+		return body.getContentLength();
+	}
+
+	@Override
+	public HttpRequest generateRequest() {
+		// only called once a connection is leased and connected
+		connected = System.nanoTime();
+		return request;
+	}
+
+	@Override
+	public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+		if (buffer == null) {
+			buffer = bufferPool.acquire();
+			((Buffer) buffer).flip();
+		}
+		for (;;) {
+			if (buffer.hasRemaining()) {
+				encoder.write(buffer);
+				if (buffer.hasRemaining()) {
+					return;
+				}
+			}
+			if (encoder instanceof FileContentEncoder) {
+				long transferred = body.transferTo((FileContentEncoder) encoder);
+				if (transferred == 0) {
+					return;
+				}
+				if (transferred > 0) {
+					continue;
+				}
+			}
+			((Buffer) buffer).clear();
+			int read = body.read(buffer);
+			((Buffer) buffer).flip();
+			if (read < 0) {
+				encoder.complete();
+				// only returned to the pool from the IO thread once nothing else can touch it
+				bufferPool.release(buffer);
+				buffer = null;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void requestCompleted(HttpContext context) {
+		sent = System.nanoTime();
+	}
+
+	@Override
+	public void failed(Exception ex) {
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public void resetRequest() {
+	}
+
+	@Override
+	public void close() {
+		// a cancelled exchange may close from another thread while the IO thread still holds the
+		// buffer, so it is dropped rather than returned to the pool
+		buffer = null;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Bearer tokens from an OAuth2 client credentials grant, kept in memory.  Posts take the cached
+ * token without waiting.  Once a token is past its refresh point a new one is fetched in the
+ * background while the old one is still used, and only one fetch is ever in flight, so concurrent
+ * tasks never hit the token endpoint together.  Only when there is no usable token do posts wait,
+ * all of them on the same fetch.
+ */
+public class OAuth2TokenProvider {
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	/** wait after a failed refresh before trying again while the old token lasts */
+	private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final Header[] FORM = new Header[] {
+			new BasicHeader("Content-Type", "application/x-www-form-urlencoded"),
+			new BasicHeader("Accept", "application/json") };
+
+	/** a token and when to replace it */
+	private static final class Token {
+		final Header authorization;
+		final long refreshAt;
+		final long expiresAt;
+
+		Token(Header authorization, long refreshAt, long expiresAt) {
+			this.authorization = authorization;
+			this.refreshAt = refreshAt;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final HTTPPostUtility postUtility;
+	private final String tokenUrl;
+	private final Header[] headers;
+	private final byte[] form;
+	private final long refreshAheadNanos;
+
+	private volatile Token token;
+	private final AtomicReference<CompletableFuture<Token>> refreshing = new AtomicReference<CompletableFuture<Token>>();
+
+	/**
+	 *
+	 * @param postUtility
+	 *            client the token requests go through
+	 * @param tokenUrl
+	 *            token endpoint
+	 * @param clientId
+	 *            client id
+	 * @param clientSecret
+	 *            client secret, sent with basic auth
+	 * @param scope
+	 *            space separated scopes, may be null
+	 * @param refreshAheadMillis
+	 *            how long before expiry to fetch the next token, at most half its lifetime
+	 */
+	public OAuth2TokenProvider(HTTPPostUtility postUtility, String tokenUrl, String clientId, String clientSecret,
+							   String scope, long refreshAheadMillis) {
+		this.postUtility = postUtility;
+		this.tokenUrl = tokenUrl;
+		this.headers = new Header[] { FORM[0], FORM[1],
+				PostRequestTemplate.basicAuthorization(encode(clientId), encode(clientSecret)) };
+		String form = "grant_type=client_credentials";
+		if (scope != null && scope.trim().length() > 0) {
+			form += "&scope=" + encode(scope.trim());
+		}
+		this.form = form.getBytes(StandardCharsets.US_ASCII);
+		this.refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadMillis);
+	}
+
+	/**
+	 * @return the Authorization header, completed at once while a token is cached
+	 */
+	public CompletableFuture<Header> authorization() {
+		final Token current = token;
+		final long now = System.nanoTime();
+		if (current != null && now - current.expiresAt < 0) {
+			if (now - current.refreshAt >= 0) {
+				refresh();
+			}
+			return CompletableFuture.completedFuture(current.authorization);
+		}
+		return refresh().thenApply(new Function<Token, Header>() {
+			@Override
+			public Header apply(Token token) {
+				return token.authorization;
+			}
+		});
+	}
+
+	/**
+	 * Drops the token, like one the server answered 401 to, so the next post fetches another.
+	 *
+	 * @param authorization
+	 *            header the rejected post was sent with
+	 */
+	public void invalidate(Header authorization) {
+		final Token current = token;
+		if (current != null && current.authorization == authorization) {
+			token = null;
+		}
+	}
+
+	/**
+	 * the fetch in flight, or a new one
+	 */
+	private CompletableFuture<Token> refresh() {
+		while (true) {
+			final CompletableFuture<Token> pending = refreshing.get();
+			if (pending != null) {
+				return pending;
+			}
+			final CompletableFuture<Token> fetch = new CompletableFuture<Token>();
+			if (!refreshing.compareAndSet(null, fetch)) {
+				continue;
+			}
+			final CompletableFuture<HTTPPostResults> sent;
+			try {
+				sent = postUtility.send(tokenUrl, new MultipartBody(FORM[0].getValue()).addSegment(form), headers);
+			} catch (RuntimeException e) {
+				// a bad token URL or a closed client, the waiting posts fail rather than hang
+				failed(fetch, new IOException("Token request failed " + e.getLocalizedMessage(), e));
+				return fetch;
+			}
+			sent.whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+				@Override
+				public void accept(HTTPPostResults results, Throwable error) {
+					try {
+						if (error != null) {
+							throw new IOException("Token request failed " + error.getLocalizedMessage(), error);
+						}
+						final Token fetched = parse(results);
+						token = fetched;
+						refreshing.set(null);
+						fetch.complete(fetched);
+					} catch (IOException e) {
+						failed(fetch, e);
+					}
+				}
+			});
+			return fetch;
+		}
+	}
+
+	private void failed(CompletableFuture<Token> fetch, IOException e) {
+		// keep a token that still works, but do not ask again on every post
+		final Token current = token;
+		if (current != null) {
+			token = new Token(current.authorization, System.nanoTime() + RETRY_NANOS, current.expiresAt);
+		}
+		refreshing.set(null);
+		fetch.completeExceptionally(e);
+	}
+
+	private Token parse(HTTPPostResults results) throws IOException {
+		if (results == null || results.getStatusCode() < 200 || results.getStatusCode() > 299 || results.getBody() == null) {
+			throw new IOException("Token request failed with status "
+					+ (results == null ? "none" : String.valueOf(results.getStatusCode())));
+		}
+		final long now = System.nanoTime();
+		String accessToken = null;
+		String tokenType = "Bearer";
+		long expiresIn = -1;
+		try (JsonParser parser = FACTORY.createParser(results.getBody())) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Token response is not a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("access_token".equals(field)) {
+					accessToken = parser.getValueAsString();
+				} else if ("token_type".equals(field) && parser.getValueAsString() != null) {
+					// bearer is case insensitive on the wire, servers expect it capitalized
+					tokenType = "bearer".equalsIgnoreCase(parser.getValueAsString()) ? "Bearer" : parser.getValueAsString();
+				} else if ("expires_in".equals(field)) {
+					expiresIn = parser.getValueAsLong(-1);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		if (accessToken == null || accessToken.isEmpty()) {
+			throw new IOException("Token response has no access_token");
+		}
+		final Header authorization = new BasicHeader("Authorization", tokenType + " " + accessToken);
+		if (expiresIn <= 0) {
+			// no lifetime, keep it until the server rejects it
+			return new Token(authorization, Long.MAX_VALUE / 2 + now, Long.MAX_VALUE / 2 + now);
+		}
+		final long lifetime = TimeUnit.SECONDS.toNanos(expiresIn);
+		return new Token(authorization, now + Math.max(lifetime / 2, lifetime - refreshAheadNanos), now + lifetime);
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 64 bit difference hash of an image.  The image is shrunk to 9 by 8 grey cells and each bit says
+ * whether a cell is darker than its right neighbour, so recompression, noise and small changes in
+ * light flip few bits while a different scene flips about half.  Compare hashes with
+ * {@link #distance(long, long)}.
+ */
+public final class PerceptualHash {
+
+	private static final int COLUMNS = 9;
+	private static final int ROWS = 8;
+
+	/** every cell averages a block of pixels, so a single noisy pixel does not flip a bit */
+	private static final int BLOCK = 8;
+
+	private static final ImageTransformer DECODER =
+			new ImageTransformer(COLUMNS * BLOCK, ROWS * BLOCK, ImageTransformer.FORMAT_PNG, 1f);
+
+	private PerceptualHash() {
+	}
+
+	/**
+	 * @param in
+	 *            encoded image, left open
+	 * @return the hash, decoded with subsampling so a large photo costs little more than a thumbnail
+	 * @throws IOException
+	 *            if the image cannot be decoded
+	 */
+	public static long hash(InputStream in) throws IOException {
+		return hash(DECODER.resize(in));
+	}
+
+	/**
+	 * @param image
+	 *            image of any size
+	 * @return the hash
+	 */
+	public static long hash(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		long[] cells = new long[COLUMNS * ROWS];
+		int[] counts = new int[COLUMNS * ROWS];
+		for (int y = 0; y < height; y++) {
+			int row = y * ROWS / height;
+			for (int x = 0; x < width; x++) {
+				int pixel = rgb[y * width + x];
+				int cell = row * COLUMNS + x * COLUMNS / width;
+				// luma, weighted the way the eye sees brightness
+				cells[cell] += 299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff);
+				counts[cell]++;
+			}
+		}
+		long hash = 0;
+		for (int row = 0; row < ROWS; row++) {
+			for (int column = 0; column < COLUMNS - 1; column++) {
+				int cell = row * COLUMNS + column;
+				hash <<= 1;
+				if (cells[cell] * Math.max(1, counts[cell + 1]) < cells[cell + 1] * Math.max(1, counts[cell])) {
+					hash |= 1;
+				}
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return bits that differ, 0 for the same picture up to 64
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * @return the hash as 16 hex digits
+	 */
+	public static String toHex(long hash) {
+		String hex = Long.toHexString(hash);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+}
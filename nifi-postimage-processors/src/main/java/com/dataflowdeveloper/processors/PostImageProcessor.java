@@ -17,39 +17,92 @@
 package com.dataflowdeveloper.processors;
 
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.DynamicRelationship;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
+import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
+import org.apache.http.nio.reactor.IOReactorException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Tags({"post images"})
 @CapabilityDescription("Post Image to HTTP")
 @SeeAlso({})
 @ReadsAttributes({@ReadsAttribute(attribute="url, fieldname, imagename, imagetype, headername, headervalue, basicusername, basicuserpassword", description="Need URL, Field Name, Image Name and Image Type.  Headers and User information is additional.")})
-@WritesAttributes({@WritesAttribute(attribute="post.results, post.header, post.status, post.statuscode", description="Output result of HTTP Post call.")})
+@WritesAttributes({@WritesAttribute(attribute="post.results, post.header, post.status, post.statuscode", description="Output result of HTTP Post call.  "
+		+ "post.results is not written when the result destination is content, the response replaces the flowfile content instead, "
+		+ "or when nothing was found at the result path."),
+		@WritesAttribute(attribute="post.cache.hit", description="true when the result came from the result cache, only written when caching is on"),
+		@WritesAttribute(attribute="post.retry.count, post.retry.at", description="Retries so far and when the next one is due, on flowfiles routed to retry"),
+		@WritesAttribute(attribute="post.error", description="Why the post failed, on flowfiles routed to failure without a response"),
+		@WritesAttribute(attribute="post.latency.ms", description="Milliseconds from the post starting to the whole response being read, 0 for near duplicates "
+				+ "that reuse results, not written for cache hits"),
+		@WritesAttribute(attribute="post.route", description="Routing rule the flowfile matched, each match goes to its own relationship"),
+		@WritesAttribute(attribute="post.phash, post.duplicate.distance", description="Perceptual hash of the image when near duplicates "
+				+ "are suppressed, and how many bits it differs from the recent frame it duplicates")})
+@DynamicProperty(name="Relationship name", value="Routing rule like giant panda >= 0.8 or top1 in cat, dog",
+		description="Routes successful posts whose predictions match the rule to the relationship of the same name.  "
+				+ "A flowfile matching several rules is cloned to each, one matching none goes to success")
+@DynamicRelationship(name="Name from dynamic property", description="Successful posts matching the rule of the dynamic property")
 public class PostImageProcessor extends AbstractProcessor {
 
 	/** output attribute name post.results will contain JSON **/
@@ -64,9 +117,46 @@ public class PostImageProcessor extends AbstractProcessor {
 	/** output attribute name post.statuscode will contain JSON **/
 	public static final String ATTRIBUTE_OUTPUT_STATUS_CODE = "post.statuscode";
 	
+	/** output attribute name post.cache.hit is true when the results came from the cache **/
+	public static final String ATTRIBUTE_CACHE_HIT = "post.cache.hit";
+
+	/** output attribute name post.retry.count is the retries the flowfile has had **/
+	public static final String ATTRIBUTE_RETRY_COUNT = "post.retry.count";
+
+	/** output attribute name post.retry.at is the epoch milliseconds the next retry is due **/
+	public static final String ATTRIBUTE_RETRY_AT = "post.retry.at";
+
+	/** output attribute name post.error is why the post failed **/
+	public static final String ATTRIBUTE_ERROR = "post.error";
+
+	/** output attribute name post.latency.ms is how long the post took **/
+	public static final String ATTRIBUTE_LATENCY = "post.latency.ms";
+
+	/** output attribute name post.route is the routing rule the flowfile matched **/
+	public static final String ATTRIBUTE_ROUTE = "post.route";
+
+	/** output attribute name post.phash is the perceptual hash of the image in hex **/
+	public static final String ATTRIBUTE_PHASH = "post.phash";
+
+	/** output attribute name post.duplicate.distance is how many hash bits differ from the recent frame **/
+	public static final String ATTRIBUTE_DUPLICATE_DISTANCE = "post.duplicate.distance";
+
+	/** counters adjusted per trigger, by status class with posts that got no response first, then bytes */
+	private static final String[] COUNTERS = { "post.errors", "post.status.1xx", "post.status.2xx", "post.status.3xx",
+			"post.status.4xx", "post.status.5xx", "post.bytes.sent", "post.bytes.received" };
+	private static final int COUNTER_BYTES_SENT = 6;
+	private static final int COUNTER_BYTES_RECEIVED = 7;
+
+	/** rate limit keys, like API keys, tracked before idle ones are forgotten */
+	private static final int RATE_LIMIT_KEYS = 10000;
+
+	/** scheduled processors by identifier, so a reporting task can read their metrics */
+	private static final ConcurrentMap<String, PostImageProcessor> SCHEDULED = new ConcurrentHashMap<String, PostImageProcessor>();
+
 	/** url http://127.0.0.1:9999/squeezenet/predict  */
 	public static final PropertyDescriptor URL_NAME = new PropertyDescriptor.Builder().name("url")
-			.description("URL Name like http://127.0.0.1:9999/squeezenet/predict").required(true)
+			.description("URL Name like http://127.0.0.1:9999/squeezenet/predict, or a comma separated list of "
+					+ "model server replicas to spread the posts across").required(true)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
 
 	/** fieldname "data" */
@@ -104,23 +194,567 @@ public class PostImageProcessor extends AbstractProcessor {
 
 	/** basic password toast */
 	public static final PropertyDescriptor BASIC_PASSWORD = new PropertyDescriptor.Builder().name("basicpassword")
-			.description("basic http password like iscool").required(false)
+			.description("basic http password like iscool").required(false).sensitive(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
 			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
 
+	/** OAuth2 token endpoint, turns on bearer tokens */
+	public static final PropertyDescriptor OAUTH2_TOKEN_URL = new PropertyDescriptor.Builder().name("oauth2tokenurl")
+			.description("OAuth2 token endpoint like https://auth.example.com/oauth2/token, posts carry a bearer token "
+					+ "from a client credentials grant that is cached and refreshed before it expires").required(false)
+			.addValidator(StandardValidators.URL_VALIDATOR).build();
+
+	/** OAuth2 client id */
+	public static final PropertyDescriptor OAUTH2_CLIENT_ID = new PropertyDescriptor.Builder().name("oauth2clientid")
+			.description("OAuth2 client id").required(false)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	/** OAuth2 client secret */
+	public static final PropertyDescriptor OAUTH2_CLIENT_SECRET = new PropertyDescriptor.Builder().name("oauth2clientsecret")
+			.description("OAuth2 client secret").required(false).sensitive(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	/** OAuth2 scope */
+	public static final PropertyDescriptor OAUTH2_SCOPE = new PropertyDescriptor.Builder().name("oauth2scope")
+			.description("Space separated OAuth2 scopes to ask for, if the token endpoint needs them").required(false)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	/** fetch the next token this long before the current one expires */
+	public static final PropertyDescriptor OAUTH2_REFRESH_AHEAD = new PropertyDescriptor.Builder().name("oauth2refreshahead")
+			.description("How long before a token expires to fetch the next one in the background, at most half its lifetime")
+			.required(true).defaultValue("60 secs").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** number of flowfiles pulled and committed together per trigger */
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("batchsize")
+			.description("Number of flowfiles pulled from the queue, posted and committed together per trigger").required(true)
+			.defaultValue("1").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** max concurrent posts */
+	public static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor.Builder().name("maxinflight")
+			.description("Maximum number of HTTP posts in flight at once across all tasks of this processor").required(true)
+			.defaultValue("10").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** connection pool size */
+	public static final PropertyDescriptor MAX_CONNECTIONS = new PropertyDescriptor.Builder().name("maxconnections")
+			.description("Maximum number of pooled HTTP connections").required(true)
+			.defaultValue("100").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** connection pool size per host */
+	public static final PropertyDescriptor MAX_CONNECTIONS_PER_ROUTE = new PropertyDescriptor.Builder().name("maxconnectionsperroute")
+			.description("Maximum number of pooled HTTP connections to a single host").required(true)
+			.defaultValue("20").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** connect timeout */
+	public static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder().name("connecttimeout")
+			.description("Time allowed to connect to the server like 90 secs").required(true)
+			.defaultValue("90 secs").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** read timeout */
+	public static final PropertyDescriptor READ_TIMEOUT = new PropertyDescriptor.Builder().name("readtimeout")
+			.description("Time allowed without data from the server before the post fails like 180 secs").required(true)
+			.defaultValue("180 secs").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** largest array the JVM will allocate, responses and hedged images are read into one */
+	static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/** largest response body read */
+	public static final PropertyDescriptor MAX_RESPONSE_SIZE = new PropertyDescriptor.Builder().name("maxresponsesize")
+			.description("Largest response body read into memory like 64 MB, a post whose response is bigger fails").required(true)
+			.defaultValue("64 MB").addValidator(StandardValidators.createDataSizeBoundsValidator(1, MAX_ARRAY_SIZE)).build();
+
+	/** keep alive */
+	public static final PropertyDescriptor KEEP_ALIVE = new PropertyDescriptor.Builder().name("keepalive")
+			.description("How long an idle connection is kept in the pool, unless the server asks for less").required(true)
+			.defaultValue("60 secs").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** connections opened to each replica on schedule */
+	public static final PropertyDescriptor WARM_CONNECTIONS = new PropertyDescriptor.Builder().name("warmconnections")
+			.description("Connections opened to each replica when the processor starts, with a HEAD request each, so the "
+					+ "first posts do not wait on DNS, TCP and TLS handshakes.  Only URLs without expressions are warmed up.  "
+					+ "0 opens connections as posts need them").required(true)
+			.defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	/** how long host addresses are kept */
+	public static final PropertyDescriptor DNS_CACHE_TTL = new PropertyDescriptor.Builder().name("dnscachettl")
+			.description("How long the addresses of a host are kept before they are looked up again like 60 secs, "
+					+ "a failed lookup keeps the old addresses.  0 secs leaves lookups to the JVM").required(true)
+			.defaultValue("60 secs").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** protocol values */
+	public static final String HTTP_1_1 = "1.1";
+	public static final String HTTP_2 = "2";
+
+	/** HTTP version */
+	public static final PropertyDescriptor HTTP_VERSION = new PropertyDescriptor.Builder().name("httpversion")
+			.description("1.1 uses a pool with one connection per post in flight.  2 multiplexes the posts to a host over "
+					+ "one connection, negotiated with ALPN for https and as h2c with prior knowledge for http, "
+					+ "the server has to support HTTP/2.  ALPN needs Java 8u252 or later").required(true)
+			.allowableValues(HTTP_1_1, HTTP_2).defaultValue(HTTP_1_1).build();
+
+	/** wire format values */
+	public static final String WIRE_MULTIPART = "multipart";
+	public static final String WIRE_KSERVE_V2 = "kserve-v2";
+
+	/** wire format */
+	public static final PropertyDescriptor WIRE_FORMAT = new PropertyDescriptor.Builder().name("wireformat")
+			.description("multipart posts the image as a form upload.  kserve-v2 speaks the KServe V2 inference protocol "
+					+ "with the binary data extension, as Triton does, a JSON header and the raw input tensor with the binary "
+					+ "outputs turned into JSON of the top scores.  The URL is the model's infer endpoint like "
+					+ "http://triton:8000/v2/models/resnet/infer").required(true)
+			.allowableValues(WIRE_MULTIPART, WIRE_KSERVE_V2).defaultValue(WIRE_MULTIPART).build();
+
+	/** model input */
+	public static final PropertyDescriptor TENSOR_INPUT = new PropertyDescriptor.Builder().name("tensorinput")
+			.description("Name of the model input the image goes to with kserve-v2").required(true)
+			.defaultValue("INPUT__0").addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	/** model output */
+	public static final PropertyDescriptor TENSOR_OUTPUT = new PropertyDescriptor.Builder().name("tensoroutput")
+			.description("Name of the model output asked for with kserve-v2, empty for every output").required(false)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	/** input datatype */
+	public static final PropertyDescriptor TENSOR_DATATYPE = new PropertyDescriptor.Builder().name("tensordatatype")
+			.description("BYTES sends the encoded image for the model's own pipeline to decode.  UINT8 decodes it here into "
+					+ "[1,H,W,3] pixels and FP32 into normalized [1,3,H,W] pixels at the resize width and height, "
+					+ "so the server runs the model straight away").required(true)
+			.allowableValues(KServeV2Codec.BYTES, KServeV2Codec.UINT8, KServeV2Codec.FP32)
+			.defaultValue(KServeV2Codec.BYTES).build();
+
+	/** checks three comma separated numbers like 0.485,0.456,0.406 */
+	private static final Validator CHANNELS_VALIDATOR = new Validator() {
+		@Override
+		public ValidationResult validate(String subject, String input, ValidationContext context) {
+			String explanation = null;
+			try {
+				channels(input);
+			} catch (IllegalArgumentException e) {
+				explanation = e.getMessage();
+			}
+			return new ValidationResult.Builder().subject(subject).input(input)
+					.valid(explanation == null).explanation(explanation).build();
+		}
+	};
+
+	/** FP32 normalization mean */
+	public static final PropertyDescriptor TENSOR_MEAN = new PropertyDescriptor.Builder().name("tensormean")
+			.description("Red, green and blue mean subtracted from FP32 pixels scaled to 0 to 1").required(true)
+			.defaultValue("0.485,0.456,0.406").addValidator(CHANNELS_VALIDATOR).build();
+
+	/** FP32 normalization deviation */
+	public static final PropertyDescriptor TENSOR_STD = new PropertyDescriptor.Builder().name("tensorstd")
+			.description("Red, green and blue standard deviation FP32 pixels are divided by").required(true)
+			.defaultValue("0.229,0.224,0.225").addValidator(CHANNELS_VALIDATOR).build();
+
+	/** scores kept from each output */
+	public static final PropertyDescriptor TENSOR_TOP_K = new PropertyDescriptor.Builder().name("tensortopk")
+			.description("Highest scores kept from each numeric output with their indexes, 0 keeps every value").required(true)
+			.defaultValue("5").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	/** checks a JSON path like $.prediction[0] */
+	private static final Validator PATH_VALIDATOR = new Validator() {
+		@Override
+		public ValidationResult validate(String subject, String input, ValidationContext context) {
+			String explanation = null;
+			try {
+				JsonResultExtractor.parsePath(input);
+			} catch (IllegalArgumentException e) {
+				explanation = e.getMessage();
+			}
+			return new ValidationResult.Builder().subject(subject).input(input)
+					.valid(explanation == null).explanation(explanation).build();
+		}
+	};
+
+	/** result destination values */
+	public static final String DESTINATION_ATTRIBUTE = "attribute";
+	public static final String DESTINATION_CONTENT = "content";
+	public static final String DESTINATION_BOTH = "both";
+
+	/** where the response goes */
+	public static final PropertyDescriptor RESULT_DESTINATION = new PropertyDescriptor.Builder().name("resultdestination")
+			.description("Where the response goes.  attribute puts the extracted result in post.results, content replaces the "
+					+ "flowfile content with the response body, both does each").required(true)
+			.allowableValues(DESTINATION_ATTRIBUTE, DESTINATION_CONTENT, DESTINATION_BOTH)
+			.defaultValue(DESTINATION_ATTRIBUTE).build();
+
+	/** path of the result put in post.results */
+	public static final PropertyDescriptor RESULT_PATH = new PropertyDescriptor.Builder().name("resultpath")
+			.description("JSON path of the value put in post.results like $.prediction[0].  "
+					+ "Leave empty for the last element of the response.  With several images per request the path "
+					+ "is applied to each image's element of the batch result").required(false)
+			.addValidator(PATH_VALIDATOR).build();
+
+	/** predictions the routing rules read */
+	public static final PropertyDescriptor ROUTE_PATH = new PropertyDescriptor.Builder().name("routepath")
+			.description("JSON path of the predictions the routing rules read, an array of objects with a label and a score "
+					+ "or an object of label to score.  Like $.outputs[0].top for kserve-v2.  With several images per "
+					+ "request the path is applied to each image's element of the batch result").required(true)
+			.defaultValue("$.prediction[0]").addValidator(PATH_VALIDATOR).build();
+
+	/** label of a prediction */
+	public static final PropertyDescriptor ROUTE_LABEL_FIELD = new PropertyDescriptor.Builder().name("routelabelfield")
+			.description("Field of a prediction holding its label, like index for kserve-v2").required(true)
+			.defaultValue("class").addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	/** score of a prediction */
+	public static final PropertyDescriptor ROUTE_SCORE_FIELD = new PropertyDescriptor.Builder().name("routescorefield")
+			.description("Field of a prediction holding its score, like score for kserve-v2").required(true)
+			.defaultValue("probability").addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	/** checks a routing rule */
+	private static final Validator RULE_VALIDATOR = new Validator() {
+		@Override
+		public ValidationResult validate(String subject, String input, ValidationContext context) {
+			String explanation = null;
+			try {
+				RoutingRules.validate(input);
+			} catch (IllegalArgumentException e) {
+				explanation = e.getMessage();
+			}
+			return new ValidationResult.Builder().subject(subject).input(input)
+					.valid(explanation == null).explanation(explanation).build();
+		}
+	};
+
+	/** in memory result cache size */
+	public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor.Builder().name("resultcachesize")
+			.description("Number of results kept in memory keyed by a hash of the image, URL and field name.  "
+					+ "Identical images reuse the cached result instead of posting.  0 disables the in memory cache").required(true)
+			.defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	/** result cache time to live */
+	public static final PropertyDescriptor CACHE_TTL = new PropertyDescriptor.Builder().name("resultcachettl")
+			.description("How long a cached result is reused like 10 mins").required(true)
+			.defaultValue("10 mins").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** shared result cache */
+	public static final PropertyDescriptor DISTRIBUTED_CACHE = new PropertyDescriptor.Builder().name("distributedresultcache")
+			.description("Distributed map cache that shares cached results across the cluster, used with or without the in memory cache")
+			.required(false).identifiesControllerService(DistributedMapCacheClient.class).build();
+
+	/** share one post between identical images */
+	public static final PropertyDescriptor COALESCE = new PropertyDescriptor.Builder().name("coalescerequests")
+			.description("When true, identical images posted to the same URL at the same time share a single post "
+					+ "and every waiting flowfile gets its results").required(true)
+			.allowableValues("true", "false").defaultValue("false").build();
+
+	/** near duplicate values */
+	public static final String DEDUPE_OFF = "off";
+	public static final String DEDUPE_REUSE = "reuse";
+	public static final String DEDUPE_ROUTE = "route";
+
+	/** near duplicate suppression */
+	public static final PropertyDescriptor DEDUPE = new PropertyDescriptor.Builder().name("dedupe")
+			.description("Suppresses frames that look like a recent frame of the same source, as a fixed camera sends.  "
+					+ "A perceptual hash of each image is compared with the recent frames, reuse gives a near duplicate "
+					+ "the results of that frame's post, route sends it to duplicate without a post.  Only single image "
+					+ "posts are checked").required(true)
+			.allowableValues(DEDUPE_OFF, DEDUPE_REUSE, DEDUPE_ROUTE).defaultValue(DEDUPE_OFF).build();
+
+	/** source of a frame */
+	public static final PropertyDescriptor DEDUPE_SOURCE = new PropertyDescriptor.Builder().name("dedupesource")
+			.description("Source frames are compared within, like ${camera.id}.  Empty compares every frame with every other")
+			.required(false).expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	/** hash bits that may differ */
+	public static final PropertyDescriptor DEDUPE_DISTANCE = new PropertyDescriptor.Builder().name("dedupedistance")
+			.description("Most of the 64 hash bits that may differ for a frame to be a near duplicate, 0 for the same picture "
+					+ "and around 10 for small changes in the scene").required(true)
+			.defaultValue("4").addValidator(StandardValidators.createLongValidator(0, 64, true)).build();
+
+	/** recent frames per source */
+	public static final PropertyDescriptor DEDUPE_WINDOW = new PropertyDescriptor.Builder().name("dedupewindow")
+			.description("Recent frames of each source a frame is compared with").required(true)
+			.defaultValue("16").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** sources kept */
+	public static final PropertyDescriptor DEDUPE_SOURCES = new PropertyDescriptor.Builder().name("dedupesources")
+			.description("Sources whose recent frames are kept, the least recently seen is forgotten first").required(true)
+			.defaultValue("1000").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** how long a frame is matched */
+	public static final PropertyDescriptor DEDUPE_TTL = new PropertyDescriptor.Builder().name("dedupettl")
+			.description("How long a frame's results are reused for near duplicates").required(true)
+			.defaultValue("1 min").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** how posts are spread across replicas */
+	public static final PropertyDescriptor LOAD_BALANCING = new PropertyDescriptor.Builder().name("loadbalancing")
+			.description("How posts are spread when the URL lists several replicas.  round-robin takes turns, "
+					+ "least-outstanding picks the replica with the fewest posts in flight, latency-weighted picks the "
+					+ "lowest moving average latency times posts in flight").required(true)
+			.allowableValues(LoadBalancer.ROUND_ROBIN, LoadBalancer.LEAST_OUTSTANDING, LoadBalancer.LATENCY_WEIGHTED)
+			.defaultValue(LoadBalancer.LEAST_OUTSTANDING).build();
+
+	/** failures before a replica is ejected */
+	public static final PropertyDescriptor EJECT_AFTER_FAILURES = new PropertyDescriptor.Builder().name("ejectafterfailures")
+			.description("Consecutive 5xx responses, timeouts or connection failures that eject a replica").required(true)
+			.defaultValue("3").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** how long a replica stays ejected */
+	public static final PropertyDescriptor EJECT_DURATION = new PropertyDescriptor.Builder().name("ejectduration")
+			.description("How long an ejected replica gets no posts before a single probe post checks it again").required(true)
+			.defaultValue("30 secs").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** adapt posts in flight to each replica's latency */
+	public static final PropertyDescriptor ADAPTIVE_CONCURRENCY = new PropertyDescriptor.Builder().name("adaptiveconcurrency")
+			.description("When true, each replica gets a limit on posts in flight that grows while latency holds steady and "
+					+ "shrinks on rising latency, 429s and failures.  Flowfiles stay queued while every replica is at its limit").required(true)
+			.allowableValues("true", "false").defaultValue("false").build();
+
+	/** starting adaptive limit */
+	public static final PropertyDescriptor INITIAL_CONCURRENCY = new PropertyDescriptor.Builder().name("initialconcurrency")
+			.description("Posts in flight to each replica before the adaptive limit has learned anything").required(true)
+			.defaultValue("10").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** highest adaptive limit */
+	public static final PropertyDescriptor MAX_CONCURRENCY = new PropertyDescriptor.Builder().name("maxconcurrency")
+			.description("Most posts in flight the adaptive limit allows to each replica").required(true)
+			.defaultValue("200").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** posts per second to each rate limit key */
+	public static final PropertyDescriptor RATE_LIMIT_REQUESTS = new PropertyDescriptor.Builder().name("ratelimitrequests")
+			.description("Posts per second allowed to each rate limit key like 10, for metered APIs.  Flowfiles over the rate "
+					+ "stay queued and the processor yields, rather than post and get a 429.  Blank for no limit").required(false)
+			.addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	/** bytes per second to each rate limit key */
+	public static final PropertyDescriptor RATE_LIMIT_BYTES = new PropertyDescriptor.Builder().name("ratelimitbytes")
+			.description("Image bytes per second allowed to each rate limit key like 5 MB.  Blank for no limit").required(false)
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+
+	/** how much of each rate can go at once */
+	public static final PropertyDescriptor RATE_LIMIT_BURST = new PropertyDescriptor.Builder().name("rateburst")
+			.description("How much of each rate can go out at once after a quiet spell, 1 sec at 10 posts per second is a burst of 10")
+			.required(true).defaultValue("1 sec").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** what the rates are counted against */
+	public static final PropertyDescriptor RATE_LIMIT_KEY = new PropertyDescriptor.Builder().name("ratelimitkey")
+			.description("What each rate applies to, like ${apikey} for the API key a post is sent with.  "
+					+ "Blank for the host and port of the replica posted to").required(false)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
+
+	/** send slow posts again to another replica */
+	public static final PropertyDescriptor HEDGE = new PropertyDescriptor.Builder().name("hedge")
+			.description("When a post has no response after the hedge delay, send the image to another replica as well "
+					+ "and keep whichever response comes first, cancelling the other post.  Cuts the slowest posts "
+					+ "for a few percent more load.  Batches of images per request are not hedged").required(true)
+			.allowableValues("true", "false").defaultValue("false").build();
+
+	private static final Validator HEDGE_DELAY_VALIDATOR = new Validator() {
+		@Override
+		public ValidationResult validate(String subject, String input, ValidationContext context) {
+			if (input != null && input.trim().startsWith(HedgePolicy.PERCENTILE)) {
+				return new ValidationResult.Builder().subject(subject).input(input).valid(HedgePolicy.isPercentile(input))
+						.explanation("a percentile between p0 and p100 like p95").build();
+			}
+			return StandardValidators.TIME_PERIOD_VALIDATOR.validate(subject, input, context);
+		}
+	};
+
+	/** how long a post goes without a response before it is hedged */
+	public static final PropertyDescriptor HEDGE_DELAY = new PropertyDescriptor.Builder().name("hedgedelay")
+			.description("How long to wait for a response before hedging, a percentile of the replica's own latency like "
+					+ "p95, or a time like 200 millis.  A percentile waits until the replica has answered 20 posts")
+			.required(true).defaultValue("p95").addValidator(HEDGE_DELAY_VALIDATOR).build();
+
+	/** share of posts that may be hedged */
+	public static final PropertyDescriptor HEDGE_BUDGET = new PropertyDescriptor.Builder().name("hedgebudget")
+			.description("Hedges allowed as a percent of posts like 5, so a slow cluster is not sent twice the load")
+			.required(true).defaultValue("5").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	/** largest image held in memory to be hedged */
+	public static final PropertyDescriptor HEDGE_MAX_SIZE = new PropertyDescriptor.Builder().name("hedgemaxsize")
+			.description("Largest flowfile that is hedged like 8 MB.  A hedged image is read into memory so both posts "
+					+ "can send it, bigger ones are posted once").required(true)
+			.defaultValue("8 MB").addValidator(StandardValidators.createDataSizeBoundsValidator(0, MAX_ARRAY_SIZE)).build();
+
+	/** resize target width */
+	public static final PropertyDescriptor RESIZE_WIDTH = new PropertyDescriptor.Builder().name("resizewidth")
+			.description("Width the image is scaled down to fit before it is posted like 224.  "
+					+ "Images are only resized when resize width and height are both set, 0 posts the original").required(true)
+			.defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	/** resize target height */
+	public static final PropertyDescriptor RESIZE_HEIGHT = new PropertyDescriptor.Builder().name("resizeheight")
+			.description("Height the image is scaled down to fit before it is posted like 224").required(true)
+			.defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	/** resize output format */
+	public static final PropertyDescriptor RESIZE_FORMAT = new PropertyDescriptor.Builder().name("resizeformat")
+			.description("Format a resized image is posted as, the image type and name follow it").required(true)
+			.allowableValues(ImageTransformer.FORMAT_JPEG, ImageTransformer.FORMAT_PNG)
+			.defaultValue(ImageTransformer.FORMAT_JPEG).build();
+
+	/** resize jpeg quality */
+	public static final PropertyDescriptor RESIZE_QUALITY = new PropertyDescriptor.Builder().name("resizequality")
+			.description("JPEG quality of a resized image from 0 to 1 like 0.85").required(true)
+			.defaultValue("0.85").addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	/** resize workers */
+	public static final PropertyDescriptor RESIZE_THREADS = new PropertyDescriptor.Builder().name("resizethreads")
+			.description("Threads that resize images in parallel while earlier posts are in flight").required(true)
+			.defaultValue("4").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** batch field naming values */
+	public static final String NAMING_INDEXED = "indexed";
+	public static final String NAMING_BRACKETED = "bracketed";
+	public static final String NAMING_REPEATED = "repeated";
+
+	/** images packed into one post */
+	public static final PropertyDescriptor IMAGES_PER_REQUEST = new PropertyDescriptor.Builder().name("imagesperrequest")
+			.description("Most images packed into one multipart post for model servers that run inference on a batch.  "
+					+ "1 posts each image on its own.  The result cache and coalescing only apply to single image posts").required(true)
+			.defaultValue("1").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	/** bytes packed into one post */
+	public static final PropertyDescriptor REQUEST_BYTE_BUDGET = new PropertyDescriptor.Builder().name("requestbytebudget")
+			.description("Most image bytes packed into one multipart post like 10 MB, a larger image is still posted on its own").required(true)
+			.defaultValue("10 MB").addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+
+	/** form field of each image in a batch */
+	public static final PropertyDescriptor BATCH_FIELD_NAMING = new PropertyDescriptor.Builder().name("batchfieldnaming")
+			.description("Form field of each image in a batched post.  indexed is data0, data1, bracketed is data[0], data[1], "
+					+ "repeated uses the field name for every image").required(true)
+			.allowableValues(NAMING_INDEXED, NAMING_BRACKETED, NAMING_REPEATED).defaultValue(NAMING_INDEXED).build();
+
+	/** where the per image results are in a batch response */
+	public static final PropertyDescriptor BATCH_RESULT_PATH = new PropertyDescriptor.Builder().name("batchresultpath")
+			.description("JSON path of the array holding one result per image, in posted order, like $.predictions.  "
+					+ "Leave empty when the response is that array").required(false)
+			.addValidator(PATH_VALIDATOR).build();
+
+	/** how long a partial batch waits */
+	public static final PropertyDescriptor BATCH_LINGER = new PropertyDescriptor.Builder().name("batchlinger")
+			.description("How long a partial batch is held back waiting for more images before it is posted anyway like 100 millis").required(true)
+			.defaultValue("100 millis").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** retries of one flowfile */
+	public static final PropertyDescriptor MAX_RETRIES = new PropertyDescriptor.Builder().name("maxretries")
+			.description("Retries of a connection error, timeout, 429 or 503 before the flowfile goes to failure.  0 never retries").required(true)
+			.defaultValue("3").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	/** first retry wait */
+	public static final PropertyDescriptor RETRY_BACKOFF = new PropertyDescriptor.Builder().name("retrybackoff")
+			.description("Wait before the first retry like 1 sec, doubled for each retry after it with some jitter").required(true)
+			.defaultValue("1 sec").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** longest retry wait */
+	public static final PropertyDescriptor MAX_RETRY_BACKOFF = new PropertyDescriptor.Builder().name("maxretrybackoff")
+			.description("Longest wait before a retry like 1 min, also caps the server's Retry-After").required(true)
+			.defaultValue("1 min").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	/** share of posts that may be retries */
+	public static final PropertyDescriptor RETRY_BUDGET = new PropertyDescriptor.Builder().name("retrybudget")
+			.description("Retries allowed as a percent of posts like 20, so a struggling server is not buried in retries.  "
+					+ "Flowfiles over the budget go to failure").required(true)
+			.defaultValue("20").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
 	/** Success of Relationship */
 	public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success")
 			.description("Successfully determined image.").build();
 
 	/** Failure of Relationship **/
 	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
-			.description("Failed to determine image.").build();
+			.description("Failed to determine image, the server rejected the post or retries ran out.").build();
+
+	/** Retry of Relationship **/
+	public static final Relationship REL_RETRY = new Relationship.Builder().name("retry")
+			.description("Post failed in a way that may go away, penalized and held back until post.retry.at.  "
+					+ "Connect it back to this processor").build();
+
+	/** only a relationship when near duplicates are routed */
+	public static final Relationship REL_DUPLICATE = new Relationship.Builder().name("duplicate")
+			.description("Near duplicates of a recent frame, not posted").build();
+
+	/** each waiting flowfile gets its own copy of shared results */
+	private static final Function<HTTPPostResults, HTTPPostResults> COPY = new Function<HTTPPostResults, HTTPPostResults>() {
+		@Override
+		public HTTPPostResults apply(HTTPPostResults results) {
+			return results == null ? null : new HTTPPostResults(results);
+		}
+	};
 
 	/** Descriptors */
     private List<PropertyDescriptor> descriptors;
 
     /** Relationships */
-    private Set<Relationship> relationships;
+    private volatile Set<Relationship> relationships;
+
+    /** bounds the posts in flight across concurrent tasks */
+    private volatile Semaphore inFlight;
+
+    /** longest wait for a post in flight, the connect and read timeouts */
+    private volatile long responseTimeoutNanos;
+
+    /** async HTTP client, created on schedule and closed on stop */
+    private volatile HTTPPostUtility postUtility;
+
+    /** request properties resolved on schedule */
+    private volatile PostRequestTemplate requestTemplate;
+
+    /** attribute, content or both */
+    private volatile String resultDestination;
+
+    /** finds post.results in the response */
+    private volatile JsonResultExtractor resultExtractor;
+
+    /** results of earlier posts, null when caching is off */
+    private volatile ResultCache resultCache;
+
+    /** posts in flight by cache key, for coalescing */
+    private final ConcurrentMap<String, CompletableFuture<HTTPPostResults>> postsInFlight =
+    		new ConcurrentHashMap<String, CompletableFuture<HTTPPostResults>>();
+
+    /** coalesce identical posts */
+    private volatile boolean coalesce;
+
+    /** replicas and their health */
+    private volatile LoadBalancer loadBalancer;
+
+    /** resizes images before they are posted, null when the original is posted */
+    private volatile ImageTransformer imageTransformer;
+
+    /** runs the resizes */
+    private volatile ExecutorService transformPool;
+
+    /** routing rules of the dynamic properties, null when there are none */
+    private volatile RoutingRules routingRules;
+
+    /** relationships of the routing rules by name */
+    private volatile Map<String, Relationship> routes;
+
+    /** off, reuse or route */
+    private volatile String dedupe;
+
+    /** recent frames and their posts by source, null when near duplicates are not suppressed */
+    private volatile SimilarityIndex<CompletableFuture<HTTPPostResults>> similarityIndex;
+
+    /** requests and bytes per second by key, null when there is no limit */
+    private volatile RateLimiter rateLimiter;
+
+    /** hedges slow posts, null when they are posted once */
+    private volatile HedgePolicy hedgePolicy;
+
+    /** largest flowfile that is hedged */
+    private volatile long hedgeMaxSize;
+
+    /** sends the hedges when their delay is up */
+    private volatile ScheduledExecutorService hedgeTimer;
+
+    /** encodes KServe V2 requests, null for multipart */
+    private volatile KServeV2Codec tensorCodec;
+
+    /** finds each image's result in a batch response */
+    private volatile JsonResultExtractor batchExtractor;
+
+    /** when the partial batch to each URL started waiting */
+    private final ConcurrentMap<String, Long> lingerSince = new ConcurrentHashMap<String, Long>();
+
+    /** which failures are retried and when */
+    private volatile RetryPolicy retryPolicy;
 
     /** Initialize */
     @Override
@@ -134,12 +768,79 @@ public class PostImageProcessor extends AbstractProcessor {
 		descriptors.add(HEADER_VALUE);
 		descriptors.add(BASIC_USERNAME);
 		descriptors.add(BASIC_PASSWORD);
+		descriptors.add(OAUTH2_TOKEN_URL);
+		descriptors.add(OAUTH2_CLIENT_ID);
+		descriptors.add(OAUTH2_CLIENT_SECRET);
+		descriptors.add(OAUTH2_SCOPE);
+		descriptors.add(OAUTH2_REFRESH_AHEAD);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(MAX_IN_FLIGHT);
+		descriptors.add(MAX_CONNECTIONS);
+		descriptors.add(MAX_CONNECTIONS_PER_ROUTE);
+		descriptors.add(CONNECT_TIMEOUT);
+		descriptors.add(READ_TIMEOUT);
+		descriptors.add(MAX_RESPONSE_SIZE);
+		descriptors.add(KEEP_ALIVE);
+		descriptors.add(HTTP_VERSION);
+		descriptors.add(WARM_CONNECTIONS);
+		descriptors.add(DNS_CACHE_TTL);
+		descriptors.add(WIRE_FORMAT);
+		descriptors.add(TENSOR_INPUT);
+		descriptors.add(TENSOR_OUTPUT);
+		descriptors.add(TENSOR_DATATYPE);
+		descriptors.add(TENSOR_MEAN);
+		descriptors.add(TENSOR_STD);
+		descriptors.add(TENSOR_TOP_K);
+		descriptors.add(RESULT_DESTINATION);
+		descriptors.add(RESULT_PATH);
+		descriptors.add(ROUTE_PATH);
+		descriptors.add(ROUTE_LABEL_FIELD);
+		descriptors.add(ROUTE_SCORE_FIELD);
+		descriptors.add(CACHE_SIZE);
+		descriptors.add(CACHE_TTL);
+		descriptors.add(DISTRIBUTED_CACHE);
+		descriptors.add(COALESCE);
+		descriptors.add(DEDUPE);
+		descriptors.add(DEDUPE_SOURCE);
+		descriptors.add(DEDUPE_DISTANCE);
+		descriptors.add(DEDUPE_WINDOW);
+		descriptors.add(DEDUPE_SOURCES);
+		descriptors.add(DEDUPE_TTL);
+		descriptors.add(LOAD_BALANCING);
+		descriptors.add(EJECT_AFTER_FAILURES);
+		descriptors.add(EJECT_DURATION);
+		descriptors.add(ADAPTIVE_CONCURRENCY);
+		descriptors.add(INITIAL_CONCURRENCY);
+		descriptors.add(MAX_CONCURRENCY);
+		descriptors.add(RATE_LIMIT_REQUESTS);
+		descriptors.add(RATE_LIMIT_BYTES);
+		descriptors.add(RATE_LIMIT_BURST);
+		descriptors.add(RATE_LIMIT_KEY);
+		descriptors.add(HEDGE);
+		descriptors.add(HEDGE_DELAY);
+		descriptors.add(HEDGE_BUDGET);
+		descriptors.add(HEDGE_MAX_SIZE);
+		descriptors.add(RESIZE_WIDTH);
+		descriptors.add(RESIZE_HEIGHT);
+		descriptors.add(RESIZE_FORMAT);
+		descriptors.add(RESIZE_QUALITY);
+		descriptors.add(RESIZE_THREADS);
+		descriptors.add(IMAGES_PER_REQUEST);
+		descriptors.add(REQUEST_BYTE_BUDGET);
+		descriptors.add(BATCH_FIELD_NAMING);
+		descriptors.add(BATCH_RESULT_PATH);
+		descriptors.add(BATCH_LINGER);
+		descriptors.add(MAX_RETRIES);
+		descriptors.add(RETRY_BACKOFF);
+		descriptors.add(MAX_RETRY_BACKOFF);
+		descriptors.add(RETRY_BUDGET);
 		
 		this.descriptors = Collections.unmodifiableList(descriptors);
 
 		final Set<Relationship> relationships = new HashSet<Relationship>();
 		relationships.add(REL_SUCCESS);
 		relationships.add(REL_FAILURE);
+		relationships.add(REL_RETRY);
 		this.relationships = Collections.unmodifiableSet(relationships);
     }
 
@@ -153,130 +854,1184 @@ public class PostImageProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		return new PropertyDescriptor.Builder().name(propertyDescriptorName)
+				.description("Routes successful posts matching the rule to the " + propertyDescriptorName + " relationship")
+				.required(false).dynamic(true).addValidator(RULE_VALIDATOR).build();
+    }
+
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+		final Set<Relationship> relationships = new HashSet<Relationship>(this.relationships);
+		if (DEDUPE.getName().equals(descriptor.getName())) {
+			if (DEDUPE_ROUTE.equals(newValue)) {
+				relationships.add(REL_DUPLICATE);
+			} else {
+				relationships.remove(REL_DUPLICATE);
+			}
+		} else if (descriptor.isDynamic() && (oldValue == null || newValue == null)) {
+			// a rule was added or removed, so was its relationship
+			final Relationship relationship = new Relationship.Builder().name(descriptor.getName())
+					.description("Successful posts matching the rule " + descriptor.getName()).build();
+			if (newValue == null) {
+				relationships.remove(relationship);
+			} else {
+				relationships.add(relationship);
+			}
+		} else {
+			return;
+		}
+		this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
+			if (descriptor.isDynamic() && (REL_SUCCESS.getName().equals(descriptor.getName())
+					|| REL_FAILURE.getName().equals(descriptor.getName()) || REL_RETRY.getName().equals(descriptor.getName())
+					|| REL_DUPLICATE.getName().equals(descriptor.getName()))) {
+				results.add(new ValidationResult.Builder().subject(descriptor.getName()).valid(false)
+						.explanation("a routing rule cannot be named after a built in relationship").build());
+			}
+		}
+		results.addAll(validateAuthentication(context));
+		if (WIRE_KSERVE_V2.equals(context.getProperty(WIRE_FORMAT).getValue())) {
+			if (context.getProperty(IMAGES_PER_REQUEST).asInteger() > 1) {
+				results.add(new ValidationResult.Builder().subject(IMAGES_PER_REQUEST.getName()).valid(false)
+						.explanation("kserve-v2 posts one image per request").build());
+			}
+			if (!KServeV2Codec.BYTES.equals(context.getProperty(TENSOR_DATATYPE).getValue())
+					&& (context.getProperty(RESIZE_WIDTH).asInteger() <= 0 || context.getProperty(RESIZE_HEIGHT).asInteger() <= 0)) {
+				results.add(new ValidationResult.Builder().subject(TENSOR_DATATYPE.getName()).valid(false)
+						.explanation("decoded pixels need the resize width and height of the model input").build());
+			}
+		}
+		return results;
+    }
+
+    /**
+     * @return problems with the basic or OAuth2 settings, shared with {@link PostImageRecordProcessor}
+     */
+    static List<ValidationResult> validateAuthentication(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		if (context.getProperty(OAUTH2_TOKEN_URL).isSet()) {
+			if (!context.getProperty(OAUTH2_CLIENT_ID).isSet() || !context.getProperty(OAUTH2_CLIENT_SECRET).isSet()) {
+				results.add(new ValidationResult.Builder().subject(OAUTH2_TOKEN_URL.getName()).valid(false)
+						.explanation("OAuth2 needs the client id and client secret").build());
+			}
+			if (context.getProperty(BASIC_USERNAME).isSet()) {
+				results.add(new ValidationResult.Builder().subject(BASIC_USERNAME.getName()).valid(false)
+						.explanation("posts carry either basic credentials or an OAuth2 token, not both").build());
+			}
+		}
+		return results;
+    }
+
+    /**
+     * @return bearer tokens for the posts of the client, null when OAuth2 is not set up
+     */
+    static OAuth2TokenProvider tokenProvider(final ProcessContext context, final HTTPPostUtility postUtility) {
+		if (!context.getProperty(OAUTH2_TOKEN_URL).isSet()) {
+			return null;
+		}
+		return new OAuth2TokenProvider(postUtility, context.getProperty(OAUTH2_TOKEN_URL).getValue(),
+				context.getProperty(OAUTH2_CLIENT_ID).getValue(), context.getProperty(OAUTH2_CLIENT_SECRET).getValue(),
+				context.getProperty(OAUTH2_SCOPE).getValue(),
+				context.getProperty(OAUTH2_REFRESH_AHEAD).asTimePeriod(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Opens the warm connections to every replica of the URL and waits for them, at most the
+     * connect timeout.  Replicas that do not answer are left to the first posts, shared with
+     * {@link PostImageRecordProcessor}.
+     */
+    static void warmUp(final ProcessContext context, final HTTPPostUtility postUtility, final ComponentLog logger) {
+		final int connections = context.getProperty(WARM_CONNECTIONS).asInteger();
+		final PropertyValue property = context.getProperty(URL_NAME);
+		if (connections <= 0 || PostRequestTemplate.dependsOnFlowFile(property)) {
+			return;
+		}
+		final String urls = PostRequestTemplate.fixedValue(property, URL_NAME);
+		if (urls == null) {
+			return;
+		}
+		final Map<String, CompletableFuture<Integer>> warmUps = new LinkedHashMap<String, CompletableFuture<Integer>>();
+		for (final String url : urls.split(",")) {
+			if (!url.trim().isEmpty()) {
+				warmUps.put(url.trim(), postUtility.warmUp(url.trim(), connections));
+			}
+		}
+		final long deadline = System.nanoTime()
+				+ context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS);
+		for (final Map.Entry<String, CompletableFuture<Integer>> warmUp : warmUps.entrySet()) {
+			try {
+				final int opened = warmUp.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				logger.debug("Opened " + opened + " connections to " + warmUp.getKey());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException | TimeoutException e) {
+				logger.warn("Unable to warm up connections to " + warmUp.getKey() + " " + e.getLocalizedMessage());
+			}
+		}
+    }
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
-    	return;
+		final int maxInFlight = context.getProperty(MAX_IN_FLIGHT).asInteger();
+		this.inFlight = new Semaphore(maxInFlight);
+		this.responseTimeoutNanos = context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS)
+				+ context.getProperty(READ_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS);
+		this.requestTemplate = new PostRequestTemplate(context);
+		this.resultDestination = context.getProperty(RESULT_DESTINATION).getValue();
+		this.resultExtractor = new JsonResultExtractor(context.getProperty(RESULT_PATH).getValue());
+		this.batchExtractor = new JsonResultExtractor(context.getProperty(BATCH_RESULT_PATH).getValue());
+		this.retryPolicy = new RetryPolicy(context.getProperty(MAX_RETRIES).asInteger(),
+				context.getProperty(RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+				context.getProperty(MAX_RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+				context.getProperty(RETRY_BUDGET).asInteger() / 100.0);
+		this.lingerSince.clear();
+
+		this.coalesce = context.getProperty(COALESCE).asBoolean();
+		this.dedupe = context.getProperty(DEDUPE).getValue();
+		this.similarityIndex = DEDUPE_OFF.equals(dedupe) ? null : new SimilarityIndex<CompletableFuture<HTTPPostResults>>(
+				context.getProperty(DEDUPE_WINDOW).asInteger(), context.getProperty(DEDUPE_SOURCES).asInteger(),
+				context.getProperty(DEDUPE_DISTANCE).asInteger(), context.getProperty(DEDUPE_TTL).asTimePeriod(TimeUnit.MILLISECONDS));
+		this.loadBalancer = new LoadBalancer(context.getProperty(LOAD_BALANCING).getValue(),
+				context.getProperty(EJECT_AFTER_FAILURES).asInteger(),
+				context.getProperty(EJECT_DURATION).asTimePeriod(TimeUnit.MILLISECONDS),
+				context.getProperty(ADAPTIVE_CONCURRENCY).asBoolean() ? context.getProperty(INITIAL_CONCURRENCY).asInteger() : 0,
+				context.getProperty(MAX_CONCURRENCY).asInteger());
+		final Double requestRate = context.getProperty(RATE_LIMIT_REQUESTS).asDouble();
+		final Double byteRate = context.getProperty(RATE_LIMIT_BYTES).asDataSize(DataUnit.B);
+		this.rateLimiter = (requestRate == null || requestRate <= 0) && (byteRate == null || byteRate <= 0) ? null
+				: new RateLimiter(requestRate == null ? 0 : requestRate, byteRate == null ? 0 : byteRate,
+						context.getProperty(RATE_LIMIT_BURST).asTimePeriod(TimeUnit.MILLISECONDS), RATE_LIMIT_KEYS);
+
+		if (context.getProperty(HEDGE).asBoolean()) {
+			final String delay = context.getProperty(HEDGE_DELAY).getValue();
+			this.hedgeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "PostImage hedge " + getIdentifier());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.hedgePolicy = new HedgePolicy(HedgePolicy.isPercentile(delay) ? delay
+					: String.valueOf(context.getProperty(HEDGE_DELAY).asTimePeriod(TimeUnit.MILLISECONDS)),
+					context.getProperty(HEDGE_BUDGET).asInteger() / 100.0, hedgeTimer);
+			this.hedgeMaxSize = context.getProperty(HEDGE_MAX_SIZE).asDataSize(DataUnit.B).longValue();
+		} else {
+			this.hedgePolicy = null;
+		}
+
+		final int resizeWidth = context.getProperty(RESIZE_WIDTH).asInteger();
+		final int resizeHeight = context.getProperty(RESIZE_HEIGHT).asInteger();
+		if (resizeWidth > 0 && resizeHeight > 0) {
+			final float quality = Math.max(0f, Math.min(1f, context.getProperty(RESIZE_QUALITY).asFloat()));
+			this.imageTransformer = new ImageTransformer(resizeWidth, resizeHeight,
+					context.getProperty(RESIZE_FORMAT).getValue(), quality);
+			this.transformPool = Executors.newFixedThreadPool(context.getProperty(RESIZE_THREADS).asInteger());
+		} else {
+			this.imageTransformer = null;
+		}
+		final Map<String, String> rules = new LinkedHashMap<String, String>();
+		final Map<String, Relationship> routes = new HashMap<String, Relationship>();
+		for (final Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet()) {
+			if (property.getKey().isDynamic() && property.getValue() != null) {
+				rules.put(property.getKey().getName(), property.getValue());
+				routes.put(property.getKey().getName(), new Relationship.Builder().name(property.getKey().getName()).build());
+			}
+		}
+		this.routingRules = rules.isEmpty() ? null : new RoutingRules(rules, context.getProperty(ROUTE_PATH).getValue(),
+				context.getProperty(ROUTE_LABEL_FIELD).getValue(), context.getProperty(ROUTE_SCORE_FIELD).getValue());
+		this.routes = routes;
+
+		this.tensorCodec = WIRE_KSERVE_V2.equals(context.getProperty(WIRE_FORMAT).getValue())
+				? new KServeV2Codec(context.getProperty(TENSOR_INPUT).getValue(), context.getProperty(TENSOR_OUTPUT).getValue(),
+						context.getProperty(TENSOR_DATATYPE).getValue(), channels(context.getProperty(TENSOR_MEAN).getValue()),
+						channels(context.getProperty(TENSOR_STD).getValue()), context.getProperty(TENSOR_TOP_K).asInteger())
+				: null;
+
+		final int cacheSize = context.getProperty(CACHE_SIZE).asInteger();
+		final DistributedMapCacheClient distributedCache =
+				context.getProperty(DISTRIBUTED_CACHE).asControllerService(DistributedMapCacheClient.class);
+		this.resultCache = cacheSize > 0 || distributedCache != null
+				? new ResultCache(cacheSize, context.getProperty(CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS), distributedCache)
+				: null;
+		try {
+			this.postUtility = new HTTPPostUtility(
+					context.getProperty(MAX_CONNECTIONS).asInteger(),
+					context.getProperty(MAX_CONNECTIONS_PER_ROUTE).asInteger(),
+					context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+					context.getProperty(READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+					context.getProperty(KEEP_ALIVE).asTimePeriod(TimeUnit.MILLISECONDS),
+					HTTP_2.equals(context.getProperty(HTTP_VERSION).getValue()),
+					context.getProperty(DNS_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS),
+					context.getProperty(MAX_RESPONSE_SIZE).asDataSize(DataUnit.B).intValue());
+		} catch (IOReactorException e) {
+			throw new ProcessException("Unable to create HTTP client", e);
+		}
+		postUtility.setTokenProvider(tokenProvider(context, postUtility));
+		warmUp(context, postUtility, getLogger());
+		SCHEDULED.put(getIdentifier(), this);
+    }
+
+    @OnStopped
+    public void onStopped() {
+		SCHEDULED.remove(getIdentifier(), this);
+		if (loadBalancer != null && getLogger().isDebugEnabled()) {
+			for (Map.Entry<String, PostMetrics.Snapshot> metrics : getMetrics().entrySet()) {
+				getLogger().debug(metrics.getKey() + " " + metrics.getValue());
+			}
+		}
+		if (postUtility != null) {
+			try {
+				postUtility.close();
+			} catch (IOException e) {
+				getLogger().warn("Unable to close HTTP client " + e.getLocalizedMessage());
+			}
+			postUtility = null;
+		}
+		if (transformPool != null) {
+			transformPool.shutdownNow();
+			transformPool = null;
+		}
+		if (hedgeTimer != null) {
+			hedgeTimer.shutdownNow();
+			hedgeTimer = null;
+		}
+    }
+
+    /**
+     * @return metrics of every replica posted to since the processor was scheduled, by URL
+     */
+    public Map<String, PostMetrics.Snapshot> getMetrics() {
+		final Map<String, PostMetrics.Snapshot> metrics = new LinkedHashMap<String, PostMetrics.Snapshot>();
+		final LoadBalancer balancer = loadBalancer;
+		if (balancer != null) {
+			for (final Endpoint endpoint : balancer.endpoints()) {
+				metrics.put(endpoint.getUrl(), endpoint.getMetrics().snapshot(endpoint.getOutstanding()));
+			}
+		}
+		return metrics;
+    }
+
+    /**
+     * @param identifier
+     *            processor identifier
+     * @return metrics of the scheduled processor by replica URL, empty when it is not scheduled
+     */
+    public static Map<String, PostMetrics.Snapshot> getMetrics(final String identifier) {
+		final PostImageProcessor processor = SCHEDULED.get(identifier);
+		return processor == null ? Collections.<String, PostMetrics.Snapshot>emptyMap() : processor.getMetrics();
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if ( flowFile == null ) {
-            return;
-        }
+		final int imagesPerRequest = context.getProperty(IMAGES_PER_REQUEST).asInteger();
+		final List<FlowFile> flowFiles = session.get(new DueFilter(
+				Math.max(context.getProperty(BATCH_SIZE).asInteger(), imagesPerRequest), System.currentTimeMillis()));
+		if (flowFiles == null || flowFiles.isEmpty()) {
+			return;
+		}
+
+		final List<PendingPost> pending = new ArrayList<PendingPost>(flowFiles.size());
+		final long[] counters = new long[COUNTERS.length];
+		int rejected = 0;
+		int hedged = 0;
+		int hedgesWon = 0;
 		try {
-			flowFile.getAttributes();
-			
-			String urlName = flowFile.getAttribute("url");
-			if (urlName == null) {
-				urlName = context.getProperty("url").evaluateAttributeExpressions(flowFile).getValue();
+			if (imagesPerRequest > 1) {
+				submitBatches(context, session, flowFiles, imagesPerRequest, pending);
+			} else {
+				for (final FlowFile flowFile : flowFiles) {
+					try {
+						pending.add(submit(context, session, flowFile));
+					} catch (ProcessException e) {
+						throw e;
+					} catch (RuntimeException e) {
+						// a bad url or image type is the flowfile's own, the rest of the batch goes on
+						pending.add(failed(flowFile, e));
+					}
+				}
+			}
+
+			// every post is in flight by now, so none should take longer than a connect and a read
+			final long deadline = System.nanoTime() + responseTimeoutNanos;
+			for (final PendingPost post : pending) {
+				HTTPPostResults results = null;
+				Throwable error = null;
+				try {
+					results = post.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				} catch (TimeoutException e) {
+					// the client lost the post, like when an IO thread dies, so give up on it rather than hold the thread
+					post.future.cancel(true);
+					error = new SocketTimeoutException("No response within "
+							+ TimeUnit.NANOSECONDS.toMillis(responseTimeoutNanos) + " ms");
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RejectedExecutionException) {
+						// every replica is at its limit, leave the flowfile queued for a later trigger
+						session.transfer(post.flowFile);
+						rejected++;
+						continue;
+					}
+					error = e.getCause();
+				} finally {
+					post.close();
+				}
+				if (resultCache != null && !post.cacheHit && !post.coalesced && results != null
+						&& results.getStatusCode() >= 200 && results.getStatusCode() < 300) {
+					try {
+						resultCache.put(post.cacheKey, results);
+					} catch (IOException e) {
+						getLogger().warn("Unable to cache results for " + post.flowFile + " " + e.getLocalizedMessage());
+					}
+				}
+				if (!post.cacheHit && !post.coalesced) {
+					retryPolicy.posted();
+					count(counters, results);
+				}
+				if (post.race != null && post.race.isHedged()) {
+					hedged++;
+					hedgesWon += post.race.isHedgeWon() ? 1 : 0;
+				}
+				route(session, post, results, error);
+			}
+			for (int i = 0; i < counters.length; i++) {
+				if (counters[i] > 0) {
+					session.adjustCounter(COUNTERS[i], counters[i], false);
+				}
+			}
+			if (hedged > 0) {
+				session.adjustCounter("post.hedge.sent", hedged, false);
+				session.adjustCounter("post.hedge.won", hedgesWon, false);
 			}
-			if (urlName == null) {
-				urlName = "http://localhost:8080/nifi";
+			if (rejected > 0) {
+				session.adjustCounter("post.limiter.rejected", rejected, false);
+				context.yield();
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel(pending);
+			throw new ProcessException(e);
+		} catch (final Throwable t) {
+			cancel(pending);
+			getLogger().error("Unable to process Post Image Processor file " + t.getLocalizedMessage());
+			throw new ProcessException(t);
+		}
+    }
 
-			String fieldname = flowFile.getAttribute("fieldname");
-			if (fieldname == null) {
-				fieldname = context.getProperty("fieldname").evaluateAttributeExpressions(flowFile).getValue();
+    /**
+     * Waits for a slot in the in flight window, then starts the post for the flowfile.  The content
+     * stream stays open while the client's IO threads send it, the caller closes it once the post
+     * completes.
+     */
+	private PendingPost submit(final ProcessContext context, final ProcessSession session,
+							   final FlowFile flowFile) throws InterruptedException, IOException {
+		final PostRequest request = requestTemplate.resolve(flowFile);
+
+		String cacheKey = null;
+		if (resultCache != null || coalesce) {
+			try (final InputStream input = session.read(flowFile)) {
+				cacheKey = ResultCache.key(ResultCache.hash(input), request.getUrl(), request.getFieldName());
 			}
-			if (fieldname == null) {
-				fieldname = "data";
+		}
+		if (resultCache != null) {
+			HTTPPostResults cached = null;
+			try {
+				cached = resultCache.get(cacheKey);
+			} catch (IOException e) {
+				// the shared cache is down, post as if it missed
+				getLogger().warn("Unable to read cached results for " + flowFile + " " + e.getLocalizedMessage());
 			}
-			
-			String imagename = flowFile.getAttribute("imagename");
-			if (imagename == null) {
-				imagename = context.getProperty("imagename").evaluateAttributeExpressions(flowFile).getValue();
+			if (cached != null) {
+				return new PendingPost(flowFile, null, CompletableFuture.completedFuture(cached), cacheKey, true, false);
 			}
-			if (imagename == null) {
-				imagename = "test.jpg";
-			}		
-			
-			String imagetype = flowFile.getAttribute("imagetype");
-			if (imagetype == null) {
-				imagetype = context.getProperty("imagetype").evaluateAttributeExpressions(flowFile).getValue();
+		}
+
+		final SimilarityIndex<CompletableFuture<HTTPPostResults>> index = similarityIndex;
+		String source = null;
+		long phash = 0;
+		if (index != null) {
+			try (final InputStream input = session.read(flowFile)) {
+				phash = PerceptualHash.hash(input);
+				source = context.getProperty(DEDUPE_SOURCE).evaluateAttributeExpressions(flowFile).getValue();
+				source = source == null ? "" : source;
+			} catch (IOException e) {
+				// not an image that decodes here, post it anyway
+				getLogger().debug("Unable to hash " + flowFile + " " + e.getLocalizedMessage());
 			}
-			if (imagetype == null) {
-				imagetype = "images/jpeg";
+			if (source != null) {
+				final SimilarityIndex.Match<CompletableFuture<HTTPPostResults>> match = index.find(source, phash);
+				if (match != null) {
+					// routed duplicates are not posted, reused ones wait for the frame they duplicate like a coalesced post
+					final PendingPost duplicate = new PendingPost(flowFile, null, DEDUPE_ROUTE.equals(dedupe)
+							? CompletableFuture.<HTTPPostResults>completedFuture(null) : match.getValue().thenApply(COPY),
+							cacheKey, false, true);
+					duplicate.phash = PerceptualHash.toHex(phash);
+					duplicate.duplicateDistance = match.getDistance();
+					return duplicate;
+				}
 			}
+		}
 
-			String headername = flowFile.getAttribute("headername");
-			if (headername == null) {
-				headername = context.getProperty("headername").evaluateAttributeExpressions(flowFile).getValue();
+		CompletableFuture<HTTPPostResults> shared = null;
+		if (coalesce) {
+			final CompletableFuture<HTTPPostResults> leader = new CompletableFuture<HTTPPostResults>();
+			shared = postsInFlight.putIfAbsent(cacheKey, leader);
+			if (shared != null) {
+				// the same image is already on its way to the same URL, wait for that post
+				return new PendingPost(flowFile, null, shared.thenApply(COPY), cacheKey, false, true);
 			}
+			shared = leader;
+		}
 
-			String headervalue = flowFile.getAttribute("headervalue");
-			if (headervalue == null) {
-				headervalue = context.getProperty("headervalue").evaluateAttributeExpressions(flowFile).getValue();
+		inFlight.acquire();
+		final Endpoint endpoint;
+		try {
+			endpoint = loadBalancer.select(request.getUrl());
+		} catch (RuntimeException e) {
+			inFlight.release();
+			finishShared(cacheKey, shared, null, e);
+			throw e;
+		}
+		if (endpoint == null) {
+			inFlight.release();
+			return rejected(flowFile, cacheKey, shared, atLimit(request.getUrl()));
+		}
+		final RateLimiter limiter = rateLimiter;
+		final String rateKey = limiter == null ? null : rateKey(context, flowFile, endpoint);
+		if (rateKey != null && !limiter.tryAcquire(rateKey, flowFile.getSize())) {
+			inFlight.release();
+			loadBalancer.cancelled(endpoint);
+			return rejected(flowFile, cacheKey, shared, overRate(rateKey));
+		}
+		final HedgePolicy hedges = hedgePolicy;
+		final boolean hedged = hedges != null && flowFile.getSize() <= hedgeMaxSize;
+		InputStream input = null;
+		CompletableFuture<HTTPPostResults> sent = null;
+		final CompletableFuture<HTTPPostResults> future;
+		HedgePolicy.Race race = null;
+		try {
+			input = session.read(flowFile);
+			final long[] started = { System.nanoTime() };
+			if (hedged) {
+				// both posts send the image, and a flowfile's content can only be read once at a time
+				final byte[] content = new byte[(int) flowFile.getSize()];
+				StreamUtils.fillBuffer(input, content);
+				input.close();
+				input = null;
+				sent = post(endpoint.getUrl(), request, new ByteArrayInputStream(content), content.length, started);
+				track(endpoint, sent, started, limiter, rateKey);
+				final long delay = hedges.delayMillis(endpoint);
+				if (delay < 0) {
+					future = sent;
+				} else {
+					race = hedges.race(sent, delay, hedge(context, flowFile, request, content, endpoint));
+					future = race.getFuture();
+				}
+			} else {
+				future = post(endpoint.getUrl(), request, input, flowFile.getSize(), started);
+				track(endpoint, future, started, limiter, rateKey);
+			}
+		} catch (IOException | RuntimeException e) {
+			if (sent != null) {
+				// already tracked, cancelling it frees its slot
+				sent.cancel(true);
+			} else {
+				inFlight.release();
+				loadBalancer.cancelled(endpoint);
 			}
+			if (input != null) {
+				input.close();
+			}
+			finishShared(cacheKey, shared, null, e);
+			throw e;
+		}
+		final String key = cacheKey;
+		final CompletableFuture<HTTPPostResults> sharedFuture = shared;
+		final String frameSource = source;
+		if (frameSource != null) {
+			index.add(frameSource, phash, future);
+		}
+		future.whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+			@Override
+			public void accept(HTTPPostResults results, Throwable t) {
+				finishShared(key, sharedFuture, results, t);
+				if (frameSource != null && (t != null || results == null
+						|| results.getStatusCode() < 200 || results.getStatusCode() >= 300)) {
+					// near duplicates post for themselves rather than share a failure
+					index.remove(frameSource, future);
+				}
+			}
+		});
+		final PendingPost post = new PendingPost(flowFile, input,
+				sharedFuture == null ? future : sharedFuture.thenApply(COPY), cacheKey, false, false);
+		post.phash = frameSource == null ? null : PerceptualHash.toHex(phash);
+		post.race = race;
+		return post;
+	}
+
+	/**
+	 * Posts one image to the replica, in the wire format and size it is configured for.
+	 */
+	private CompletableFuture<HTTPPostResults> post(final String url, final PostRequest request, final InputStream input,
+													final long size, final long[] started) throws IOException {
+		return tensorCodec != null
+				? postTensor(url, request, input, size, started)
+				: imageTransformer == null
+				? postUtility.postImage(url, request, input, size)
+				: transformAndPost(url, new PostRequest[] { request },
+						new String[] { request.getFieldName() }, new InputStream[] { input }, started);
+	}
 
-			String basicusername = flowFile.getAttribute("basicusername");
-			if (basicusername == null) {
-				basicusername = context.getProperty("basicusername").evaluateAttributeExpressions(flowFile).getValue();
+	/**
+	 * Frees the post's slot once it completes and records how the replica did.  A cancelled post,
+	 * like a hedge that lost, says nothing about the replica.
+	 */
+	private void track(final Endpoint endpoint, final CompletableFuture<HTTPPostResults> future, final long[] started,
+					   final RateLimiter limiter, final String rateKey) {
+		future.whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+			@Override
+			public void accept(HTTPPostResults results, Throwable t) {
+				inFlight.release();
+				if (t instanceof CancellationException) {
+					loadBalancer.cancelled(endpoint);
+					return;
+				}
+				final long latency = System.nanoTime() - started[0];
+				endpoint.getMetrics().record(results, latency);
+				loadBalancer.completed(endpoint, latency,
+						t != null || (results != null && results.getStatusCode() >= 500),
+						results != null && results.getStatusCode() == 429);
+				throttled(limiter, rateKey, results);
 			}
+		});
+	}
 
-			String basicpassword = flowFile.getAttribute("basicpassword");
-			if (basicpassword == null) {
-				basicpassword = context.getProperty("basicpassword").evaluateAttributeExpressions(flowFile).getValue();
+	/**
+	 * Sends the hedge of a post from the timer thread, to another replica when there is one.  Returns
+	 * null rather than wait when the in flight window, the replicas or the rate limit are full.
+	 */
+	private Supplier<CompletableFuture<HTTPPostResults>> hedge(final ProcessContext context, final FlowFile flowFile,
+															   final PostRequest request, final byte[] content,
+															   final Endpoint primary) {
+		final RateLimiter limiter = rateLimiter;
+		// evaluated now, the timer thread has no business with the flowfile
+		final String key = limiter == null || !context.getProperty(RATE_LIMIT_KEY).isSet() ? null
+				: context.getProperty(RATE_LIMIT_KEY).evaluateAttributeExpressions(flowFile).getValue();
+		final Semaphore window = inFlight;
+		final LoadBalancer balancer = loadBalancer;
+		return new Supplier<CompletableFuture<HTTPPostResults>>() {
+			@Override
+			public CompletableFuture<HTTPPostResults> get() {
+				if (!window.tryAcquire()) {
+					return null;
+				}
+				final Endpoint endpoint;
+				try {
+					endpoint = balancer.select(request.getUrl(), primary);
+				} catch (RuntimeException e) {
+					window.release();
+					return null;
+				}
+				if (endpoint == null) {
+					window.release();
+					return null;
+				}
+				final String rateKey = limiter == null ? null
+						: key == null || key.isEmpty() ? RateLimiter.host(endpoint.getUrl()) : key;
+				if (rateKey != null && !limiter.tryAcquire(rateKey, content.length)) {
+					window.release();
+					balancer.cancelled(endpoint);
+					return null;
+				}
+				final long[] started = { System.nanoTime() };
+				final CompletableFuture<HTTPPostResults> future;
+				try {
+					future = post(endpoint.getUrl(), request, new ByteArrayInputStream(content), content.length, started);
+				} catch (IOException | RuntimeException e) {
+					window.release();
+					balancer.cancelled(endpoint);
+					getLogger().debug("Unable to hedge " + request.getUrl() + " " + e.getLocalizedMessage());
+					return null;
+				}
+				track(endpoint, future, started, limiter, rateKey);
+				return future;
 			}
+		};
+	}
 
-			final String url = urlName;
-			final String field = fieldname;
-			final String image = imagename;
-			final String imgtype = imagetype;
-			final String headerName = headername;
-			final String headerValue = headervalue;
-			final String basicUserName = basicusername;
-			final String basicPassword = basicpassword;
+	/**
+	 * Groups the flowfiles into multipart posts by URL, up to the images and bytes allowed per post.
+	 * A partial batch goes back to the queue until the linger time runs out, so it can fill up on a
+	 * later trigger.
+	 */
+	private void submitBatches(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles,
+							   final int imagesPerRequest, final List<PendingPost> pending) throws InterruptedException, IOException {
+		final long byteBudget = context.getProperty(REQUEST_BYTE_BUDGET).asDataSize(DataUnit.B).longValue();
+		final String naming = context.getProperty(BATCH_FIELD_NAMING).getValue();
 
+		final Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+		for (final FlowFile flowFile : flowFiles) {
+			final PostRequest request;
 			try {
-				final HashMap<String, String> attributes = new HashMap<String, String>();
+				request = requestTemplate.resolve(flowFile);
+			} catch (RuntimeException e) {
+				pending.add(failed(flowFile, e));
+				continue;
+			}
+			Batch batch = batches.get(request.getUrl());
+			if (batch != null && (batch.size() >= imagesPerRequest || batch.bytes + flowFile.getSize() > byteBudget)) {
+				submitBatch(context, session, batch, naming, pending);
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new Batch(request.getUrl());
+				batches.put(request.getUrl(), batch);
+			}
+			batch.add(flowFile, request);
+		}
 
-				session.read(flowFile, new InputStreamCallback() {
-					@Override
-					public void process(InputStream input) throws IOException {
-						if ( input == null ) { 
-							return;
+		final long lingerMillis = context.getProperty(BATCH_LINGER).asTimePeriod(TimeUnit.MILLISECONDS);
+		final long now = System.currentTimeMillis();
+		boolean held = false;
+		for (final Batch batch : batches.values()) {
+			if (batch.size() < imagesPerRequest && batch.bytes < byteBudget) {
+				final Long since = lingerSince.putIfAbsent(batch.url, now);
+				if (now - (since == null ? now : since) < lingerMillis) {
+					session.transfer(batch.flowFiles);
+					held = true;
+					continue;
+				}
+			}
+			lingerSince.remove(batch.url);
+			submitBatch(context, session, batch, naming, pending);
+		}
+		if (held) {
+			// the held flowfiles would come straight back, give the queue time to fill
+			context.yield();
+		}
+	}
+
+	/**
+	 * Starts one multipart post for the batch.  Every flowfile of the batch gets a pending post
+	 * that completes with its own element of the response.
+	 */
+	private void submitBatch(final ProcessContext context, final ProcessSession session, final Batch batch, final String naming,
+							 final List<PendingPost> pending) throws InterruptedException, IOException {
+		final int size = batch.size();
+		inFlight.acquire();
+		final Endpoint endpoint;
+		try {
+			endpoint = loadBalancer.select(batch.url);
+		} catch (RuntimeException e) {
+			inFlight.release();
+			// the flowfiles of a batch share the url, they all fail with it
+			for (final FlowFile flowFile : batch.flowFiles) {
+				pending.add(failed(flowFile, e));
+			}
+			return;
+		}
+		final RateLimiter limiter = rateLimiter;
+		final String rateKey = limiter == null || endpoint == null ? null : rateKey(context, batch.flowFiles.get(0), endpoint);
+		if (endpoint == null || (rateKey != null && !limiter.tryAcquire(rateKey, batch.bytes))) {
+			inFlight.release();
+			if (endpoint != null) {
+				loadBalancer.cancelled(endpoint);
+			}
+			final CompletableFuture<HTTPPostResults> rejected = new CompletableFuture<HTTPPostResults>();
+			rejected.completeExceptionally(endpoint == null ? atLimit(batch.url) : overRate(rateKey));
+			for (final FlowFile flowFile : batch.flowFiles) {
+				pending.add(new PendingPost(flowFile, null, rejected, null, false, false));
+			}
+			return;
+		}
+
+		final PostRequest[] requests = batch.requests.toArray(new PostRequest[size]);
+		final String[] fieldNames = new String[size];
+		final InputStream[] inputs = new InputStream[size];
+		final long[] sizes = new long[size];
+		final long[] started = new long[1];
+		final CompletableFuture<HTTPPostResults> future;
+		try {
+			for (int i = 0; i < size; i++) {
+				fieldNames[i] = fieldName(requests[i].getFieldName(), i, naming);
+				sizes[i] = batch.flowFiles.get(i).getSize();
+				inputs[i] = session.read(batch.flowFiles.get(i));
+			}
+			started[0] = System.nanoTime();
+			future = imageTransformer == null
+					? postUtility.postImages(endpoint.getUrl(), requests, fieldNames, inputs, sizes)
+					: transformAndPost(endpoint.getUrl(), requests, fieldNames, inputs, started);
+		} catch (IOException | RuntimeException e) {
+			inFlight.release();
+			loadBalancer.cancelled(endpoint);
+			for (final InputStream input : inputs) {
+				if (input != null) {
+					input.close();
+				}
+			}
+			if (e instanceof IOException || e instanceof ProcessException) {
+				throw e;
+			}
+			for (final FlowFile flowFile : batch.flowFiles) {
+				pending.add(failed(flowFile, e));
+			}
+			return;
+		}
+		future.whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+			@Override
+			public void accept(HTTPPostResults results, Throwable t) {
+				inFlight.release();
+				final long latency = System.nanoTime() - started[0];
+				endpoint.getMetrics().record(results, latency);
+				loadBalancer.completed(endpoint, latency,
+						t != null || (results != null && results.getStatusCode() >= 500),
+						results != null && results.getStatusCode() == 429);
+				throttled(limiter, rateKey, results);
+			}
+		});
+
+		final CompletableFuture<HTTPPostResults[]> split = future.thenApply(new Function<HTTPPostResults, HTTPPostResults[]>() {
+			@Override
+			public HTTPPostResults[] apply(HTTPPostResults results) {
+				return split(results, size);
+			}
+		});
+		for (int i = 0; i < size; i++) {
+			final int index = i;
+			pending.add(new PendingPost(batch.flowFiles.get(i), inputs[i],
+					split.thenApply(new Function<HTTPPostResults[], HTTPPostResults>() {
+						@Override
+						public HTTPPostResults apply(HTTPPostResults[] results) {
+							return results[index];
 						}
-						HTTPPostResults results = HTTPPostUtility.postImage(url, field, image, imgtype, input, headerName, headerValue, basicUserName, basicPassword);
-						
-						if (results != null && results.getJsonResultBody() != null) {
-							try {
-								attributes.put(ATTRIBUTE_OUTPUT_NAME, results.getJsonResultBody());
-								attributes.put(ATTRIBUTE_OUTPUT_HEADER, results.getHeader());
-								attributes.put(ATTRIBUTE_OUTPUT_STATUS, results.getStatus());
-								attributes.put(ATTRIBUTE_OUTPUT_STATUS_CODE, String.valueOf(results.getStatusCode()));
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
+					}), null, false, false));
+		}
+	}
+
+	private static String fieldName(final String fieldName, final int index, final String naming) {
+		if (NAMING_REPEATED.equals(naming)) {
+			return fieldName;
+		}
+		return NAMING_BRACKETED.equals(naming) ? fieldName + "[" + index + "]" : fieldName + index;
+	}
+
+	/**
+	 * one result per image from the batch response, each image gets the whole response when it
+	 * cannot be split.  The bytes are shared out across the images so the counters add up.
+	 */
+	private HTTPPostResults[] split(final HTTPPostResults results, final int size) {
+		final HTTPPostResults[] split = new HTTPPostResults[size];
+		if (results == null) {
+			return split;
+		}
+		final List<String> elements = results.getStatusCode() < 300 ? batchExtractor.elements(results.getBody()) : null;
+		if (elements != null && elements.size() != size) {
+			getLogger().warn("Batch of " + size + " images returned " + elements.size() + " results");
+		}
+		for (int i = 0; i < size; i++) {
+			split[i] = new HTTPPostResults(results);
+			split[i].setBytesSent(share(results.getBytesSent(), i, size));
+			split[i].setBytesReceived(share(results.getBytesReceived(), i, size));
+			if (elements != null && elements.size() == size) {
+				final String element = elements.get(i);
+				split[i].setBody(element == null ? null : element.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return split;
+	}
+
+	private static long share(final long total, final int index, final int size) {
+		return total / size + (index < total % size ? 1 : 0);
+	}
+
+	/** counts a post that went out by status class, with its bytes */
+	private static void count(final long[] counters, final HTTPPostResults results) {
+		if (results == null) {
+			counters[0]++;
+			return;
+		}
+		final int statusClass = results.getStatusCode() / 100;
+		counters[statusClass >= 1 && statusClass <= 5 ? statusClass : 0]++;
+		counters[COUNTER_BYTES_SENT] += results.getBytesSent();
+		counters[COUNTER_BYTES_RECEIVED] += results.getBytesReceived();
+	}
+
+	private static RejectedExecutionException atLimit(final String url) {
+		return new RejectedExecutionException("Every replica of " + url + " is at its concurrency limit");
+	}
+
+	private static RejectedExecutionException overRate(final String rateKey) {
+		return new RejectedExecutionException("Posts to " + rateKey + " are over their rate limit");
+	}
+
+	/**
+	 * a post that is not going out this trigger, flowfiles waiting on it are requeued with it
+	 */
+	/**
+	 * a post that could not be started, the flowfile goes to failure with the error
+	 */
+	private static PendingPost failed(final FlowFile flowFile, final Throwable e) {
+		final CompletableFuture<HTTPPostResults> failed = new CompletableFuture<HTTPPostResults>();
+		failed.completeExceptionally(e);
+		return new PendingPost(flowFile, null, failed, null, false, false);
+	}
+
+	private PendingPost rejected(final FlowFile flowFile, final String cacheKey,
+								 final CompletableFuture<HTTPPostResults> shared, final RejectedExecutionException e) {
+		final CompletableFuture<HTTPPostResults> rejected = new CompletableFuture<HTTPPostResults>();
+		rejected.completeExceptionally(e);
+		finishShared(cacheKey, shared, null, e);
+		return new PendingPost(flowFile, null, rejected, cacheKey, false, false);
+	}
+
+	/**
+	 * the rate limit key of a post, the host of the replica unless the key property says otherwise
+	 */
+	private static String rateKey(final ProcessContext context, final FlowFile flowFile, final Endpoint endpoint) {
+		final PropertyValue property = context.getProperty(RATE_LIMIT_KEY);
+		final String key = property.isSet() ? property.evaluateAttributeExpressions(flowFile).getValue() : null;
+		return key == null || key.isEmpty() ? RateLimiter.host(endpoint.getUrl()) : key;
+	}
+
+	/**
+	 * a 429 means the server's own limit is tighter than ours, so the key sends nothing until
+	 * its Retry-After, or the retry backoff, is over
+	 */
+	private void throttled(final RateLimiter limiter, final String rateKey, final HTTPPostResults results) {
+		if (rateKey != null && results != null && results.getStatusCode() == 429) {
+			limiter.pause(rateKey, retryPolicy.backoff(0, results));
+		}
+	}
+
+	/**
+	 * Resizes on the transform pool so several images are decoded at once, then posts the results.
+	 * The post is timed from when the resized images are ready.
+	 */
+	private CompletableFuture<HTTPPostResults> transformAndPost(final String url, final PostRequest[] requests,
+																final String[] fieldNames, final InputStream[] inputs,
+																final long[] started) {
+		final ImageTransformer transformer = imageTransformer;
+		final List<CompletableFuture<byte[]>> transforms = new ArrayList<CompletableFuture<byte[]>>(inputs.length);
+		for (final InputStream input : inputs) {
+			transforms.add(CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+				@Override
+				public byte[] get() {
+					try {
+						return transformer.transform(input);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, transformPool));
+		}
+		return Futures.compose(CompletableFuture.allOf(transforms.toArray(new CompletableFuture[transforms.size()])),
+				new Function<Void, CompletableFuture<HTTPPostResults>>() {
+					@Override
+					public CompletableFuture<HTTPPostResults> apply(Void done) {
+						final PostRequest[] transformed = new PostRequest[requests.length];
+						final InputStream[] images = new InputStream[requests.length];
+						final long[] sizes = new long[requests.length];
+						for (int i = 0; i < requests.length; i++) {
+							final byte[] image = transforms.get(i).join();
+							transformed[i] = requests[i].withImage(transformer.getExtension(), transformer.getContentType());
+							images[i] = new ByteArrayInputStream(image);
+							sizes[i] = image.length;
 						}
-						else {
-							try {
-								attributes.put(ATTRIBUTE_OUTPUT_NAME, "Fail");
-								attributes.put(ATTRIBUTE_OUTPUT_HEADER, "Fail");
-								attributes.put(ATTRIBUTE_OUTPUT_STATUS, "FAIL");
-								attributes.put(ATTRIBUTE_OUTPUT_STATUS_CODE, "500");
-							} catch (Exception e) {
-								e.printStackTrace();
-							}							
+						started[0] = System.nanoTime();
+						try {
+							return postUtility.postImages(url, transformed, fieldNames, images, sizes);
+						} catch (IOException e) {
+							throw new CompletionException(e);
 						}
 					}
 				});
-				if (attributes.size() == 0) {
-					session.transfer(flowFile, REL_FAILURE);
-				} else {
-					flowFile = session.putAllAttributes(flowFile, attributes);
-					session.transfer(flowFile, REL_SUCCESS);
+	}
+
+	/**
+	 * Posts the image as a KServe V2 binary tensor.  Decoding to pixels or resizing runs on the
+	 * transform pool like {@link #transformAndPost}, an image sent as it is streams from the flowfile.
+	 * The binary response is turned into JSON before the post completes.
+	 */
+	private CompletableFuture<HTTPPostResults> postTensor(final String url, final PostRequest request,
+														  final InputStream input, final long size,
+														  final long[] started) throws IOException {
+		final KServeV2Codec codec = tensorCodec;
+		final Function<HTTPPostResults, HTTPPostResults> decode = new Function<HTTPPostResults, HTTPPostResults>() {
+			@Override
+			public HTTPPostResults apply(HTTPPostResults results) {
+				try {
+					return codec.decode(results);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		};
+		final ImageTransformer transformer = imageTransformer;
+		if (transformer == null) {
+			final KServeV2Codec.Request tensor = codec.encode(input, size);
+			return Futures.apply(postUtility.postBody(url, tensor.getBody(), tensor.headers(request.getHeaders())), decode);
+		}
+		final CompletableFuture<KServeV2Codec.Request> encoded = CompletableFuture.supplyAsync(new Supplier<KServeV2Codec.Request>() {
+			@Override
+			public KServeV2Codec.Request get() {
+				try {
+					if (codec.isDecoded()) {
+						return codec.encode(transformer.resize(input));
+					}
+					final byte[] image = transformer.transform(input);
+					return codec.encode(new ByteArrayInputStream(image), image.length);
+				} catch (IOException e) {
+					throw new CompletionException(e);
 				}
-			} catch (Exception e) {
-				throw new ProcessException(e);
 			}
+		}, transformPool);
+		return Futures.apply(Futures.compose(encoded, new Function<KServeV2Codec.Request, CompletableFuture<HTTPPostResults>>() {
+			@Override
+			public CompletableFuture<HTTPPostResults> apply(KServeV2Codec.Request tensor) {
+				started[0] = System.nanoTime();
+				return postUtility.postBody(url, tensor.getBody(), tensor.headers(request.getHeaders()));
+			}
+		}), decode);
+	}
+
+	/**
+	 * @param value
+	 *            three comma separated numbers, red, green and blue
+	 * @return the numbers
+	 */
+	static float[] channels(final String value) {
+		final String[] parts = value == null ? new String[0] : value.split(",");
+		if (parts.length != 3) {
+			throw new IllegalArgumentException("Expected three comma separated numbers");
+		}
+		final float[] channels = new float[3];
+		for (int i = 0; i < 3; i++) {
+			try {
+				channels[i] = Float.parseFloat(parts[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(parts[i].trim() + " is not a number");
+			}
+			if (Float.isNaN(channels[i]) || Float.isInfinite(channels[i])) {
+				throw new IllegalArgumentException(parts[i].trim() + " is not a finite number");
+			}
+		}
+		return channels;
+	}
 
-			session.commit();
-		} catch (
+	/**
+	 * completes the post other tasks may be waiting on and lets the next identical image post again
+	 */
+	private void finishShared(final String key, final CompletableFuture<HTTPPostResults> shared,
+							  final HTTPPostResults results, final Throwable t) {
+		if (shared == null) {
+			return;
+		}
+		postsInFlight.remove(key, shared);
+		if (t != null) {
+			shared.completeExceptionally(t);
+		} else {
+			shared.complete(results);
+		}
+	}
 
-		final Throwable t) {
-			getLogger().error("Unable to process Post Image Processor file " + t.getLocalizedMessage());
-			throw new ProcessException(t);
+	/**
+	 * Sends the flowfile to success with its results, to retry when the failure may go away and
+	 * the retry budget allows, otherwise to failure.
+	 */
+	private void route(final ProcessSession session, final PendingPost post, final HTTPPostResults results,
+					   final Throwable error) {
+		FlowFile flowFile = post.flowFile;
+		if (post.phash != null) {
+			flowFile = session.putAttribute(flowFile, ATTRIBUTE_PHASH, post.phash);
 		}
-    }
-}
\ No newline at end of file
+		if (post.duplicateDistance >= 0) {
+			flowFile = session.putAttribute(flowFile, ATTRIBUTE_DUPLICATE_DISTANCE, String.valueOf(post.duplicateDistance));
+			if (DEDUPE_ROUTE.equals(dedupe)) {
+				session.transfer(flowFile, REL_DUPLICATE);
+				return;
+			}
+		}
+		if (post.duplicateDistance >= 0) {
+			// reused results cost no post, post.duplicate.distance tells them apart
+			flowFile = session.putAttribute(flowFile, ATTRIBUTE_LATENCY, "0");
+		} else if (!post.cacheHit && results != null && results.getTotalNanos() > 0) {
+			flowFile = session.putAttribute(flowFile, ATTRIBUTE_LATENCY,
+					String.valueOf(TimeUnit.NANOSECONDS.toMillis(results.getTotalNanos())));
+		}
+		if (error != null || results == null || results.getStatusCode() < 200 || results.getStatusCode() >= 300) {
+			fail(session, flowFile, results, error);
+			return;
+		}
+		flowFile = session.removeAttribute(flowFile, ATTRIBUTE_RETRY_AT);
+		final HashMap<String, String> attributes = new HashMap<String, String>();
+		if (resultCache != null) {
+			attributes.put(ATTRIBUTE_CACHE_HIT, String.valueOf(post.cacheHit));
+		}
+		final boolean toContent = results.getBody() != null && !DESTINATION_ATTRIBUTE.equals(resultDestination);
+
+		if (!DESTINATION_CONTENT.equals(resultDestination)) {
+			results.setJsonResultBody(resultExtractor.extract(results.getBody()));
+		}
+
+		results.putAttributes(attributes);
+
+		if (toContent) {
+			final byte[] body = results.getBody();
+			flowFile = session.write(flowFile, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream out) throws IOException {
+					out.write(body);
+				}
+			});
+			if (results.getContentType() != null) {
+				attributes.put(CoreAttributes.MIME_TYPE.key(), results.getContentType());
+			}
+		}
+
+		flowFile = session.putAllAttributes(flowFile, attributes);
+		final List<String> matched = routingRules == null
+				? Collections.<String>emptyList() : routingRules.evaluate(results.getBody());
+		if (matched.isEmpty()) {
+			session.transfer(flowFile, REL_SUCCESS);
+			return;
+		}
+		for (int i = 1; i < matched.size(); i++) {
+			final FlowFile clone = session.putAttribute(session.clone(flowFile), ATTRIBUTE_ROUTE, matched.get(i));
+			session.transfer(clone, routes.get(matched.get(i)));
+		}
+		flowFile = session.putAttribute(flowFile, ATTRIBUTE_ROUTE, matched.get(0));
+		session.transfer(flowFile, routes.get(matched.get(0)));
+	}
+
+	private void fail(final ProcessSession session, FlowFile flowFile, final HTTPPostResults results,
+					  final Throwable error) {
+		final String retryCount = flowFile.getAttribute(ATTRIBUTE_RETRY_COUNT);
+		int retries = 0;
+		try {
+			retries = retryCount == null ? 0 : Integer.parseInt(retryCount);
+		} catch (NumberFormatException e) {
+			// not ours, start counting again
+		}
+
+		final HashMap<String, String> attributes = new HashMap<String, String>();
+		if (results != null) {
+			results.putAttributes(attributes);
+		} else {
+			attributes.put(ATTRIBUTE_ERROR, String.valueOf(error));
+		}
+
+		if (RetryPolicy.isRetryable(results, error) && retryPolicy.tryRetry(retries)) {
+			attributes.put(ATTRIBUTE_RETRY_COUNT, String.valueOf(retries + 1));
+			attributes.put(ATTRIBUTE_RETRY_AT, String.valueOf(System.currentTimeMillis() + retryPolicy.backoff(retries, results)));
+			flowFile = session.putAllAttributes(flowFile, attributes);
+			session.transfer(session.penalize(flowFile), REL_RETRY);
+			return;
+		}
+
+		getLogger().error("Unable to post image for " + flowFile + " "
+				+ (results == null ? error : results.getStatusCode() + " " + results.getStatus()));
+		flowFile = session.putAllAttributes(flowFile, attributes);
+		session.transfer(session.removeAttribute(flowFile, ATTRIBUTE_RETRY_AT), REL_FAILURE);
+	}
+
+	private static void cancel(final List<PendingPost> pending) {
+		for (PendingPost post : pending) {
+			post.future.cancel(true);
+			post.close();
+		}
+	}
+
+	/** takes flowfiles whose retry is due, up to the batch size */
+	private static final class DueFilter implements FlowFileFilter {
+		private final int max;
+		private final long now;
+		private int accepted;
+
+		DueFilter(int max, long now) {
+			this.max = max;
+			this.now = now;
+		}
+
+		@Override
+		public FlowFileFilterResult filter(FlowFile flowFile) {
+			final String retryAt = flowFile.getAttribute(ATTRIBUTE_RETRY_AT);
+			if (retryAt != null) {
+				try {
+					if (Long.parseLong(retryAt) > now) {
+						return FlowFileFilterResult.REJECT_AND_CONTINUE;
+					}
+				} catch (NumberFormatException e) {
+					// not ours, post it
+				}
+			}
+			return ++accepted >= max ? FlowFileFilterResult.ACCEPT_AND_TERMINATE : FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+		}
+	}
+
+	/** flowfiles going to the same URL in one multipart post */
+	private static final class Batch {
+		final String url;
+		final List<FlowFile> flowFiles = new ArrayList<FlowFile>();
+		final List<PostRequest> requests = new ArrayList<PostRequest>();
+		long bytes;
+
+		Batch(String url) {
+			this.url = url;
+		}
+
+		void add(FlowFile flowFile, PostRequest request) {
+			flowFiles.add(flowFile);
+			requests.add(request);
+			bytes += flowFile.getSize();
+		}
+
+		int size() {
+			return flowFiles.size();
+		}
+	}
+
+	/** a post that has been started, with the content stream it is sending */
+	private static final class PendingPost {
+		final FlowFile flowFile;
+		final InputStream input;
+		final Future<HTTPPostResults> future;
+		final String cacheKey;
+		final boolean cacheHit;
+		final boolean coalesced;
+		/** perceptual hash in hex when near duplicates are suppressed */
+		String phash;
+		/** hash bits that differ from the recent frame this duplicates, -1 when it is not a duplicate */
+		int duplicateDistance = -1;
+		/** the post and its hedge, null when it was not raced */
+		HedgePolicy.Race race;
+
+		PendingPost(FlowFile flowFile, InputStream input, Future<HTTPPostResults> future, String cacheKey,
+					boolean cacheHit, boolean coalesced) {
+			this.flowFile = flowFile;
+			this.input = input;
+			this.future = future;
+			this.cacheKey = cacheKey;
+			this.cacheHit = cacheHit;
+			this.coalesced = coalesced;
+		}
+
+		void close() {
+			if (input == null) {
+				return;
+			}
+			try {
+				input.close();
+			} catch (IOException e) {
+				// the post is finished with it either way
+			}
+		}
+	}
+}
+
@@ -0,0 +1,515 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+@Tags({"post images", "record"})
+@CapabilityDescription("Post the image referenced by each record to HTTP and write one flowfile of result records per "
+		+ "incoming flowfile.  Each result record is the incoming record with post_results, post_status, "
+		+ "post_statuscode, post_latency_ms and post_error added.  Keeps the results out of flowfile attributes, "
+		+ "which is far lighter on the flowfile repository than one flowfile per image.")
+@SeeAlso({PostImageProcessor.class})
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@WritesAttributes({@WritesAttribute(attribute="record.count", description="Number of result records written"),
+		@WritesAttribute(attribute="post.failed.count", description="Number of records whose post failed"),
+		@WritesAttribute(attribute="mime.type", description="Mime type of the record writer")})
+public class PostImageRecordProcessor extends AbstractProcessor {
+
+	/** result fields added to every record, underscores so the names are also valid Avro */
+	public static final String FIELD_RESULTS = "post_results";
+	public static final String FIELD_STATUS = "post_status";
+	public static final String FIELD_STATUS_CODE = "post_statuscode";
+	public static final String FIELD_LATENCY = "post_latency_ms";
+	public static final String FIELD_ERROR = "post_error";
+
+	/** output attribute name post.failed.count is the records whose post failed **/
+	public static final String ATTRIBUTE_FAILED_COUNT = "post.failed.count";
+
+	/** image source values */
+	public static final String SOURCE_PATH = "path";
+	public static final String SOURCE_BYTES = "bytes";
+
+	private static final List<RecordField> RESULT_FIELDS = Collections.unmodifiableList(Arrays.asList(
+			new RecordField(FIELD_RESULTS, RecordFieldType.STRING.getDataType(), true),
+			new RecordField(FIELD_STATUS, RecordFieldType.STRING.getDataType(), true),
+			new RecordField(FIELD_STATUS_CODE, RecordFieldType.INT.getDataType(), true),
+			new RecordField(FIELD_LATENCY, RecordFieldType.LONG.getDataType(), true),
+			new RecordField(FIELD_ERROR, RecordFieldType.STRING.getDataType(), true)));
+
+	/** reads the incoming records */
+	public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder().name("recordreader")
+			.description("Record Reader for the incoming records").required(true)
+			.identifiesControllerService(RecordReaderFactory.class).build();
+
+	/** writes the result records */
+	public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder().name("recordwriter")
+			.description("Record Writer for the result records, like Avro, JSON or Parquet").required(true)
+			.identifiesControllerService(RecordSetWriterFactory.class).build();
+
+	/** record field with the image */
+	public static final PropertyDescriptor IMAGE_FIELD = new PropertyDescriptor.Builder().name("imagefield")
+			.description("Name of the record field that holds the image or its path.  Can come from a flowfile attribute "
+					+ "through expression language").required(true).defaultValue("image")
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
+
+	/** what the image field holds */
+	public static final PropertyDescriptor IMAGE_SOURCE = new PropertyDescriptor.Builder().name("imagesource")
+			.description("What the image field holds.  path is a local file path, the file name becomes the image name.  "
+					+ "bytes is the image itself, as bytes or a base64 string").required(true)
+			.allowableValues(SOURCE_PATH, SOURCE_BYTES).defaultValue(SOURCE_PATH).build();
+
+	/** posts in flight per task */
+	public static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor.Builder().name("maxinflight")
+			.description("Maximum number of HTTP posts in flight at once per task.  Results are written in record order, "
+					+ "so this is also how far reading runs ahead of writing").required(true)
+			.defaultValue("10").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success")
+			.description("One flowfile of result records per incoming flowfile, posts that failed are in it with post_error or their status")
+			.build();
+
+	public static final Relationship REL_ORIGINAL = new Relationship.Builder().name("original")
+			.description("The incoming flowfile once its results are written").build();
+
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("Incoming flowfiles whose records could not be read or written").build();
+
+	/** Descriptors */
+    private List<PropertyDescriptor> descriptors;
+
+    /** Relationships */
+    private Set<Relationship> relationships;
+
+    /** async HTTP client, created on schedule and closed on stop */
+    private volatile HTTPPostUtility postUtility;
+
+    /** request properties resolved on schedule */
+    private volatile PostRequestTemplate requestTemplate;
+
+    /** finds post_results in the response */
+    private volatile JsonResultExtractor resultExtractor;
+
+    /** replicas and their health */
+    private volatile LoadBalancer loadBalancer;
+
+    /** longest wait for a post in flight, the connect and read timeouts */
+    private volatile long responseTimeoutNanos;
+
+    /** Initialize */
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(RECORD_READER);
+		descriptors.add(RECORD_WRITER);
+		descriptors.add(IMAGE_FIELD);
+		descriptors.add(IMAGE_SOURCE);
+		descriptors.add(PostImageProcessor.URL_NAME);
+		descriptors.add(PostImageProcessor.FIELD_NAME);
+		descriptors.add(PostImageProcessor.IMAGE_NAME);
+		descriptors.add(PostImageProcessor.IMAGE_TYPE);
+		descriptors.add(PostImageProcessor.HEADER_NAME);
+		descriptors.add(PostImageProcessor.HEADER_VALUE);
+		descriptors.add(PostImageProcessor.BASIC_USERNAME);
+		descriptors.add(PostImageProcessor.BASIC_PASSWORD);
+		descriptors.add(PostImageProcessor.OAUTH2_TOKEN_URL);
+		descriptors.add(PostImageProcessor.OAUTH2_CLIENT_ID);
+		descriptors.add(PostImageProcessor.OAUTH2_CLIENT_SECRET);
+		descriptors.add(PostImageProcessor.OAUTH2_SCOPE);
+		descriptors.add(PostImageProcessor.OAUTH2_REFRESH_AHEAD);
+		descriptors.add(MAX_IN_FLIGHT);
+		descriptors.add(PostImageProcessor.MAX_CONNECTIONS);
+		descriptors.add(PostImageProcessor.MAX_CONNECTIONS_PER_ROUTE);
+		descriptors.add(PostImageProcessor.CONNECT_TIMEOUT);
+		descriptors.add(PostImageProcessor.READ_TIMEOUT);
+		descriptors.add(PostImageProcessor.MAX_RESPONSE_SIZE);
+		descriptors.add(PostImageProcessor.KEEP_ALIVE);
+		descriptors.add(PostImageProcessor.HTTP_VERSION);
+		descriptors.add(PostImageProcessor.WARM_CONNECTIONS);
+		descriptors.add(PostImageProcessor.DNS_CACHE_TTL);
+		descriptors.add(PostImageProcessor.RESULT_PATH);
+		descriptors.add(PostImageProcessor.LOAD_BALANCING);
+		descriptors.add(PostImageProcessor.EJECT_AFTER_FAILURES);
+		descriptors.add(PostImageProcessor.EJECT_DURATION);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_ORIGINAL);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		return PostImageProcessor.validateAuthentication(context);
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+		this.requestTemplate = new PostRequestTemplate(context);
+		this.responseTimeoutNanos = context.getProperty(PostImageProcessor.CONNECT_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS)
+				+ context.getProperty(PostImageProcessor.READ_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS);
+		this.resultExtractor = new JsonResultExtractor(context.getProperty(PostImageProcessor.RESULT_PATH).getValue());
+		this.loadBalancer = new LoadBalancer(context.getProperty(PostImageProcessor.LOAD_BALANCING).getValue(),
+				context.getProperty(PostImageProcessor.EJECT_AFTER_FAILURES).asInteger(),
+				context.getProperty(PostImageProcessor.EJECT_DURATION).asTimePeriod(TimeUnit.MILLISECONDS), 0, 0);
+		try {
+			this.postUtility = new HTTPPostUtility(
+					context.getProperty(PostImageProcessor.MAX_CONNECTIONS).asInteger(),
+					context.getProperty(PostImageProcessor.MAX_CONNECTIONS_PER_ROUTE).asInteger(),
+					context.getProperty(PostImageProcessor.CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+					context.getProperty(PostImageProcessor.READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+					context.getProperty(PostImageProcessor.KEEP_ALIVE).asTimePeriod(TimeUnit.MILLISECONDS),
+					PostImageProcessor.HTTP_2.equals(context.getProperty(PostImageProcessor.HTTP_VERSION).getValue()),
+					context.getProperty(PostImageProcessor.DNS_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS),
+					context.getProperty(PostImageProcessor.MAX_RESPONSE_SIZE).asDataSize(DataUnit.B).intValue());
+		} catch (IOReactorException e) {
+			throw new ProcessException("Unable to create HTTP client", e);
+		}
+		postUtility.setTokenProvider(PostImageProcessor.tokenProvider(context, postUtility));
+		PostImageProcessor.warmUp(context, postUtility, getLogger());
+    }
+
+    @OnStopped
+    public void onStopped() {
+		if (postUtility != null) {
+			try {
+				postUtility.close();
+			} catch (IOException e) {
+				getLogger().warn("Unable to close HTTP client " + e.getLocalizedMessage());
+			}
+			postUtility = null;
+		}
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		final FlowFile flowFile = session.get();
+		if (flowFile == null) {
+			return;
+		}
+		final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+		final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+		final String imageField = context.getProperty(IMAGE_FIELD).evaluateAttributeExpressions(flowFile).getValue();
+		final boolean bytes = SOURCE_BYTES.equals(context.getProperty(IMAGE_SOURCE).getValue());
+		final int maxInFlight = context.getProperty(MAX_IN_FLIGHT).asInteger();
+
+		FlowFile output = session.create(flowFile);
+		final Deque<PendingRecord> window = new ArrayDeque<PendingRecord>(maxInFlight);
+		final Map<String, String> attributes = new HashMap<String, String>();
+		int failed = 0;
+		try (final InputStream in = session.read(flowFile);
+			 final RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger())) {
+			// records carry the fields they have, the writer maps them onto its own schema
+			final RecordSchema schema = resultSchema(reader.getSchema());
+			final RecordSchema writeSchema = writerFactory.getSchema(flowFile.getAttributes(), schema);
+			try (final OutputStream out = session.write(output);
+				 final RecordSetWriter writer = writerFactory.createWriter(getLogger(), writeSchema, out)) {
+				writer.beginRecordSet();
+				// posts run ahead of the writer by up to the window, results are written in record order
+				Record record;
+				while ((record = reader.nextRecord()) != null) {
+					if (window.size() >= maxInFlight) {
+						failed += write(writer, schema, window.poll());
+					}
+					window.add(post(flowFile, record, imageField, bytes));
+				}
+				while (!window.isEmpty()) {
+					failed += write(writer, schema, window.poll());
+				}
+				final WriteResult result = writer.finishRecordSet();
+				attributes.putAll(result.getAttributes());
+				attributes.put("record.count", String.valueOf(result.getRecordCount()));
+				attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel(window);
+			session.remove(output);
+			throw new ProcessException(e);
+		} catch (SchemaNotFoundException | MalformedRecordException | IOException e) {
+			cancel(window);
+			session.remove(output);
+			getLogger().error("Unable to post the images of " + flowFile + " " + e.getLocalizedMessage());
+			session.transfer(flowFile, REL_FAILURE);
+			return;
+		}
+
+		attributes.put(ATTRIBUTE_FAILED_COUNT, String.valueOf(failed));
+		output = session.putAllAttributes(output, attributes);
+		session.adjustCounter("post.records", Long.parseLong(attributes.get("record.count")), false);
+		if (failed > 0) {
+			session.adjustCounter("post.records.failed", failed, false);
+		}
+		session.transfer(output, REL_SUCCESS);
+		session.transfer(flowFile, REL_ORIGINAL);
+    }
+
+    /**
+     * the incoming schema with the result fields, replacing any of the same name
+     */
+	static RecordSchema resultSchema(final RecordSchema schema) {
+		final List<RecordField> fields = new ArrayList<RecordField>(schema.getFieldCount() + RESULT_FIELDS.size());
+		for (final RecordField field : schema.getFields()) {
+			if (!isResultField(field.getFieldName())) {
+				fields.add(field);
+			}
+		}
+		fields.addAll(RESULT_FIELDS);
+		return new SimpleRecordSchema(fields);
+	}
+
+	private static boolean isResultField(final String name) {
+		for (final RecordField field : RESULT_FIELDS) {
+			if (field.getFieldName().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts the post of the record's image.  A record without a readable image gets an error
+	 * instead of a post.
+	 */
+	private PendingRecord post(final FlowFile flowFile, final Record record, final String imageField,
+							   final boolean bytes) {
+		PostRequest request = requestTemplate.resolve(flowFile);
+		final Object value = record.getValue(imageField);
+		final InputStream input;
+		final long size;
+		try {
+			if (value == null) {
+				return new PendingRecord(record, null, null, "No image in field " + imageField);
+			}
+			if (bytes) {
+				final byte[] image = bytes(value);
+				if (image == null) {
+					return new PendingRecord(record, null, null, "Field " + imageField + " does not hold bytes");
+				}
+				input = new ByteArrayInputStream(image);
+				size = image.length;
+			} else {
+				final File file = new File(value.toString());
+				size = file.length();
+				input = new FileInputStream(file);
+				request = request.withImageName(file.getName());
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			return new PendingRecord(record, null, null, String.valueOf(e));
+		}
+
+		final Endpoint endpoint = loadBalancer.select(request.getUrl());
+		final long started = System.nanoTime();
+		final CompletableFuture<HTTPPostResults> future;
+		try {
+			future = postUtility.postImage(endpoint.getUrl(), request, input, size);
+		} catch (IOException | RuntimeException e) {
+			loadBalancer.cancelled(endpoint);
+			close(input);
+			return new PendingRecord(record, null, null, String.valueOf(e));
+		}
+		future.whenComplete(new BiConsumer<HTTPPostResults, Throwable>() {
+			@Override
+			public void accept(HTTPPostResults results, Throwable t) {
+				final long latency = System.nanoTime() - started;
+				endpoint.getMetrics().record(results, latency);
+				loadBalancer.completed(endpoint, latency,
+						t != null || (results != null && results.getStatusCode() >= 500),
+						results != null && results.getStatusCode() == 429);
+			}
+		});
+		return new PendingRecord(record, input, future, null);
+	}
+
+	/**
+	 * the image of a bytes field, arrays of bytes come from most readers, strings are base64
+	 */
+	private static byte[] bytes(final Object value) {
+		if (value instanceof byte[]) {
+			return (byte[]) value;
+		}
+		if (value instanceof ByteBuffer) {
+			final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+			final byte[] image = new byte[buffer.remaining()];
+			buffer.get(image);
+			return image;
+		}
+		if (value instanceof Object[]) {
+			final Object[] array = (Object[]) value;
+			final byte[] image = new byte[array.length];
+			for (int i = 0; i < array.length; i++) {
+				if (!(array[i] instanceof Number)) {
+					return null;
+				}
+				image[i] = ((Number) array[i]).byteValue();
+			}
+			return image;
+		}
+		if (value instanceof String) {
+			return Base64.getMimeDecoder().decode(((String) value).getBytes(StandardCharsets.US_ASCII));
+		}
+		return null;
+	}
+
+	/**
+	 * waits for the record's post and writes the record with its results
+	 *
+	 * @return 1 if the post failed, otherwise 0
+	 */
+	private int write(final RecordSetWriter writer, final RecordSchema schema, final PendingRecord pending)
+			throws IOException, InterruptedException {
+		HTTPPostResults results = null;
+		String error = pending.error;
+		if (pending.future != null) {
+			try {
+				results = pending.future.get(responseTimeoutNanos, TimeUnit.NANOSECONDS);
+				if (results == null) {
+					error = "No response";
+				}
+			} catch (TimeoutException e) {
+				// the client lost the post, do not hold the thread for it
+				pending.future.cancel(true);
+				error = "No response within " + TimeUnit.NANOSECONDS.toMillis(responseTimeoutNanos) + " ms";
+			} catch (ExecutionException e) {
+				error = String.valueOf(e.getCause());
+			} finally {
+				close(pending.input);
+			}
+		}
+
+		final Map<String, Object> values = new HashMap<String, Object>(pending.record.toMap());
+		if (results != null) {
+			values.put(FIELD_RESULTS, resultExtractor.extract(results.getBody()));
+			values.put(FIELD_STATUS, results.getStatus());
+			values.put(FIELD_STATUS_CODE, results.getStatusCode());
+			values.put(FIELD_LATENCY, TimeUnit.NANOSECONDS.toMillis(results.getTotalNanos()));
+		}
+		values.put(FIELD_ERROR, error);
+		writer.write(new MapRecord(schema, values));
+		return error != null || results.getStatusCode() < 200 || results.getStatusCode() >= 300 ? 1 : 0;
+	}
+
+	private static void cancel(final Deque<PendingRecord> window) {
+		for (final PendingRecord pending : window) {
+			if (pending.future != null) {
+				pending.future.cancel(true);
+			}
+			close(pending.input);
+		}
+		window.clear();
+	}
+
+	private static void close(final InputStream input) {
+		if (input == null) {
+			return;
+		}
+		try {
+			input.close();
+		} catch (IOException e) {
+			// the post is finished with it either way
+		}
+	}
+
+	/** a record whose post has been started, or that failed before it could be */
+	private static final class PendingRecord {
+		final Record record;
+		final InputStream input;
+		final CompletableFuture<HTTPPostResults> future;
+		final String error;
+
+		PendingRecord(Record record, InputStream input, CompletableFuture<HTTPPostResults> future, String error) {
+			this.record = record;
+			this.input = input;
+			this.future = future;
+			this.error = error;
+		}
+	}
+}
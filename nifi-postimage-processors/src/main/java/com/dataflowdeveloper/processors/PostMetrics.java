@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms, byte counts and status counts of the posts to one {@link Endpoint}.  Every post
+ * is split into the wait for a connection, the upload, the wait for the first byte of the response,
+ * and the total.  Recording never allocates.
+ */
+public class PostMetrics {
+
+	/** status counts are kept by class, 1xx to 5xx, with posts that got no response at 0 */
+	private static final int NO_RESPONSE = 0;
+
+	private final LatencyHistogram connect = new LatencyHistogram();
+	private final LatencyHistogram upload = new LatencyHistogram();
+	private final LatencyHistogram firstByte = new LatencyHistogram();
+	private final LatencyHistogram total = new LatencyHistogram();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLongArray statuses = new AtomicLongArray(6);
+
+	/**
+	 * @param results
+	 *            response with its timings, null when the post failed
+	 * @param totalNanos
+	 *            how long the post took as the caller saw it
+	 */
+	public void record(HTTPPostResults results, long totalNanos) {
+		total.record(totalNanos);
+		if (results == null) {
+			statuses.incrementAndGet(NO_RESPONSE);
+			return;
+		}
+		connect.record(results.getConnectNanos());
+		upload.record(results.getUploadNanos());
+		firstByte.record(results.getFirstByteNanos());
+		bytesSent.addAndGet(results.getBytesSent());
+		bytesReceived.addAndGet(results.getBytesReceived());
+		int statusClass = results.getStatusCode() / 100;
+		statuses.incrementAndGet(statusClass >= 1 && statusClass <= 5 ? statusClass : NO_RESPONSE);
+	}
+
+	/**
+	 * @return posts recorded so far
+	 */
+	public long getCount() {
+		return total.getCount();
+	}
+
+	/**
+	 * @param percentile
+	 *            like 95
+	 * @return total latency at the percentile in milliseconds, 0 when nothing was recorded
+	 */
+	public double percentileMillis(double percentile) {
+		return total.snapshot().getPercentileMillis(percentile);
+	}
+
+	/**
+	 * @param outstanding
+	 *            posts in flight to the endpoint now
+	 * @return the numbers so far
+	 */
+	public Snapshot snapshot(int outstanding) {
+		long[] statusCounts = new long[statuses.length()];
+		for (int i = 0; i < statusCounts.length; i++) {
+			statusCounts[i] = statuses.get(i);
+		}
+		return new Snapshot(connect.snapshot(), upload.snapshot(), firstByte.snapshot(), total.snapshot(),
+				bytesSent.get(), bytesReceived.get(), outstanding, statusCounts);
+	}
+
+	/**
+	 * The metrics of one endpoint at one moment, for a reporting task or the logs.
+	 */
+	public static class Snapshot {
+
+		private final LatencyHistogram.Snapshot connect;
+		private final LatencyHistogram.Snapshot upload;
+		private final LatencyHistogram.Snapshot firstByte;
+		private final LatencyHistogram.Snapshot total;
+		private final long bytesSent;
+		private final long bytesReceived;
+		private final int inFlight;
+		private final long[] statuses;
+
+		Snapshot(LatencyHistogram.Snapshot connect, LatencyHistogram.Snapshot upload,
+				 LatencyHistogram.Snapshot firstByte, LatencyHistogram.Snapshot total, long bytesSent,
+				 long bytesReceived, int inFlight, long[] statuses) {
+			this.connect = connect;
+			this.upload = upload;
+			this.firstByte = firstByte;
+			this.total = total;
+			this.bytesSent = bytesSent;
+			this.bytesReceived = bytesReceived;
+			this.inFlight = inFlight;
+			this.statuses = statuses;
+		}
+
+		/**
+		 * @return from the post starting to a connection being ready, including the wait for a pooled one
+		 */
+		public LatencyHistogram.Snapshot getConnect() {
+			return connect;
+		}
+
+		/**
+		 * @return from the connection being ready to the last byte of the request being sent
+		 */
+		public LatencyHistogram.Snapshot getUpload() {
+			return upload;
+		}
+
+		/**
+		 * @return from the request being sent to the response headers, mostly inference time
+		 */
+		public LatencyHistogram.Snapshot getFirstByte() {
+			return firstByte;
+		}
+
+		public LatencyHistogram.Snapshot getTotal() {
+			return total;
+		}
+
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		/**
+		 * @param statusClass
+		 *            1 to 5 for 1xx to 5xx, 0 for posts that got no response
+		 * @return posts that completed with the status class
+		 */
+		public long getStatusCount(int statusClass) {
+			return statuses[statusClass];
+		}
+
+		@Override
+		public String toString() {
+			return "PostMetrics [total=" + total + ", connect=" + connect + ", upload=" + upload + ", firstByte="
+					+ firstByte + ", bytesSent=" + bytesSent + ", bytesReceived=" + bytesReceived + ", inFlight="
+					+ inFlight + ", 2xx=" + statuses[2] + ", 4xx=" + statuses[4] + ", 5xx=" + statuses[5]
+					+ ", noResponse=" + statuses[NO_RESPONSE] + "]";
+		}
+	}
+}
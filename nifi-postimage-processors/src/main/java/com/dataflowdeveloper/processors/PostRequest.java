@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import org.apache.http.Header;
+
+/**
+ * Everything needed to post one image, resolved from the processor properties and the flowfile.
+ * Immutable, so a request with no flowfile dependent values is shared by every post.
+ */
+public class PostRequest {
+
+	private static final Header[] NO_HEADERS = new Header[0];
+
+	private final String url;
+	private final String fieldName;
+	private final String imageName;
+	private final String imageType;
+	private final Header[] headers;
+	private final String basicUsername;
+	private final String basicPassword;
+
+	/**
+	 *
+	 * @param url
+	 *            URL to post to
+	 * @param fieldName
+	 *            form field of the image
+	 * @param imageName
+	 *            file name of the image
+	 * @param imageType
+	 *            content type of the image
+	 * @param headers
+	 *            extra request headers, may be null
+	 * @param basicUsername
+	 *            basic auth user, may be null
+	 * @param basicPassword
+	 *            basic auth password, may be null
+	 */
+	public PostRequest(String url, String fieldName, String imageName, String imageType, Header[] headers,
+					   String basicUsername, String basicPassword) {
+		this.url = url;
+		this.fieldName = fieldName;
+		this.imageName = imageName;
+		this.imageType = imageType;
+		this.headers = headers == null ? NO_HEADERS : headers;
+		this.basicUsername = basicUsername;
+		this.basicPassword = basicPassword;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	public String getImageName() {
+		return imageName;
+	}
+
+	public String getImageType() {
+		return imageType;
+	}
+
+	/**
+	 * @return the headers, shared, do not modify
+	 */
+	public Header[] getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @param extension
+	 *            file extension of the new image like .jpg
+	 * @param type
+	 *            content type of the new image
+	 * @return the same request for an image that was re-encoded
+	 */
+	public PostRequest withImage(String extension, String type) {
+		String name = imageName;
+		int dot = name == null ? -1 : name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return new PostRequest(url, fieldName, name + extension, type, headers, basicUsername, basicPassword);
+	}
+
+	/**
+	 * @param name
+	 *            file name of the image
+	 * @return the same request for an image with another name
+	 */
+	public PostRequest withImageName(String name) {
+		return new PostRequest(url, fieldName, name, imageType, headers, basicUsername, basicPassword);
+	}
+
+	public String getBasicUsername() {
+		return basicUsername;
+	}
+
+	public String getBasicPassword() {
+		return basicPassword;
+	}
+
+	@Override
+	public String toString() {
+		return "PostRequest [url=" + url + ", fieldName=" + fieldName + ", imageName=" + imageName
+				+ ", imageType=" + imageType + "]";
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+
+import org.apache.http.Header;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+
+/**
+ * The request properties resolved once when the processor is scheduled.  Values without
+ * expression language are fixed, as are the parsed content type and the headers, including the
+ * Basic Authorization header, so only expressions and flowfile attribute overrides are evaluated
+ * per flowfile.  When a flowfile has neither, every post shares one {@link PostRequest}.
+ */
+public class PostRequestTemplate {
+
+	/** a credential pair and its header, encoded once */
+	private static final class BasicCredentials {
+		final String username;
+		final String password;
+		final Header authorization;
+
+		BasicCredentials(String username, String password) {
+			this.username = username;
+			this.password = password;
+			this.authorization = basicAuthorization(username, password);
+		}
+	}
+
+	/** one property, fixed or evaluated per flowfile */
+	private static final class Value {
+		final String name;
+		final PropertyValue expression;
+		final String fixed;
+
+		Value(ProcessContext context, PropertyDescriptor descriptor, String defaultValue) {
+			this.name = descriptor.getName();
+			PropertyValue property = context.getProperty(descriptor);
+			if (dependsOnFlowFile(property)) {
+				this.expression = property;
+				this.fixed = defaultValue;
+			} else {
+				this.expression = null;
+				final String value = fixedValue(property, descriptor);
+				this.fixed = value == null ? defaultValue : value;
+			}
+		}
+
+		boolean isFixed() {
+			return expression == null;
+		}
+
+		/**
+		 * flowfile attribute wins, then the property, then the default
+		 */
+		String resolve(FlowFile flowFile) {
+			String value = flowFile.getAttribute(name);
+			if (value == null && expression != null) {
+				value = expression.evaluateAttributeExpressions(flowFile).getValue();
+			}
+			return value == null ? fixed : value;
+		}
+
+		boolean overridden(FlowFile flowFile) {
+			return flowFile.getAttribute(name) != null;
+		}
+	}
+
+	private final Value url;
+	private final Value fieldName;
+	private final Value imageName;
+	private final Value imageType;
+	private final Value headerName;
+	private final Value headerValue;
+	private final Value basicUsername;
+	private final Value basicPassword;
+	private final Value[] values;
+
+	/** parsed once when the image type is fixed */
+	private final String fixedImageType;
+
+	/** built once when the header and the credentials are fixed */
+	private final Header[] fixedHeaders;
+
+	/** Authorization header of the credentials last resolved per flowfile */
+	private volatile BasicCredentials lastCredentials;
+
+	/** shared request when nothing depends on the flowfile, otherwise null */
+	private final PostRequest fixedRequest;
+
+	/**
+	 * @return true when the property holds an expression to evaluate per flowfile
+	 */
+	static boolean dependsOnFlowFile(PropertyValue property) {
+		return property.isSet() && property.isExpressionLanguagePresent();
+	}
+
+	/**
+	 * Value of a property without an expression.  Properties that support expressions are read
+	 * through them even so, with no attributes when the expression is meant for a flowfile.
+	 */
+	static String fixedValue(PropertyValue property, PropertyDescriptor descriptor) {
+		if (!descriptor.isExpressionLanguageSupported()) {
+			return property.getValue();
+		}
+		if (descriptor.getExpressionLanguageScope() == ExpressionLanguageScope.FLOWFILE_ATTRIBUTES) {
+			return property.evaluateAttributeExpressions(Collections.<String, String> emptyMap()).getValue();
+		}
+		return property.evaluateAttributeExpressions().getValue();
+	}
+
+	/**
+	 * @param context
+	 *            context of the scheduled processor
+	 */
+	public PostRequestTemplate(ProcessContext context) {
+		this.url = new Value(context, PostImageProcessor.URL_NAME, "http://localhost:8080/nifi");
+		this.fieldName = new Value(context, PostImageProcessor.FIELD_NAME, "data");
+		this.imageName = new Value(context, PostImageProcessor.IMAGE_NAME, "test.jpg");
+		this.imageType = new Value(context, PostImageProcessor.IMAGE_TYPE, "images/jpeg");
+		this.headerName = new Value(context, PostImageProcessor.HEADER_NAME, null);
+		this.headerValue = new Value(context, PostImageProcessor.HEADER_VALUE, null);
+		this.basicUsername = new Value(context, PostImageProcessor.BASIC_USERNAME, null);
+		this.basicPassword = new Value(context, PostImageProcessor.BASIC_PASSWORD, null);
+		this.values = new Value[] { url, fieldName, imageName, imageType, headerName, headerValue, basicUsername, basicPassword };
+
+		this.fixedImageType = imageType.isFixed() ? contentType(imageType.fixed) : null;
+		this.fixedHeaders = headersFixed()
+				? headers(headerName.fixed, headerValue.fixed, credentials(basicUsername.fixed, basicPassword.fixed)) : null;
+
+		boolean fixed = true;
+		for (Value value : values) {
+			fixed &= value.isFixed();
+		}
+		this.fixedRequest = fixed
+				? new PostRequest(url.fixed, fieldName.fixed, imageName.fixed, fixedImageType, fixedHeaders,
+						basicUsername.fixed, basicPassword.fixed)
+				: null;
+	}
+
+	/**
+	 * @param flowFile
+	 *            flowfile about to be posted
+	 * @return the request for the flowfile, shared when nothing depends on it
+	 */
+	public PostRequest resolve(FlowFile flowFile) {
+		if (fixedRequest != null && !overridden(flowFile)) {
+			return fixedRequest;
+		}
+		String type = imageType.isFixed() && !imageType.overridden(flowFile)
+				? fixedImageType : contentType(imageType.resolve(flowFile));
+		Header[] headers = headersFixed() && !headerName.overridden(flowFile) && !headerValue.overridden(flowFile)
+				&& !basicUsername.overridden(flowFile) && !basicPassword.overridden(flowFile)
+				? fixedHeaders : headers(headerName.resolve(flowFile), headerValue.resolve(flowFile),
+						credentials(basicUsername.resolve(flowFile), basicPassword.resolve(flowFile)));
+		// checked here so a bad name fails its own flowfile rather than the multipart post it joins
+		return new PostRequest(url.resolve(flowFile), MultipartBody.checkLine("Field name", fieldName.resolve(flowFile)),
+				MultipartBody.checkLine("Image name", imageName.resolve(flowFile)),
+				type, headers, basicUsername.resolve(flowFile), basicPassword.resolve(flowFile));
+	}
+
+	private boolean overridden(FlowFile flowFile) {
+		for (Value value : values) {
+			if (value.overridden(flowFile)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * the image type checked and normalized the way it goes on the wire
+	 */
+	private static String contentType(String imageType) {
+		return ContentType.parse(imageType).toString();
+	}
+
+	private boolean headersFixed() {
+		return headerName.isFixed() && headerValue.isFixed() && basicUsername.isFixed() && basicPassword.isFixed();
+	}
+
+	/**
+	 * the Authorization header of the credentials, reused while they stay the same, null if there
+	 * is no username
+	 */
+	private Header credentials(String username, String password) {
+		if (username == null || username.length() <= 0) {
+			return null;
+		}
+		final String secret = password == null ? "" : password;
+		BasicCredentials credentials = lastCredentials;
+		if (credentials == null || !credentials.username.equals(username) || !credentials.password.equals(secret)) {
+			credentials = new BasicCredentials(username, secret);
+			lastCredentials = credentials;
+		}
+		return credentials.authorization;
+	}
+
+	private static Header[] headers(String name, String value, Header authorization) {
+		boolean header = name != null && name.length() > 0 && value != null && value.length() > 0;
+		if (!header) {
+			return authorization == null ? null : new Header[] { authorization };
+		}
+		return authorization == null ? new Header[] { new BasicHeader(name, value) }
+				: new Header[] { new BasicHeader(name, value), authorization };
+	}
+
+	/**
+	 * @param username
+	 *            user
+	 * @param password
+	 *            password
+	 * @return the Basic Authorization header of the pair
+	 */
+	static Header basicAuthorization(String username, String password) {
+		return new BasicHeader("Authorization", "Basic "
+				+ Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8)));
+	}
+}
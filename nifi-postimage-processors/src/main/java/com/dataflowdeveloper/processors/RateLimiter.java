@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets of requests and bytes per second for each key, like the host of a metered API
+ * or the API key a post is sent with, shared by every task of the processor.  Each bucket is
+ * kept as the time it will next be empty, the generic cell rate algorithm, so taking from it is
+ * one compare and set with no lock and no timer refilling it.  A full bucket holds the burst's
+ * worth of each rate, and a post bigger than the whole bucket still goes once the bucket is full.
+ */
+public class RateLimiter {
+
+	/** one rate, as the time its bucket is empty again */
+	private static final class Bucket {
+		final AtomicLong emptyAt;
+
+		Bucket(long now) {
+			this.emptyAt = new AtomicLong(now);
+		}
+	}
+
+	/** the buckets of one key */
+	private static final class Buckets {
+		final Bucket requests;
+		final Bucket bytes;
+
+		Buckets(long now) {
+			this.requests = new Bucket(now);
+			this.bytes = new Bucket(now);
+		}
+	}
+
+	private final double nanosPerRequest;
+	private final double nanosPerByte;
+	private final long burstNanos;
+	private final int maxKeys;
+	private final ConcurrentMap<String, Buckets> keys = new ConcurrentHashMap<String, Buckets>();
+
+	/**
+	 *
+	 * @param requestsPerSecond
+	 *            posts allowed per second, 0 for no limit
+	 * @param bytesPerSecond
+	 *            bytes allowed per second, 0 for no limit
+	 * @param burstMillis
+	 *            how much of each rate a full bucket holds
+	 * @param maxKeys
+	 *            keys tracked before idle ones are forgotten
+	 */
+	public RateLimiter(double requestsPerSecond, double bytesPerSecond, long burstMillis, int maxKeys) {
+		this.nanosPerRequest = requestsPerSecond > 0 ? 1e9 / requestsPerSecond : 0;
+		this.nanosPerByte = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+		this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, burstMillis));
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Takes one post of the size from the buckets of the key, or nothing if either is short.
+	 *
+	 * @param key
+	 *            host or API key the post counts against
+	 * @param bytes
+	 *            size of the post
+	 * @return true if the post may go out now
+	 */
+	public boolean tryAcquire(String key, long bytes) {
+		final long now = System.nanoTime();
+		final Buckets buckets = buckets(key, now);
+		final long requestCost = (long) nanosPerRequest;
+		// taken even without a request rate, a pause is kept in this bucket
+		if (!take(buckets.requests, requestCost, now)) {
+			return false;
+		}
+		final long byteCost = (long) (nanosPerByte * bytes);
+		if (byteCost > 0 && !take(buckets.bytes, byteCost, now)) {
+			if (requestCost > 0) {
+				buckets.requests.emptyAt.addAndGet(-requestCost);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Holds posts to the key back, like after a 429 with a Retry-After.
+	 *
+	 * @param key
+	 *            host or API key
+	 * @param millis
+	 *            how long to send nothing
+	 */
+	public void pause(String key, long millis) {
+		final long now = System.nanoTime();
+		final Bucket requests = buckets(key, now).requests;
+		// past the burst by the pause, so nothing is taken until it is over
+		final long until = now + burstNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+		for (;;) {
+			final long emptyAt = requests.emptyAt.get();
+			if (emptyAt - until >= 0 || requests.emptyAt.compareAndSet(emptyAt, until)) {
+				return;
+			}
+		}
+	}
+
+	private boolean take(Bucket bucket, long cost, long now) {
+		for (;;) {
+			final long emptyAt = bucket.emptyAt.get();
+			final boolean full = emptyAt - now <= 0;
+			if (full && cost == 0) {
+				return true;
+			}
+			final long from = full ? now : emptyAt;
+			if (!full && from + cost - now > burstNanos) {
+				return false;
+			}
+			if (bucket.emptyAt.compareAndSet(emptyAt, from + cost)) {
+				return true;
+			}
+		}
+	}
+
+	private Buckets buckets(String key, long now) {
+		final String name = key == null ? "" : key;
+		Buckets buckets = keys.get(name);
+		if (buckets == null) {
+			if (keys.size() >= maxKeys) {
+				forgetIdle(now);
+			}
+			final Buckets created = new Buckets(now);
+			buckets = keys.putIfAbsent(name, created);
+			if (buckets == null) {
+				buckets = created;
+			}
+		}
+		return buckets;
+	}
+
+	/** drops keys whose buckets are full again, they would start the same way */
+	private void forgetIdle(long now) {
+		for (Map.Entry<String, Buckets> entry : keys.entrySet()) {
+			final Buckets buckets = entry.getValue();
+			if (now - buckets.requests.emptyAt.get() >= 0 && now - buckets.bytes.emptyAt.get() >= 0) {
+				keys.remove(entry.getKey(), buckets);
+			}
+		}
+	}
+
+	/**
+	 * @param url
+	 *            URL a post goes to
+	 * @return the host and port, the default key
+	 */
+	static String host(String url) {
+		try {
+			final URI uri = URI.create(url);
+			return uri.getPort() < 0 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+		} catch (IllegalArgumentException e) {
+			return url;
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.apache.nifi.distributed.cache.client.exception.DeserializationException;
+
+/**
+ * Results of earlier posts keyed by a hash of the image content, the URL and the field name.
+ * A bounded LRU in memory, optionally backed by a {@link DistributedMapCacheClient} so the nodes
+ * of a cluster share hits.  Entries older than the time to live are ignored.
+ */
+public class ResultCache {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<byte[]> READ_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BufferPool.DEFAULT_BUFFER_SIZE];
+		}
+	};
+
+	private static final Serializer<String> KEY_SERIALIZER = new Serializer<String>() {
+		@Override
+		public void serialize(String value, OutputStream output) throws IOException {
+			output.write(value.getBytes(StandardCharsets.UTF_8));
+		}
+	};
+
+	/** first byte of a shared entry, entries in any other format are misses */
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Shared entries are plain fields rather than serialized objects, whoever can write to the cache
+	 * server must not get to pick the classes this JVM instantiates.
+	 */
+	private static final Serializer<Entry> VALUE_SERIALIZER = new Serializer<Entry>() {
+		@Override
+		public void serialize(Entry value, OutputStream output) throws IOException {
+			final DataOutputStream out = new DataOutputStream(output);
+			final HTTPPostResults results = value.results;
+			out.writeByte(FORMAT_VERSION);
+			out.writeLong(value.created);
+			out.writeInt(results.getStatusCode());
+			writeString(out, results.getStatus());
+			writeString(out, results.getHeader());
+			writeString(out, results.getContentType());
+			writeString(out, results.getJsonResultBody());
+			writeString(out, results.getRetryAfter());
+			out.writeInt(results.getInferenceHeaderLength());
+			writeBytes(out, results.getBody());
+			out.flush();
+		}
+	};
+
+	private static final Deserializer<Entry> VALUE_DESERIALIZER = new Deserializer<Entry>() {
+		@Override
+		public Entry deserialize(byte[] input) throws DeserializationException, IOException {
+			if (input == null || input.length == 0 || input[0] != FORMAT_VERSION) {
+				return null;
+			}
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(input, 1, input.length - 1));
+			try {
+				final long created = in.readLong();
+				final int statusCode = in.readInt();
+				final String status = readString(in, input.length);
+				final HTTPPostResults results = new HTTPPostResults(readString(in, input.length), status, null, statusCode);
+				results.setContentType(readString(in, input.length));
+				results.setJsonResultBody(readString(in, input.length));
+				results.setRetryAfter(readString(in, input.length));
+				results.setInferenceHeaderLength(in.readInt());
+				results.setBody(readBytes(in, input.length));
+				return new Entry(results, created);
+			} catch (EOFException e) {
+				throw new DeserializationException(e);
+			}
+		}
+	};
+
+	/** cached results with the time they were stored */
+	static final class Entry {
+		final HTTPPostResults results;
+		final long created;
+
+		Entry(HTTPPostResults results, long created) {
+			this.results = results;
+			this.created = created;
+		}
+	}
+
+	private final Map<String, Entry> local;
+	private final long timeToLive;
+	private final DistributedMapCacheClient distributed;
+
+	/**
+	 *
+	 * @param maxEntries
+	 *            entries kept in memory, 0 to only use the distributed cache
+	 * @param timeToLive
+	 *            milliseconds a result stays valid
+	 * @param distributed
+	 *            shared cache, may be null
+	 */
+	public ResultCache(final int maxEntries, long timeToLive, DistributedMapCacheClient distributed) {
+		this.local = new LinkedHashMap<String, Entry>(Math.min(maxEntries, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		this.timeToLive = timeToLive;
+		this.distributed = distributed;
+	}
+
+	/**
+	 * @param key
+	 *            key from {@link #key(String, String, String)}
+	 * @return a copy of the cached results, null on a miss
+	 * @throws IOException
+	 *            if the distributed cache cannot be reached
+	 */
+	public HTTPPostResults get(String key) throws IOException {
+		long now = System.currentTimeMillis();
+		Entry entry;
+		synchronized (local) {
+			entry = local.get(key);
+		}
+		if (entry == null && distributed != null) {
+			try {
+				entry = distributed.get(key, KEY_SERIALIZER, VALUE_DESERIALIZER);
+			} catch (DeserializationException e) {
+				// cut short or written by something else, post again and overwrite it
+				entry = null;
+			}
+			if (entry != null && now - entry.created <= timeToLive) {
+				synchronized (local) {
+					local.put(key, entry);
+				}
+			}
+		}
+		if (entry == null || now - entry.created > timeToLive) {
+			return null;
+		}
+		return new HTTPPostResults(entry.results);
+	}
+
+	/**
+	 * @param key
+	 *            key from {@link #key(String, String, String)}
+	 * @param results
+	 *            results of a successful post, copied
+	 * @throws IOException
+	 *            if the distributed cache cannot be reached
+	 */
+	public void put(String key, HTTPPostResults results) throws IOException {
+		Entry entry = new Entry(new HTTPPostResults(results), System.currentTimeMillis());
+		synchronized (local) {
+			local.put(key, entry);
+		}
+		if (distributed != null) {
+			distributed.put(key, entry, KEY_SERIALIZER, VALUE_SERIALIZER);
+		}
+	}
+
+	/** a length of -1 stands for null */
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** lengths are checked against the entry so a bad one cannot ask for more memory than it holds */
+	private static byte[] readBytes(DataInputStream in, int entryLength) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > entryLength) {
+			throw new DeserializationException(new IOException("Field of " + length + " bytes in an entry of " + entryLength));
+		}
+		final byte[] value = new byte[length];
+		in.readFully(value);
+		return value;
+	}
+
+	private static String readString(DataInputStream in, int entryLength) throws IOException {
+		final byte[] value = readBytes(in, entryLength);
+		return value == null ? null : new String(value, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Hashes the image with the target of the post.
+	 *
+	 * @param contentHash
+	 *            hash from {@link #hash(InputStream)}
+	 * @param url
+	 *            URL posted to
+	 * @param fieldName
+	 *            field the image is sent in
+	 * @return cache key
+	 */
+	public static String key(String contentHash, String url, String fieldName) {
+		return contentHash + ' ' + fieldName + ' ' + url;
+	}
+
+	/**
+	 * @param in
+	 *            image content, read to the end but not closed
+	 * @return hex SHA-256 of the content
+	 * @throws IOException
+	 *            if the content cannot be read
+	 */
+	public static String hash(InputStream in) throws IOException {
+		MessageDigest digest = DIGEST.get();
+		byte[] buffer = READ_BUFFER.get();
+		digest.reset();
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			digest.update(buffer, 0, read);
+		}
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Collects the response into {@link HTTPPostResults} as raw bytes.  Nothing is decoded or parsed
+ * here, the processor decides whether the body goes to content or is searched for an attribute.
+ */
+public class ResultResponseConsumer extends AbstractAsyncResponseConsumer<HTTPPostResults> {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/** most bytes allocated up front, a bigger Content-Length is grown into as the body arrives */
+	private static final int MAX_INITIAL_SIZE = 1024 * 1024;
+
+	private final MultipartRequestProducer producer;
+	private final int maxResponseSize;
+	private HttpResponse response;
+	private long responseReceived;
+	private String contentType;
+	private byte[] body = EMPTY;
+	private int length;
+
+	/**
+	 * a consumer that records no timings
+	 */
+	public ResultResponseConsumer() {
+		this(null);
+	}
+
+	/**
+	 * @param producer
+	 *            producer of the request, timings of the post are read from it
+	 */
+	public ResultResponseConsumer(MultipartRequestProducer producer) {
+		this(producer, HTTPPostUtility.DEFAULT_MAX_RESPONSE_SIZE);
+	}
+
+	/**
+	 * @param producer
+	 *            producer of the request, timings of the post are read from it
+	 * @param maxResponseSize
+	 *            bytes of body read before the post fails
+	 */
+	public ResultResponseConsumer(MultipartRequestProducer producer, int maxResponseSize) {
+		this.producer = producer;
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	@Override
+	protected void onResponseReceived(HttpResponse response) {
+		this.responseReceived = System.nanoTime();
+		this.response = response;
+	}
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+		long contentLength = entity.getContentLength();
+		if (contentLength > maxResponseSize) {
+			throw new IOException("Response of " + contentLength + " bytes is larger than the " + maxResponseSize + " allowed");
+		}
+		this.body = new byte[contentLength >= 0 ? (int) Math.min(contentLength, MAX_INITIAL_SIZE) : 8192];
+		this.contentType = contentType != null ? contentType.toString() : null;
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		for (;;) {
+			if (length == body.length) {
+				if (length > maxResponseSize) {
+					throw new IOException("Response is larger than the " + maxResponseSize + " bytes allowed");
+				}
+				// one byte past the limit tells a body of exactly the limit from a bigger one
+				body = Arrays.copyOf(body, (int) Math.min(Math.max(8192, body.length * 2L), maxResponseSize + 1L));
+			}
+			int read = decoder.read(ByteBuffer.wrap(body, length, body.length - length));
+			if (read <= 0) {
+				return;
+			}
+			length += read;
+		}
+	}
+
+	@Override
+	protected HTTPPostResults buildResult(HttpContext context) {
+		HTTPPostResults results = new HTTPPostResults();
+		results.setHeader(headers(response));
+		if ( response.getStatusLine().getReasonPhrase() != null ) {
+			results.setStatus(response.getStatusLine().getReasonPhrase());
+		}
+		results.setStatusCode(response.getStatusLine().getStatusCode());
+		results.setContentType(contentType);
+		results.setBody(length == body.length ? body : Arrays.copyOf(body, length));
+		results.setBytesReceived(length);
+		if (producer != null) {
+			timings(results, producer, responseReceived, System.nanoTime());
+		}
+		Header retryAfter = response.getFirstHeader("Retry-After");
+		if (retryAfter != null) {
+			results.setRetryAfter(retryAfter.getValue());
+		}
+		Header inferenceHeader = response.getFirstHeader(KServeV2Codec.HEADER_LENGTH);
+		if (inferenceHeader != null) {
+			results.setInferenceHeaderLength(KServeV2Codec.headerLength(inferenceHeader.getValue()));
+		}
+		return results;
+	}
+
+	@Override
+	protected void releaseResources() {
+		response = null;
+		body = EMPTY;
+	}
+
+	/**
+	 * A response that arrives before the request is fully sent ends the upload there.
+	 */
+	private static void timings(HTTPPostResults results, MultipartRequestProducer producer, long responseReceived,
+								long now) {
+		long created = producer.getCreated();
+		long connected = producer.getConnected() == 0 ? created : producer.getConnected();
+		long sent = producer.getSent() == 0 ? responseReceived : producer.getSent();
+		results.setTimings(connected - created, Math.max(0, sent - connected), Math.max(0, responseReceived - sent),
+				now - created);
+		results.setBytesSent(producer.getContentLength());
+	}
+
+	static String headers(HttpResponse response) {
+		Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+		for (Header header : response.getAllHeaders()) {
+			List<String> values = headers.get(header.getName());
+			if (values == null) {
+				values = new ArrayList<String>();
+				headers.put(header.getName(), values);
+			}
+			values.add(header.getValue());
+		}
+		return headers.toString();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Decides which failed posts are worth another try and how long they wait.  Connection errors,
+ * timeouts, dropped connections, 429 and 503 are retried with exponential backoff and jitter, or after the server's
+ * Retry-After when that is longer.
+ *
+ * Retries are also limited by a budget, a share of the posts that went out, so a struggling
+ * server sees at most that much extra traffic however many flowfiles fail at once.
+ */
+public class RetryPolicy {
+
+	/** retries always allowed per second, so a quiet flow can still retry */
+	private static final double MIN_RETRIES_PER_SECOND = 1;
+
+	/** most retries saved up in the budget */
+	private static final double MAX_BALANCE = 100;
+
+	private final int maxRetries;
+	private final long backoffMillis;
+	private final long maxBackoffMillis;
+	private final double budgetRatio;
+
+	private double balance = MAX_BALANCE;
+	private long refilled = System.nanoTime();
+
+	/**
+	 *
+	 * @param maxRetries
+	 *            retries of one flowfile before it goes to failure
+	 * @param backoffMillis
+	 *            wait before the first retry, doubled for each retry after it
+	 * @param maxBackoffMillis
+	 *            longest wait before a retry
+	 * @param budgetRatio
+	 *            retries allowed per post, like 0.2
+	 */
+	public RetryPolicy(int maxRetries, long backoffMillis, long maxBackoffMillis, double budgetRatio) {
+		this.maxRetries = maxRetries;
+		this.backoffMillis = backoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.budgetRatio = budgetRatio;
+	}
+
+	/**
+	 * @param results
+	 *            response, null when the post failed
+	 * @param error
+	 *            why the post failed, null when there is a response
+	 * @return true for a failure that may go away on its own
+	 */
+	public static boolean isRetryable(HTTPPostResults results, Throwable error) {
+		if (error != null) {
+			// only the transport, an image or response that fails once fails every time
+			for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+				if (isTransient(cause)) {
+					return true;
+				}
+				if (cause.getCause() == cause) {
+					break;
+				}
+			}
+			return false;
+		}
+		return results != null && (results.getStatusCode() == 429 || results.getStatusCode() == 503);
+	}
+
+	/**
+	 * @param error
+	 *            one link of a failure's cause chain
+	 * @return true for connect errors, resets, timeouts and connections closed before a response
+	 */
+	private static boolean isTransient(Throwable error) {
+		// SocketException covers ConnectException, NoRouteToHostException and resets,
+		// InterruptedIOException covers SocketTimeoutException and ConnectTimeoutException
+		return error instanceof SocketException || error instanceof InterruptedIOException
+				|| error instanceof org.apache.http.NoHttpResponseException
+				|| error instanceof org.apache.http.ConnectionClosedException
+				|| error instanceof org.apache.hc.core5.http.NoHttpResponseException
+				|| error instanceof org.apache.hc.core5.http.ConnectionClosedException
+				|| error instanceof org.apache.hc.core5.http.HttpStreamResetException;
+	}
+
+	/**
+	 * counts a post that went out toward the retry budget
+	 */
+	public synchronized void posted() {
+		balance = Math.min(MAX_BALANCE, balance + budgetRatio);
+	}
+
+	/**
+	 * @param retries
+	 *            retries the flowfile has had
+	 * @return true if the flowfile may be retried, it is then taken from the budget
+	 */
+	public synchronized boolean tryRetry(int retries) {
+		if (retries >= maxRetries) {
+			return false;
+		}
+		long now = System.nanoTime();
+		balance = Math.min(MAX_BALANCE, balance + (now - refilled) / 1e9 * MIN_RETRIES_PER_SECOND);
+		refilled = now;
+		if (balance < 1) {
+			return false;
+		}
+		balance -= 1;
+		return true;
+	}
+
+	/**
+	 * @param retries
+	 *            retries the flowfile has had
+	 * @param results
+	 *            response, may carry a Retry-After
+	 * @return milliseconds to wait before the next try
+	 */
+	public long backoff(int retries, HTTPPostResults results) {
+		// past the backoff's free high bits the shift would overflow, the cap is reached long before
+		int shift = Math.max(0, retries);
+		long cap = backoffMillis <= 0 ? 0
+				: shift >= Long.numberOfLeadingZeros(backoffMillis) - 1 ? maxBackoffMillis
+						: Math.min(maxBackoffMillis, backoffMillis << shift);
+		// half fixed, half random, so retries of a burst spread out but still back off
+		long backoff = cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+		long retryAfter = retryAfter(results == null ? null : results.getRetryAfter());
+		return Math.max(backoff, Math.min(retryAfter, maxBackoffMillis));
+	}
+
+	/**
+	 * @param value
+	 *            Retry-After header, seconds or an HTTP date
+	 * @return milliseconds to wait, 0 when absent or unreadable
+	 */
+	static long retryAfter(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()) * 1000);
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(value.trim());
+			return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Routing rules on the predictions of a response, compiled once when the processor is scheduled.
+ * A rule is one of
+ *
+ * <pre>
+ * giant panda &gt;= 0.8             a prediction with the label scores at least 0.8
+ * "panda, bear" &gt; 0.5             labels with commas or quotes are quoted
+ * top1 in cat, dog                the best prediction is one of the labels
+ * top1 in cat, dog &gt;= 0.6         and scores at least 0.6
+ * </pre>
+ *
+ * Label rules are looked up by label, so the predictions are read in one streaming pass however
+ * many rules there are.  The predictions are an array of objects with a label and a score field,
+ * or an object of label to score.
+ */
+public class RoutingRules {
+
+	private static final String TOP1 = "top1 in ";
+
+	/** one compiled rule */
+	private static final class Rule {
+		final int index;
+		final boolean top;
+		final double threshold;
+		final boolean inclusive;
+		final Set<String> labels;
+
+		Rule(int index, boolean top, double threshold, boolean inclusive, Set<String> labels) {
+			this.index = index;
+			this.top = top;
+			this.threshold = threshold;
+			this.inclusive = inclusive;
+			this.labels = labels;
+		}
+
+		boolean passes(double score) {
+			return inclusive ? score >= threshold : score > threshold;
+		}
+	}
+
+	private final JsonResultExtractor predictions;
+	private final String labelField;
+	private final String scoreField;
+	private final String[] names;
+	private final Map<String, List<Rule>> labelRules = new HashMap<String, List<Rule>>();
+	private final List<Rule> topRules = new ArrayList<Rule>();
+
+	/**
+	 *
+	 * @param rules
+	 *            rule by relationship name, in the order matches are returned
+	 * @param path
+	 *            JSON path of the predictions
+	 * @param labelField
+	 *            field of a prediction holding its label
+	 * @param scoreField
+	 *            field of a prediction holding its score
+	 * @throws IllegalArgumentException
+	 *            if a rule does not parse
+	 */
+	public RoutingRules(Map<String, String> rules, String path, String labelField, String scoreField) {
+		this.predictions = new JsonResultExtractor(path);
+		this.labelField = labelField;
+		this.scoreField = scoreField;
+		this.names = rules.keySet().toArray(new String[rules.size()]);
+		for (int i = 0; i < names.length; i++) {
+			Rule rule = parse(i, rules.get(names[i]));
+			if (!rule.top) {
+				String label = rule.labels.iterator().next();
+				List<Rule> forLabel = labelRules.get(label);
+				if (forLabel == null) {
+					forLabel = new ArrayList<Rule>(1);
+					labelRules.put(label, forLabel);
+				}
+				forLabel.add(rule);
+			} else {
+				topRules.add(rule);
+			}
+		}
+	}
+
+	/**
+	 * @param rule
+	 *            rule text
+	 * @throws IllegalArgumentException
+	 *            with the reason if the rule does not parse
+	 */
+	public static void validate(String rule) {
+		parse(0, rule);
+	}
+
+	private static Rule parse(int index, String text) {
+		String rule = text == null ? "" : text.trim();
+		boolean top = rule.startsWith(TOP1);
+		if (top) {
+			rule = rule.substring(TOP1.length());
+		}
+
+		// labels up to the comparison, commas split them outside quotes
+		Set<String> labels = new HashSet<String>();
+		StringBuilder label = new StringBuilder();
+		boolean quoted = false;
+		boolean wasQuoted = false;
+		int i = 0;
+		for (; i < rule.length(); i++) {
+			char c = rule.charAt(i);
+			if (quoted) {
+				if (c == '"') {
+					quoted = false;
+				} else {
+					label.append(c);
+				}
+			} else if (c == '"') {
+				if (label.toString().trim().length() > 0) {
+					throw new IllegalArgumentException("Quote inside the label " + label.toString().trim());
+				}
+				label.setLength(0);
+				quoted = true;
+				wasQuoted = true;
+			} else if (c == ',' || c == '>') {
+				add(labels, label, wasQuoted);
+				wasQuoted = false;
+				if (c == '>') {
+					break;
+				}
+				if (!top) {
+					throw new IllegalArgumentException("Quote a label with commas, or use top1 in for several labels");
+				}
+			} else if (!wasQuoted) {
+				label.append(c);
+			} else if (!Character.isWhitespace(c)) {
+				throw new IllegalArgumentException("Unexpected " + c + " after a quoted label");
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Unclosed quote in " + text);
+		}
+
+		double threshold = Double.NEGATIVE_INFINITY;
+		boolean inclusive = true;
+		if (i < rule.length()) {
+			inclusive = i + 1 < rule.length() && rule.charAt(i + 1) == '=';
+			String number = rule.substring(i + (inclusive ? 2 : 1)).trim();
+			try {
+				threshold = Double.parseDouble(number);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(number + " is not a score");
+			}
+		} else {
+			add(labels, label, wasQuoted);
+			if (!top) {
+				throw new IllegalArgumentException("Expected label >= score or top1 in labels");
+			}
+		}
+		if (labels.isEmpty()) {
+			throw new IllegalArgumentException("No label in " + text);
+		}
+		return new Rule(index, top, threshold, inclusive, Collections.unmodifiableSet(labels));
+	}
+
+	private static void add(Set<String> labels, StringBuilder label, boolean quoted) {
+		String value = quoted ? label.toString() : label.toString().trim();
+		if (value.length() > 0) {
+			labels.add(value);
+		}
+		label.setLength(0);
+	}
+
+	/**
+	 * @param body
+	 *            JSON response
+	 * @return names of the rules the predictions match, in rule order, empty if none or the
+	 *            response has no predictions
+	 */
+	public List<String> evaluate(byte[] body) {
+		boolean[] matched = new boolean[names.length];
+		String topLabel = null;
+		double topScore = Double.NEGATIVE_INFINITY;
+		try (JsonParser parser = predictions.open(body)) {
+			if (parser == null) {
+				return Collections.emptyList();
+			}
+			if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+				// label to score
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String label = parser.getCurrentName();
+					parser.nextToken();
+					double score = score(parser);
+					if (!Double.isNaN(score)) {
+						match(label, score, matched);
+						if (score > topScore) {
+							topLabel = label;
+							topScore = score;
+						}
+					}
+				}
+			} else if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+				while (parser.nextToken() != JsonToken.END_ARRAY) {
+					if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+						parser.skipChildren();
+						continue;
+					}
+					String label = null;
+					double score = Double.NaN;
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String field = parser.getCurrentName();
+						JsonToken token = parser.nextToken();
+						if (field.equals(labelField) && token.isScalarValue()) {
+							label = parser.getText();
+						} else if (field.equals(scoreField)) {
+							score = score(parser);
+						} else {
+							parser.skipChildren();
+						}
+					}
+					if (label != null && !Double.isNaN(score)) {
+						match(label, score, matched);
+						if (score > topScore) {
+							topLabel = label;
+							topScore = score;
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			// not JSON, nothing matches
+			return Collections.emptyList();
+		}
+
+		if (topLabel != null) {
+			for (Rule rule : topRules) {
+				if (rule.labels.contains(topLabel) && rule.passes(topScore)) {
+					matched[rule.index] = true;
+				}
+			}
+		}
+		List<String> routes = null;
+		for (int i = 0; i < matched.length; i++) {
+			if (matched[i]) {
+				if (routes == null) {
+					routes = new ArrayList<String>(2);
+				}
+				routes.add(names[i]);
+			}
+		}
+		return routes == null ? Collections.<String>emptyList() : routes;
+	}
+
+	private void match(String label, double score, boolean[] matched) {
+		List<Rule> rules = labelRules.get(label);
+		if (rules == null) {
+			return;
+		}
+		for (Rule rule : rules) {
+			if (rule.passes(score)) {
+				matched[rule.index] = true;
+			}
+		}
+	}
+
+	/**
+	 * a number, or a string holding one, NaN otherwise
+	 */
+	private static double score(JsonParser parser) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+			return parser.getDoubleValue();
+		}
+		if (token == JsonToken.VALUE_STRING) {
+			try {
+				return Double.parseDouble(parser.getText().trim());
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		parser.skipChildren();
+		return Double.NaN;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recent perceptual hashes of each source, like each camera, with a value for each.  A
+ * lookup finds the closest recent frame within a Hamming distance.  Frames from a fixed camera
+ * repeat the recent past, so a short window per source, compared with one XOR and bit count per
+ * frame, finds them without the upkeep of a tree.  Sources past the limit are dropped least
+ * recently used first.  Thread safe.
+ *
+ * @param <T>
+ *            value kept with each hash, like the results of its post
+ */
+public class SimilarityIndex<T> {
+
+	/** the closest frame found */
+	public static final class Match<T> {
+
+		private final T value;
+		private final int distance;
+
+		Match(T value, int distance) {
+			this.value = value;
+			this.distance = distance;
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		/**
+		 * @return bits that differ from the frame looked up
+		 */
+		public int getDistance() {
+			return distance;
+		}
+	}
+
+	/** ring of one source's recent frames */
+	private static final class Frames {
+		final long[] hashes;
+		final long[] added;
+		final Object[] values;
+		int next;
+
+		Frames(int window) {
+			this.hashes = new long[window];
+			this.added = new long[window];
+			this.values = new Object[window];
+		}
+	}
+
+	private final int window;
+	private final int maxDistance;
+	private final long ttlNanos;
+	private final Map<String, Frames> sources;
+
+	/**
+	 *
+	 * @param window
+	 *            recent frames kept per source
+	 * @param maxSources
+	 *            sources kept before the least recently used is dropped
+	 * @param maxDistance
+	 *            most bits that may differ for a frame to match
+	 * @param ttlMillis
+	 *            how long a frame can be matched
+	 */
+	public SimilarityIndex(int window, final int maxSources, int maxDistance, long ttlMillis) {
+		this.window = window;
+		this.maxDistance = maxDistance;
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.sources = new LinkedHashMap<String, Frames>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Frames> eldest) {
+				return size() > maxSources;
+			}
+		};
+	}
+
+	/**
+	 * @param source
+	 *            source of the frame
+	 * @param hash
+	 *            perceptual hash of the frame
+	 * @return the closest recent frame of the source within the distance, the newest on a tie, or
+	 *            null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized Match<T> find(String source, long hash) {
+		Frames frames = sources.get(source);
+		if (frames == null) {
+			return null;
+		}
+		long now = System.nanoTime();
+		int best = -1;
+		int bestDistance = maxDistance + 1;
+		for (int i = 1; i <= window; i++) {
+			int slot = (frames.next - i + window) % window;
+			if (frames.values[slot] == null || now - frames.added[slot] > ttlNanos) {
+				continue;
+			}
+			int distance = PerceptualHash.distance(hash, frames.hashes[slot]);
+			if (distance < bestDistance) {
+				best = slot;
+				bestDistance = distance;
+			}
+		}
+		return best < 0 ? null : new Match<T>((T) frames.values[best], bestDistance);
+	}
+
+	/**
+	 * Adds a frame, replacing the oldest of the source once the window is full.
+	 *
+	 * @param source
+	 *            source of the frame
+	 * @param hash
+	 *            perceptual hash of the frame
+	 * @param value
+	 *            value returned to frames that match it
+	 */
+	public synchronized void add(String source, long hash, T value) {
+		Frames frames = sources.get(source);
+		if (frames == null) {
+			frames = new Frames(window);
+			sources.put(source, frames);
+		}
+		frames.hashes[frames.next] = hash;
+		frames.added[frames.next] = System.nanoTime();
+		frames.values[frames.next] = value;
+		frames.next = (frames.next + 1) % window;
+	}
+
+	/**
+	 * Forgets a frame, like one whose post failed.
+	 *
+	 * @param source
+	 *            source of the frame
+	 * @param value
+	 *            value the frame was added with
+	 */
+	public synchronized void remove(String source, T value) {
+		Frames frames = sources.get(source);
+		if (frames == null) {
+			return;
+		}
+		for (int i = 0; i < window; i++) {
+			if (frames.values[i] == value) {
+				frames.values[i] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class ConcurrencyLimiterTest {
+
+	/**
+	 * sends rounds of posts up to the limit, each taking one of the latencies
+	 */
+	private static void rounds(ConcurrencyLimiter limiter, int rounds, Random random, double slowShare,
+							   long fastMillis, long slowMillis) {
+		for (int round = 0; round < rounds; round++) {
+			int acquired = 0;
+			while (limiter.tryAcquire()) {
+				acquired++;
+			}
+			for (int i = 0; i < acquired; i++) {
+				long millis = random.nextDouble() < slowShare ? slowMillis : fastMillis;
+				limiter.release(TimeUnit.MILLISECONDS.toNanos(millis), false);
+			}
+		}
+	}
+
+	@Test
+	public void testBimodalLatencyKeepsLimit() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 100);
+		// one image in five is large and takes ten times as long, the server is not overloaded
+		rounds(limiter, 500, new Random(42), 0.2, 10, 100);
+		assertTrue("limit " + limiter.getLimit(), limiter.getLimit() >= 10);
+	}
+
+	@Test
+	public void testLatencyClimbDrops() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 100);
+		Random random = new Random(42);
+		rounds(limiter, 50, random, 0, 10, 10);
+		int limit = limiter.getLimit();
+		rounds(limiter, 2, random, 1, 10, 50);
+		assertTrue(limiter.getLimit() + " after " + limit, limiter.getLimit() < limit);
+	}
+
+	@Test
+	public void testFailureDrops() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 100);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		limiter.release(TimeUnit.MILLISECONDS.toNanos(10), true);
+		limiter.release(TimeUnit.MILLISECONDS.toNanos(10), true);
+		assertTrue(limiter.tryAcquire());
+		assertFalse("the limit never falls below one", limiter.tryAcquire());
+	}
+}
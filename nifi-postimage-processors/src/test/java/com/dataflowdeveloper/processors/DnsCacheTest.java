@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class DnsCacheTest {
+
+	/** answers with a fixed address, or fails while down */
+	private static final class StubDns extends DnsCache {
+		final AtomicInteger lookups = new AtomicInteger();
+		final AtomicBoolean down = new AtomicBoolean();
+		volatile InetAddress[] addresses;
+
+		StubDns(long ttlMillis, String address) throws UnknownHostException {
+			super(ttlMillis, 2);
+			this.addresses = new InetAddress[] { InetAddress.getByName(address) };
+		}
+
+		@Override
+		InetAddress[] lookup(String host) throws UnknownHostException {
+			lookups.incrementAndGet();
+			if (down.get()) {
+				throw new UnknownHostException(host);
+			}
+			return addresses;
+		}
+	}
+
+	@Test
+	public void testCachedUntilTtl() throws Exception {
+		StubDns dns = new StubDns(50, "10.0.0.1");
+		assertArrayEquals(dns.addresses, dns.resolve("model"));
+		dns.resolve("model");
+		assertEquals(1, dns.lookups.get());
+
+		dns.addresses = new InetAddress[] { InetAddress.getByName("10.0.0.2") };
+		Thread.sleep(60);
+		assertEquals("10.0.0.2", dns.resolve("model")[0].getHostAddress());
+		assertEquals(2, dns.lookups.get());
+	}
+
+	@Test
+	public void testFailedLookupKeepsAddresses() throws Exception {
+		StubDns dns = new StubDns(20, "10.0.0.1");
+		dns.resolve("model");
+		dns.down.set(true);
+		Thread.sleep(30);
+		assertEquals("10.0.0.1", dns.resolve("model")[0].getHostAddress());
+		assertEquals("not asked again until another ttl", 2, dns.lookups.get());
+		dns.resolve("model");
+		assertEquals(2, dns.lookups.get());
+	}
+
+	@Test(expected = UnknownHostException.class)
+	public void testUnknownHost() throws Exception {
+		StubDns dns = new StubDns(1000, "10.0.0.1");
+		dns.down.set(true);
+		dns.resolve("model");
+	}
+
+	@Test
+	public void testCallerCannotChangeCache() throws Exception {
+		StubDns dns = new StubDns(1000, "10.0.0.1");
+		dns.resolve("model")[0] = InetAddress.getByName("10.0.0.9");
+		assertEquals("10.0.0.1", dns.resolve("model")[0].getHostAddress());
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class HedgePolicyTest {
+
+	private ScheduledExecutorService timer;
+
+	@Before
+	public void setUp() {
+		timer = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdownNow();
+	}
+
+	/** sends the given post as the hedge and counts the calls */
+	private static Supplier<CompletableFuture<HTTPPostResults>> hedge(final CompletableFuture<HTTPPostResults> post,
+																	  final AtomicInteger calls, final CountDownLatch sent) {
+		return new Supplier<CompletableFuture<HTTPPostResults>>() {
+			@Override
+			public CompletableFuture<HTTPPostResults> get() {
+				calls.incrementAndGet();
+				sent.countDown();
+				return post;
+			}
+		};
+	}
+
+	@Test
+	public void testSlowPostIsHedged() throws Exception {
+		HedgePolicy policy = new HedgePolicy("10", 0.05, timer);
+		CompletableFuture<HTTPPostResults> slow = new CompletableFuture<HTTPPostResults>();
+		HTTPPostResults fast = new HTTPPostResults("", "OK", "{}", 200);
+		HedgePolicy.Race race = policy.race(slow, 10, hedge(CompletableFuture.completedFuture(fast),
+				new AtomicInteger(), new CountDownLatch(1)));
+
+		assertSame(fast, race.getFuture().get(5, TimeUnit.SECONDS));
+		assertTrue(race.isHedged());
+		assertTrue(race.isHedgeWon());
+		assertTrue("the loser is cancelled", slow.isCancelled());
+		assertEquals(1, policy.getHedges());
+		assertEquals(1, policy.getWins());
+	}
+
+	@Test
+	public void testFastPostIsNotHedged() throws Exception {
+		HedgePolicy policy = new HedgePolicy("p95", 0.05, timer);
+		AtomicInteger calls = new AtomicInteger();
+		HTTPPostResults results = new HTTPPostResults("", "OK", "{}", 200);
+		HedgePolicy.Race race = policy.race(CompletableFuture.completedFuture(results), 20,
+				hedge(new CompletableFuture<HTTPPostResults>(), calls, new CountDownLatch(1)));
+
+		assertSame(results, race.getFuture().get(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertEquals(0, calls.get());
+		assertFalse(race.isHedged());
+	}
+
+	@Test
+	public void testFailureWaitsForTheOtherPost() throws Exception {
+		HedgePolicy policy = new HedgePolicy("0", 0.05, timer);
+		CompletableFuture<HTTPPostResults> first = new CompletableFuture<HTTPPostResults>();
+		CompletableFuture<HTTPPostResults> second = new CompletableFuture<HTTPPostResults>();
+		CountDownLatch sent = new CountDownLatch(1);
+		HedgePolicy.Race race = policy.race(first, 0, hedge(second, new AtomicInteger(), sent));
+		assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+		first.completeExceptionally(new IOException("connection reset"));
+		assertFalse("the hedge can still answer", race.getFuture().isDone());
+		HTTPPostResults results = new HTTPPostResults("", "OK", "{}", 200);
+		second.complete(results);
+		assertSame(results, race.getFuture().get(5, TimeUnit.SECONDS));
+		assertTrue(race.isHedgeWon());
+	}
+
+	@Test
+	public void testFailureWhileTheHedgeIsSent() throws Exception {
+		HedgePolicy policy = new HedgePolicy("0", 0.05, timer);
+		final CompletableFuture<HTTPPostResults> first = new CompletableFuture<HTTPPostResults>();
+		final IOException reset = new IOException("connection reset");
+		// the post fails after the hedge was begun but before there is one to wait for
+		HedgePolicy.Race race = policy.race(first, 0, new Supplier<CompletableFuture<HTTPPostResults>>() {
+			@Override
+			public CompletableFuture<HTTPPostResults> get() {
+				first.completeExceptionally(reset);
+				return null;
+			}
+		});
+		try {
+			race.getFuture().get(5, TimeUnit.SECONDS);
+			fail("no hedge went out, the failure ends the race");
+		} catch (ExecutionException e) {
+			assertSame(reset, e.getCause());
+		}
+		assertFalse(race.isHedged());
+	}
+
+	@Test
+	public void testBudget() throws Exception {
+		HedgePolicy policy = new HedgePolicy("0", 0, timer);
+		AtomicInteger calls = new AtomicInteger();
+		for (int i = 0; i < 15; i++) {
+			policy.race(new CompletableFuture<HTTPPostResults>(), 0,
+					hedge(new CompletableFuture<HTTPPostResults>(), calls, new CountDownLatch(1)));
+		}
+		Thread.sleep(100);
+		assertEquals("only the saved up budget is spent", 10, calls.get());
+	}
+
+	@Test
+	public void testNoCapacityRefundsBudget() throws Exception {
+		HedgePolicy policy = new HedgePolicy("0", 0, timer);
+		AtomicInteger calls = new AtomicInteger();
+		for (int i = 0; i < 15; i++) {
+			policy.race(new CompletableFuture<HTTPPostResults>(), 0, hedge(null, calls, new CountDownLatch(1)));
+		}
+		Thread.sleep(100);
+		assertEquals(15, calls.get());
+		assertEquals(0, policy.getHedges());
+
+		CountDownLatch sent = new CountDownLatch(1);
+		HedgePolicy.Race race = policy.race(new CompletableFuture<HTTPPostResults>(), 0,
+				hedge(new CompletableFuture<HTTPPostResults>(), calls, sent));
+		assertTrue(sent.await(5, TimeUnit.SECONDS));
+		Thread.sleep(20);
+		assertTrue(race.isHedged());
+	}
+
+	@Test
+	public void testCancelStopsBothPosts() throws Exception {
+		HedgePolicy policy = new HedgePolicy("0", 0.05, timer);
+		CompletableFuture<HTTPPostResults> first = new CompletableFuture<HTTPPostResults>();
+		CompletableFuture<HTTPPostResults> second = new CompletableFuture<HTTPPostResults>();
+		CountDownLatch sent = new CountDownLatch(1);
+		HedgePolicy.Race race = policy.race(first, 0, hedge(second, new AtomicInteger(), sent));
+		assertTrue(sent.await(5, TimeUnit.SECONDS));
+		Thread.sleep(20);
+
+		race.getFuture().cancel(true);
+		assertTrue(first.isCancelled());
+		assertTrue(second.isCancelled());
+	}
+
+	@Test
+	public void testPercentileDelay() {
+		assertTrue(HedgePolicy.isPercentile("p95"));
+		assertTrue(HedgePolicy.isPercentile("p99.9"));
+		assertFalse(HedgePolicy.isPercentile("p100"));
+		assertFalse(HedgePolicy.isPercentile("200 millis"));
+
+		HedgePolicy policy = new HedgePolicy("p50", 0.05, timer);
+		Endpoint endpoint = new Endpoint("http://a:9999/predict", null);
+		assertEquals("too few posts to know", -1, policy.delayMillis(endpoint));
+
+		HedgePolicy fresh = new HedgePolicy("p50", 0.05, timer);
+		for (int i = 0; i < 40; i++) {
+			endpoint.getMetrics().record(new HTTPPostResults("", "OK", "{}", 200), TimeUnit.MILLISECONDS.toNanos(100));
+		}
+		long delay = fresh.delayMillis(endpoint);
+		assertTrue(String.valueOf(delay), delay >= 90 && delay <= 120);
+	}
+}
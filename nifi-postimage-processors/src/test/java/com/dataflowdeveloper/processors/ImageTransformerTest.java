@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class ImageTransformerTest {
+
+	private static byte[] jpeg(int width, int height) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testResizeKeepsAspectRatio() throws IOException {
+		byte[] original = jpeg(4000, 3000);
+		byte[] resized = new ImageTransformer(224, 224, ImageTransformer.FORMAT_JPEG, 0.85f)
+				.transform(new ByteArrayInputStream(original));
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(resized));
+		assertEquals(224, image.getWidth());
+		assertEquals(168, image.getHeight());
+		assertTrue(resized.length < original.length);
+	}
+
+	@Test
+	public void testSmallImageIsNotEnlarged() throws IOException {
+		byte[] resized = new ImageTransformer(224, 224, ImageTransformer.FORMAT_PNG, 0.85f)
+				.transform(new ByteArrayInputStream(jpeg(100, 50)));
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(resized));
+		assertEquals(100, image.getWidth());
+		assertEquals(50, image.getHeight());
+	}
+
+	@Test
+	public void testResizeToExactSize() throws IOException {
+		BufferedImage image = new ImageTransformer(224, 224, ImageTransformer.FORMAT_JPEG, 0.85f)
+				.resize(new ByteArrayInputStream(jpeg(4000, 3000)));
+		assertEquals(224, image.getWidth());
+		assertEquals(224, image.getHeight());
+		assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAnImage() throws IOException {
+		new ImageTransformer(224, 224, ImageTransformer.FORMAT_JPEG, 0.85f)
+				.transform(new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class JsonResultExtractorTest {
+
+	private static final byte[] SQUEEZENET = ("{\"prediction\":[[{\"class\":\"n02510455 giant panda\",\"probability\":0.95},"
+			+ "{\"class\":\"n02509815 lesser panda\",\"probability\":0.01}]]}").getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	public void testLastElement() {
+		JsonResultExtractor extractor = new JsonResultExtractor(null);
+		assertEquals("{\"a\" : [1,2]}", extractor.extract("[1, {\"a\" : [1,2]}, null]".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(new String(SQUEEZENET, StandardCharsets.UTF_8), extractor.extract(SQUEEZENET));
+	}
+
+	@Test
+	public void testPath() {
+		assertEquals("n02510455 giant panda", new JsonResultExtractor("$.prediction[0][0].class").extract(SQUEEZENET));
+		assertEquals("{\"class\":\"n02509815 lesser panda\",\"probability\":0.01}",
+				new JsonResultExtractor("prediction[0][1]").extract(SQUEEZENET));
+		assertEquals("0.95", new JsonResultExtractor("$['prediction'][0][0].probability").extract(SQUEEZENET));
+		assertNull(new JsonResultExtractor("$.missing").extract(SQUEEZENET));
+	}
+
+	@Test
+	public void testElements() {
+		List<String> elements = new JsonResultExtractor("$.prediction").elements(SQUEEZENET);
+		assertEquals(1, elements.size());
+		assertEquals(Arrays.asList("{\"a\":1}", null, "7"),
+				new JsonResultExtractor(null).elements("[{\"a\":1}, null, 7]".getBytes(StandardCharsets.UTF_8)));
+		assertNull(new JsonResultExtractor("$.prediction[0][0]").elements(SQUEEZENET));
+	}
+
+	@Test
+	public void testQuotedName() {
+		assertEquals(Arrays.<Object>asList("a]b", "c.d", 0), JsonResultExtractor.parsePath("$['a]b'][ \"c.d\" ][0]"));
+	}
+
+	@Test
+	public void testMalformedPath() {
+		for (String path : new String[] { "$[']", "$[\"]", "$['a]", "$['a'x]", "$['a'", "$[x]", "$[0" }) {
+			try {
+				JsonResultExtractor.parsePath(path);
+				fail(path);
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("offset"));
+			}
+		}
+	}
+
+	@Test
+	public void testNotJson() {
+		assertNull(new JsonResultExtractor(null).extract("Fail".getBytes(StandardCharsets.UTF_8)));
+		assertNull(new JsonResultExtractor(null).extract(new byte[0]));
+	}
+}
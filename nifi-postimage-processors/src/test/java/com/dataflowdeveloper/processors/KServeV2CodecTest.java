@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class KServeV2CodecTest {
+
+	private static final float[] MEAN = { 0.5f, 0.5f, 0.5f };
+	private static final float[] STD = { 0.5f, 0.5f, 0.5f };
+
+	private static byte[] read(MultipartBody body) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) body.getContentLength());
+		while (body.read(buffer) > 0) {
+		}
+		return buffer.array();
+	}
+
+	private static HTTPPostResults response(String header, byte[] tensors) {
+		byte[] json = header.getBytes(StandardCharsets.UTF_8);
+		byte[] body = new byte[json.length + tensors.length];
+		System.arraycopy(json, 0, body, 0, json.length);
+		System.arraycopy(tensors, 0, body, json.length, tensors.length);
+		HTTPPostResults results = new HTTPPostResults();
+		results.setStatusCode(200);
+		results.setBody(body);
+		results.setInferenceHeaderLength(json.length);
+		return results;
+	}
+
+	@Test
+	public void testEncodeBytes() throws IOException {
+		KServeV2Codec.Request request = new KServeV2Codec("INPUT__0", "OUTPUT__0", KServeV2Codec.BYTES, MEAN, STD, 5)
+				.encode(new ByteArrayInputStream(new byte[] { 9, 8, 7 }), 3);
+		byte[] body = read(request.getBody());
+		String header = new String(body, 0, request.getHeaderLength(), StandardCharsets.UTF_8);
+		assertEquals("{\"inputs\":[{\"name\":\"INPUT__0\",\"shape\":[1],\"datatype\":\"BYTES\",\"parameters\":{\"binary_data_size\":7}}],"
+				+ "\"outputs\":[{\"name\":\"OUTPUT__0\",\"parameters\":{\"binary_data\":true}}]}", header);
+		ByteBuffer tensor = ByteBuffer.wrap(body, request.getHeaderLength(), 7).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(3, tensor.getInt());
+		assertEquals(9, tensor.get());
+		assertEquals(KServeV2Codec.CONTENT_TYPE, request.getBody().getContentType());
+		assertEquals(String.valueOf(request.getHeaderLength()),
+				request.headers(new org.apache.http.Header[0])[0].getValue());
+	}
+
+	@Test
+	public void testEncodePixels() throws IOException {
+		BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(1, 0, 0xff0080);
+
+		KServeV2Codec.Request uint8 = new KServeV2Codec("input", null, KServeV2Codec.UINT8, MEAN, STD, 5).encode(image);
+		byte[] body = read(uint8.getBody());
+		String header = new String(body, 0, uint8.getHeaderLength(), StandardCharsets.UTF_8);
+		assertEquals("{\"inputs\":[{\"name\":\"input\",\"shape\":[1,2,4,3],\"datatype\":\"UINT8\",\"parameters\":{\"binary_data_size\":24}}],"
+				+ "\"parameters\":{\"binary_data_output\":true}}", header);
+		assertEquals((byte) 0xff, body[uint8.getHeaderLength() + 3]);
+		assertEquals(0, body[uint8.getHeaderLength() + 4]);
+		assertEquals((byte) 0x80, body[uint8.getHeaderLength() + 5]);
+
+		KServeV2Codec.Request fp32 = new KServeV2Codec("input", null, KServeV2Codec.FP32, MEAN, STD, 5).encode(image);
+		body = read(fp32.getBody());
+		ByteBuffer tensor = ByteBuffer.wrap(body, fp32.getHeaderLength(), 8 * 3 * 4).slice().order(ByteOrder.LITTLE_ENDIAN);
+		// channel first, red of the second pixel, then green and blue planes
+		assertEquals(-1f, tensor.getFloat(0), 0.0001);
+		assertEquals(1f, tensor.getFloat(4), 0.0001);
+		assertEquals(-1f, tensor.getFloat((8 + 1) * 4), 0.0001);
+		assertEquals(128 / 255f * 2 - 1, tensor.getFloat((16 + 1) * 4), 0.0001);
+	}
+
+	@Test
+	public void testDecodeTopScores() throws IOException {
+		ByteBuffer scores = ByteBuffer.allocate(6 * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (float score : new float[] { 0.1f, 0.5f, 0.05f, 0.9f, 0.3f, 0.5f }) {
+			scores.putFloat(score);
+		}
+		ByteBuffer labels = ByteBuffer.allocate(4 + 5).order(ByteOrder.LITTLE_ENDIAN);
+		labels.putInt(5).put("panda".getBytes(StandardCharsets.UTF_8));
+		byte[] tensors = new byte[scores.capacity() + labels.capacity()];
+		System.arraycopy(scores.array(), 0, tensors, 0, scores.capacity());
+		System.arraycopy(labels.array(), 0, tensors, scores.capacity(), labels.capacity());
+
+		HTTPPostResults results = response("{\"model_name\":\"m\",\"outputs\":["
+				+ "{\"name\":\"scores\",\"datatype\":\"FP32\",\"shape\":[1,6],\"parameters\":{\"binary_data_size\":24}},"
+				+ "{\"parameters\":{\"binary_data_size\":9},\"name\":\"labels\",\"shape\":[1],\"datatype\":\"BYTES\"},"
+				+ "{\"name\":\"count\",\"datatype\":\"INT64\",\"shape\":[1],\"data\":[6]}]}", tensors);
+		HTTPPostResults decoded = new KServeV2Codec("input", null, KServeV2Codec.BYTES, MEAN, STD, 3).decode(results);
+		assertEquals("{\"model_name\":\"m\",\"outputs\":["
+				+ "{\"name\":\"scores\",\"datatype\":\"FP32\",\"shape\":[1,6],\"top\":[{\"index\":3,\"score\":0.9},"
+				+ "{\"index\":1,\"score\":0.5},{\"index\":5,\"score\":0.5}]},"
+				+ "{\"name\":\"labels\",\"datatype\":\"BYTES\",\"shape\":[1],\"data\":[\"panda\"]},"
+				+ "{\"name\":\"count\",\"datatype\":\"INT64\",\"shape\":[1],\"data\":[6]}]}",
+				new String(decoded.getBody(), StandardCharsets.UTF_8));
+		assertEquals("application/json", decoded.getContentType());
+	}
+
+	@Test
+	public void testDecodeEveryValue() throws IOException {
+		ByteBuffer values = ByteBuffer.allocate(2 * 2 + 2 * 8).order(ByteOrder.LITTLE_ENDIAN);
+		// 1.5 and -2 as FP16
+		values.putShort((short) 0x3e00).putShort((short) 0xc000);
+		values.putLong(7).putLong(-3);
+		HTTPPostResults results = response("{\"outputs\":["
+				+ "{\"name\":\"a\",\"datatype\":\"FP16\",\"shape\":[2],\"parameters\":{\"binary_data_size\":4}},"
+				+ "{\"name\":\"b\",\"datatype\":\"INT64\",\"shape\":[2],\"parameters\":{\"binary_data_size\":16}}]}",
+				values.array());
+		HTTPPostResults decoded = new KServeV2Codec("input", null, KServeV2Codec.BYTES, MEAN, STD, 0).decode(results);
+		assertEquals("{\"outputs\":[{\"name\":\"a\",\"datatype\":\"FP16\",\"shape\":[2],\"data\":[1.5,-2.0]},"
+				+ "{\"name\":\"b\",\"datatype\":\"INT64\",\"shape\":[2],\"data\":[7,-3]}]}",
+				new String(decoded.getBody(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testJsonAndErrorsPassThrough() throws IOException {
+		KServeV2Codec codec = new KServeV2Codec("input", null, KServeV2Codec.BYTES, MEAN, STD, 5);
+		HTTPPostResults json = new HTTPPostResults();
+		json.setStatusCode(200);
+		json.setBody("{\"outputs\":[]}".getBytes(StandardCharsets.UTF_8));
+		assertSame(json, codec.decode(json));
+
+		HTTPPostResults error = response("{\"error\":\"no model\"}", new byte[0]);
+		error.setStatusCode(400);
+		assertSame(error, codec.decode(error));
+	}
+
+	@Test(expected = IOException.class)
+	public void testShortTensor() throws IOException {
+		new KServeV2Codec("input", null, KServeV2Codec.BYTES, MEAN, STD, 5).decode(response("{\"outputs\":["
+				+ "{\"name\":\"a\",\"datatype\":\"FP32\",\"shape\":[2],\"parameters\":{\"binary_data_size\":8}}]}", new byte[4]));
+	}
+}
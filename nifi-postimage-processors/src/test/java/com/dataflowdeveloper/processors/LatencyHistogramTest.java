@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		long previous = -1;
+		for (long micros = 0; micros < LatencyHistogram.MAX_MICROS; micros = micros * 3 / 2 + 1) {
+			int index = LatencyHistogram.index(micros);
+			long highest = LatencyHistogram.highestValue(index);
+			assertTrue(highest >= micros);
+			assertTrue(highest - micros <= micros / 64);
+			assertTrue(index > previous || micros < 128);
+			previous = index;
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int millis = 1; millis <= 1000; millis++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500, snapshot.getPercentileMillis(50), 500 / 64.0);
+		assertEquals(990, snapshot.getPercentileMillis(99), 990 / 64.0);
+		assertEquals(1000, snapshot.getPercentileMillis(100), 0.001);
+		assertEquals(1000, snapshot.getMaxMillis(), 0.001);
+		assertEquals(500.5, snapshot.getMeanMillis(), 0.001);
+
+		// later records leave the snapshot alone
+		histogram.record(TimeUnit.SECONDS.toNanos(5));
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(1001, histogram.getCount());
+	}
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+		assertEquals(0, snapshot.getCount());
+		assertEquals(0, snapshot.getPercentileMillis(99), 0);
+		assertEquals(0, snapshot.getMeanMillis(), 0);
+	}
+
+	@Test
+	public void testOutOfRange() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(TimeUnit.HOURS.toNanos(2));
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(2, snapshot.getCount());
+		assertEquals(0, snapshot.getPercentileMillis(50), 0);
+		assertEquals(TimeUnit.MICROSECONDS.toMillis(LatencyHistogram.MAX_MICROS), snapshot.getMaxMillis(), 0.001);
+	}
+}
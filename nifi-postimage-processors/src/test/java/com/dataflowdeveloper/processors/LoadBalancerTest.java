@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class LoadBalancerTest {
+
+	private static final String URLS = "http://a:9999/predict, http://b:9999/predict";
+
+	@Test
+	public void testRoundRobin() {
+		LoadBalancer balancer = new LoadBalancer(LoadBalancer.ROUND_ROBIN, 3, 60000, 0, 0);
+		Endpoint first = balancer.select(URLS);
+		Endpoint second = balancer.select(URLS);
+		assertNotEquals(first.getUrl(), second.getUrl());
+		assertEquals(2, balancer.endpoints(URLS).length);
+	}
+
+	@Test
+	public void testLeastOutstanding() {
+		LoadBalancer balancer = new LoadBalancer(LoadBalancer.LEAST_OUTSTANDING, 3, 60000, 0, 0);
+		Endpoint busy = balancer.select(URLS);
+		for (int i = 0; i < 5; i++) {
+			Endpoint other = balancer.select(URLS);
+			assertNotEquals(busy.getUrl(), other.getUrl());
+			balancer.completed(other, 1000, false, false);
+		}
+	}
+
+	@Test
+	public void testEjectAndProbe() throws InterruptedException {
+		LoadBalancer balancer = new LoadBalancer(LoadBalancer.ROUND_ROBIN, 2, 50, 0, 0);
+		Endpoint bad = balancer.endpoints(URLS)[0];
+		assertTrue(bad.tryStart());
+		balancer.completed(bad, 1000, true, false);
+		assertTrue(bad.isHealthy());
+		assertTrue(bad.tryStart());
+		balancer.completed(bad, 1000, true, false);
+		assertFalse(bad.isHealthy());
+
+		for (int i = 0; i < 4; i++) {
+			Endpoint selected = balancer.select(URLS);
+			assertNotEquals(bad.getUrl(), selected.getUrl());
+			balancer.completed(selected, 1000, false, false);
+		}
+
+		Thread.sleep(60);
+		Endpoint probe = balancer.select(URLS);
+		assertEquals(bad.getUrl(), probe.getUrl());
+		balancer.completed(probe, 1000, false, false);
+		assertTrue(bad.isHealthy());
+	}
+
+	@Test
+	public void testHedgeAvoidsPrimary() {
+		LoadBalancer balancer = new LoadBalancer(LoadBalancer.ROUND_ROBIN, 3, 60000, 0, 0);
+		Endpoint primary = balancer.select(URLS);
+		for (int i = 0; i < 4; i++) {
+			Endpoint hedge = balancer.select(URLS, primary);
+			assertNotEquals(primary.getUrl(), hedge.getUrl());
+			balancer.completed(hedge, 1000, false, false);
+		}
+		// one replica, the hedge goes to it again
+		Endpoint only = balancer.select("http://a:9999/predict");
+		assertEquals(only, balancer.select("http://a:9999/predict", only));
+	}
+
+	@Test
+	public void testConcurrencyLimit() {
+		LoadBalancer balancer = new LoadBalancer(LoadBalancer.LEAST_OUTSTANDING, 3, 60000, 2, 10);
+		Endpoint first = balancer.select("http://a:9999/predict");
+		Endpoint second = balancer.select("http://a:9999/predict");
+		assertNotNull(first);
+		assertNotNull(second);
+		assertNull(balancer.select("http://a:9999/predict"));
+
+		// a 429 shrinks the limit
+		balancer.completed(first, 1000, false, true);
+		assertEquals(1, first.getLimiter().getLimit());
+		assertNull(balancer.select("http://a:9999/predict"));
+		balancer.completed(second, 1000, false, false);
+		assertNotNull(balancer.select("http://a:9999/predict"));
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class MultipartBodyTest {
+
+	private static String read(MultipartBody body) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) body.getContentLength());
+		while (body.read(buffer) >= 0) {
+			// each read fills the buffer further until the body is complete
+		}
+		assertEquals(body.getContentLength(), buffer.position());
+		return new String(buffer.array(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testPart() throws IOException {
+		byte[] image = { 1, 2, 3 };
+		String body = read(new MultipartBody()
+				.addPart("data", "camera.jpg", "image/jpeg", new ByteArrayInputStream(image), image.length).finish());
+		assertTrue(body, body.contains("Content-Disposition: form-data; name=\"data\"; filename=\"camera.jpg\"\r\n"
+				+ "Content-Type: image/jpeg\r\n\r\n\u0001\u0002\u0003\r\n"));
+	}
+
+	@Test
+	public void testQuotedNames() throws IOException {
+		String body = read(new MultipartBody()
+				.addPart("da\"ta", "C:\\images\\\"a\".jpg", "image/jpeg", new ByteArrayInputStream(new byte[0]), 0).finish());
+		assertTrue(body, body.contains("name=\"da\\\"ta\"; filename=\"C:\\\\images\\\\\\\"a\\\".jpg\"\r\n"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLineBreakInName() throws IOException {
+		new MultipartBody().addPart("data", "a.jpg\r\nX-Injected: 1", "image/jpeg", new ByteArrayInputStream(new byte[0]), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLineBreakInContentType() throws IOException {
+		new MultipartBody().addPart("data", "a.jpg", "image/jpeg\nX-Injected: 1", new ByteArrayInputStream(new byte[0]), 0);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class OAuth2TokenProviderTest {
+
+	private StubModelServer server;
+	private HTTPPostUtility postUtility;
+
+	@Before
+	public void init() throws IOException {
+		server = new StubModelServer(4);
+		postUtility = new HTTPPostUtility(4, 4, 1000, 5000, 60000);
+	}
+
+	@After
+	public void shutdown() throws IOException {
+		postUtility.close();
+		server.close();
+	}
+
+	private OAuth2TokenProvider tokens(String secret, long refreshAheadMillis) {
+		return new OAuth2TokenProvider(postUtility, server.getTokenUrl(), StubModelServer.CLIENT_ID, secret,
+				"predict", refreshAheadMillis);
+	}
+
+	/**
+	 * Concurrent posts without a token wait on one request to the token endpoint.
+	 */
+	@Test
+	public void testSingleFlight() throws InterruptedException, ExecutionException {
+		server.tokens(3600, 200);
+		OAuth2TokenProvider tokens = tokens(StubModelServer.CLIENT_SECRET, 60000);
+		List<CompletableFuture<Header>> waiting = new ArrayList<CompletableFuture<Header>>();
+		for (int i = 0; i < 20; i++) {
+			waiting.add(tokens.authorization());
+		}
+		for (CompletableFuture<Header> authorization : waiting) {
+			assertEquals("Bearer token-1", authorization.get().getValue());
+		}
+		assertTrue(tokens.authorization().isDone());
+		assertEquals(1, server.getTokenRequests());
+	}
+
+	/**
+	 * Past the refresh point the old token is used while the next one is fetched.
+	 */
+	@Test
+	public void testRefreshAhead() throws InterruptedException, ExecutionException {
+		server.tokens(2, 0);
+		OAuth2TokenProvider tokens = tokens(StubModelServer.CLIENT_SECRET, 1900);
+		assertEquals("Bearer token-1", tokens.authorization().get().getValue());
+		Thread.sleep(1100);
+
+		CompletableFuture<Header> cached = tokens.authorization();
+		assertTrue(cached.isDone());
+		assertEquals("Bearer token-1", cached.get().getValue());
+		for (int i = 0; i < 100 && server.getTokenRequests() < 2; i++) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+		assertEquals("Bearer token-2", tokens.authorization().get().getValue());
+		assertEquals(2, server.getTokenRequests());
+	}
+
+	@Test
+	public void testInvalidate() throws InterruptedException, ExecutionException {
+		OAuth2TokenProvider tokens = tokens(StubModelServer.CLIENT_SECRET, 60000);
+		Header first = tokens.authorization().get();
+		tokens.invalidate(first);
+		assertEquals("Bearer token-2", tokens.authorization().get().getValue());
+	}
+
+	@Test(expected = ExecutionException.class)
+	public void testRejectedClient() throws InterruptedException, ExecutionException {
+		tokens("wrong", 60000).authorization().get();
+	}
+
+	/**
+	 * A token request that cannot be sent fails the waiting posts, and the next post asks again.
+	 */
+	@Test
+	public void testUnsendableRequest() throws InterruptedException {
+		OAuth2TokenProvider tokens = new OAuth2TokenProvider(postUtility, "http://token server/oauth",
+				StubModelServer.CLIENT_ID, StubModelServer.CLIENT_SECRET, "predict", 60000);
+		for (int i = 0; i < 2; i++) {
+			CompletableFuture<Header> authorization = tokens.authorization();
+			assertTrue(authorization.isCompletedExceptionally());
+			try {
+				authorization.get();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class PerceptualHashTest {
+
+	/**
+	 * @param noise
+	 *            most each pixel is brightened or darkened by
+	 * @param seed
+	 *            seed of the noise
+	 * @return the sample photo with noise, re-encoded as a jpeg
+	 */
+	static byte[] frame(int noise, long seed) throws IOException {
+		BufferedImage image;
+		try (InputStream in = PerceptualHashTest.class.getClassLoader().getResourceAsStream("IMG_2596.jpg")) {
+			image = ImageIO.read(in);
+		}
+		BufferedImage frame = new BufferedImage(image.getWidth() / 4, image.getHeight() / 4, BufferedImage.TYPE_INT_RGB);
+		frame.createGraphics().drawImage(image, 0, 0, frame.getWidth(), frame.getHeight(), null);
+		Random random = new Random(seed);
+		for (int y = 0; y < frame.getHeight() && noise > 0; y++) {
+			for (int x = 0; x < frame.getWidth(); x++) {
+				int delta = random.nextInt(noise * 2 + 1) - noise;
+				int rgb = frame.getRGB(x, y);
+				int r = Math.max(0, Math.min(255, ((rgb >> 16) & 0xff) + delta));
+				int g = Math.max(0, Math.min(255, ((rgb >> 8) & 0xff) + delta));
+				int b = Math.max(0, Math.min(255, (rgb & 0xff) + delta));
+				frame.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(frame, "jpeg", out);
+		return out.toByteArray();
+	}
+
+	private static long hash(byte[] image) throws IOException {
+		return PerceptualHash.hash(new ByteArrayInputStream(image));
+	}
+
+	@Test
+	public void testNearDuplicates() throws IOException {
+		long original = hash(frame(0, 1));
+		assertEquals(0, PerceptualHash.distance(original, hash(frame(0, 1))));
+		assertTrue(PerceptualHash.distance(original, hash(frame(12, 2))) <= 4);
+	}
+
+	@Test
+	public void testDifferentScenes() throws IOException {
+		BufferedImage left = new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB);
+		BufferedImage right = new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 100; y++) {
+			for (int x = 0; x < 200; x++) {
+				int shade = (int) (127 + 127 * Math.sin(x / 9.0 + y / 13.0));
+				left.setRGB(x, y, shade * 0x010101);
+				right.setRGB(199 - x, y, shade * 0x010101);
+			}
+		}
+		assertTrue(PerceptualHash.distance(PerceptualHash.hash(left), PerceptualHash.hash(right)) > 16);
+		assertTrue(PerceptualHash.distance(hash(frame(0, 1)), PerceptualHash.hash(left)) > 16);
+	}
+
+	@Test
+	public void testHex() {
+		assertEquals("00000000000000ff", PerceptualHash.toHex(0xff));
+		assertEquals("ffffffffffffffff", PerceptualHash.toHex(-1));
+	}
+
+	@Test
+	public void testSimilarityIndex() throws InterruptedException {
+		SimilarityIndex<String> index = new SimilarityIndex<String>(2, 2, 3, 60000);
+		index.add("camera1", 0xf0L, "first");
+		assertNull(index.find("camera2", 0xf0L));
+		assertEquals("first", index.find("camera1", 0xf1L).getValue());
+		assertEquals(1, index.find("camera1", 0xf1L).getDistance());
+		assertNull(index.find("camera1", 0x0fL));
+
+		// the closest wins, then the newest
+		index.add("camera1", 0xf3L, "second");
+		assertEquals("second", index.find("camera1", 0xf3L).getValue());
+		assertEquals("first", index.find("camera1", 0xf0L).getValue());
+		index.add("camera1", 0xf0L, "third");
+		assertEquals("third", index.find("camera1", 0xf0L).getValue());
+		index.add("camera1", 0x0fL, "fourth");
+		assertEquals("third", index.find("camera1", 0xf1L).getValue());
+		index.remove("camera1", "third");
+		assertNull(index.find("camera1", 0xf1L));
+
+		// sources past the limit are forgotten least recently used first
+		index.add("camera2", 1L, "a");
+		index.add("camera3", 1L, "b");
+		assertNull(index.find("camera1", 0x0fL));
+		assertNotNull(index.find("camera3", 1L));
+
+		SimilarityIndex<String> expiring = new SimilarityIndex<String>(2, 2, 3, 1);
+		expiring.add("camera1", 1L, "old");
+		Thread.sleep(5);
+		assertNull(expiring.find("camera1", 1L));
+	}
+}
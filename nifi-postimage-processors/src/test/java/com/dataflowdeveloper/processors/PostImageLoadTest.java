@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Throughput and latency of the processor against the stub model server, over a matrix of
+ * concurrent tasks and image sizes.  The default matrix is small enough for every build, run with
+ * -Dpostimage.load.full=true for the full one.  Results are printed, one line per cell.
+ *
+ * @author tspann
+ *
+ */
+public class PostImageLoadTest {
+
+	private static final boolean FULL = Boolean.getBoolean("postimage.load.full");
+
+	private static final int[] THREADS = FULL ? new int[] { 1, 4, 16 } : new int[] { 1, 4 };
+
+	/** square image sizes in pixels */
+	private static final int[] SIZES = FULL ? new int[] { 224, 1024, 4000 } : new int[] { 224, 1024 };
+
+	private static final int IMAGES = FULL ? 2000 : 200;
+
+	private StubModelServer server;
+
+	@Before
+	public void init() throws IOException {
+		server = new StubModelServer(64).latency(20, 0.5);
+	}
+
+	@After
+	public void shutdown() {
+		server.close();
+	}
+
+	@Test
+	public void testThroughput() throws IOException {
+		System.out.println(String.format("%8s %6s %8s %10s %8s %8s %8s %10s",
+				"threads", "size", "images", "images/s", "p50 ms", "p99 ms", "p999 ms", "heap MB"));
+		for (int size : SIZES) {
+			byte[] image = image(size);
+			for (int threads : THREADS) {
+				run(threads, size, image);
+			}
+		}
+	}
+
+	private void run(int threads, int size, byte[] image) {
+		server.reset();
+		TestRunner testRunner = TestRunners.newTestRunner(PostImageProcessor.class);
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.setProperty(PostImageProcessor.URL_NAME, server.getUrl());
+		testRunner.setProperty(PostImageProcessor.FIELD_NAME, "data");
+		testRunner.setProperty(PostImageProcessor.IMAGE_NAME, "image.jpg");
+		testRunner.setProperty(PostImageProcessor.IMAGE_TYPE, "image/jpeg");
+		testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "50");
+		testRunner.setThreadCount(threads);
+		for (int i = 0; i < IMAGES; i++) {
+			testRunner.enqueue(image);
+		}
+
+		resetPeakHeap();
+		long started = System.nanoTime();
+		// posts turned away at the concurrency limit go back to the queue, keep going until it drains
+		for (int rounds = 0; !testRunner.isQueueEmpty() && rounds < IMAGES; rounds++) {
+			testRunner.run(threads, false, rounds == 0);
+		}
+		testRunner.run(1, true, false);
+		double seconds = (System.nanoTime() - started) / 1e9;
+
+		testRunner.assertAllFlowFilesTransferred(PostImageProcessor.REL_SUCCESS, IMAGES);
+		assertEquals(IMAGES, server.getRequests());
+		System.out.println(String.format("%8d %6d %8d %10.1f %8.1f %8.1f %8.1f %10.1f",
+				threads, size, IMAGES, IMAGES / seconds, server.latencyMillis(50), server.latencyMillis(99),
+				server.latencyMillis(99.9), peakHeap() / (1024.0 * 1024.0)));
+	}
+
+	/**
+	 * @return a jpeg of random pixels, which compresses about as poorly as a photo
+	 */
+	private static byte[] image(int size) throws IOException {
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(size);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				image.setRGB(x, y, random.nextInt(0xffffff));
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpeg", out);
+		return out.toByteArray();
+	}
+
+	private static void resetPeakHeap() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return sum of the heap pools' peaks, an upper bound as the pools peak at different times
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
@@ -18,21 +18,22 @@ package com.dataflowdeveloper.processors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
-import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.Unirest;
-
 /**
  * 
  * @author tspann
@@ -45,31 +46,429 @@ public class PostImageProcessorTest {
 	 */
     private TestRunner testRunner;
 
+    /**
+     * stands in for the model server
+     */
+    private StubModelServer server;
+
     /**
      * 
      */
     @Before
-    public void init() {
+    public void init() throws IOException {
+        server = new StubModelServer(16);
         testRunner = TestRunners.newTestRunner(PostImageProcessor.class);
+        testRunner.setProperty("url", server.getUrl());
+        testRunner.setProperty("fieldname", "data");
+        testRunner.setProperty("imagename", "IMG_2596.jpg");
+        testRunner.setProperty("imagetype", "image/jpeg");
+        testRunner.setProperty("headername", "Accept");
+        testRunner.setProperty("headervalue", "application/json");
+    }
+
+    @After
+    public void shutdown() {
+        server.close();
     }
 
     /**
-     * Test is integration and requires a server running.
+     * Posts the sample image to the stub model server.
      */
     @Test
     public void testProcessor() {
-//    	testRunner.setProperty("url", "https://api.imgur.com/3/upload");
-//    	testRunner.setProperty("fieldname", "image");
-//    	testRunner.setProperty("imagename", "IMG_2596.jpg");
-//    	testRunner.setProperty("imagetype", "image/jpeg");
-//		testRunner.setProperty("headername", "Authorization");
-//		testRunner.setProperty("headervalue", "Client-ID abc");
+    	testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("IMG_2596.jpg"));
+
+    	runAndAssertHappy();
+    	assertEquals(1, server.getRequests());
+    	assertTrue(server.getBytesReceived() > 0);
+    	assertEquals(1, testRunner.getCounterValue("post.status.2xx").longValue());
+    	assertEquals(server.getBytesReceived(), testRunner.getCounterValue("post.bytes.sent").longValue());
+    }
+
+    /**
+     * A batch of slow posts is in flight at once, one post at a time or a commit per flowfile
+     * would take the latency times the batch.
+     */
+    @Test
+    public void testPostsOverlap() {
+    	server.latency(200, 0);
+    	testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "20");
+    	testRunner.setProperty(PostImageProcessor.MAX_IN_FLIGHT, "20");
+    	for (int i = 0; i < 20; i++) {
+    		testRunner.enqueue(new byte[] { (byte) i });
+    	}
+
+    	long started = System.nanoTime();
+    	runAndAssertHappy();
+    	long elapsedMillis = (System.nanoTime() - started) / 1000000;
+    	assertEquals(20, server.getRequests());
+    	assertTrue("20 posts took " + elapsedMillis + " ms", elapsedMillis < 20 * 200 / 2);
+    }
+
+    /**
+     * Posts go on when the shared cache cannot be reached, and hits come from it when it can.
+     */
+    @Test
+    public void testDistributedCache() throws Exception {
+    	ResultCacheTest.MemoryCacheClient cache = new ResultCacheTest.MemoryCacheClient();
+    	testRunner.addControllerService("cache", cache);
+    	testRunner.enableControllerService(cache);
+    	testRunner.setProperty(PostImageProcessor.DISTRIBUTED_CACHE, "cache");
+    	cache.down = true;
+    	testRunner.enqueue(new byte[] { 1 });
+    	runAndAssertHappy();
+    	assertEquals(1, server.getRequests());
+
+    	cache.down = false;
+    	testRunner.clearTransferState();
+    	testRunner.enqueue(new byte[] { 1 });
+    	testRunner.enqueue(new byte[] { 1 });
+    	testRunner.run(2);
+    	testRunner.assertAllFlowFilesTransferred(PostImageProcessor.REL_SUCCESS, 2);
+    	assertEquals("the first post fills the cache", 2, server.getRequests());
+    	List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_SUCCESS);
+    	flowFiles.get(0).assertAttributeEquals(PostImageProcessor.ATTRIBUTE_CACHE_HIT, "false");
+    	flowFiles.get(1).assertAttributeEquals(PostImageProcessor.ATTRIBUTE_CACHE_HIT, "true");
+    }
+
+    /**
+     * A flowfile whose post cannot be built fails on its own, the rest of the batch is posted.
+     */
+    @Test
+    public void testBadRequestFailsAlone() {
+    	testRunner.enqueue(new byte[] { 1 });
+    	testRunner.enqueue(new byte[] { 2 }, Collections.singletonMap("url", "http://model server/predict"));
+    	testRunner.enqueue(new byte[] { 3 }, Collections.singletonMap("imagetype", ";"));
+    	testRunner.enqueue(new byte[] { 4 });
+    	testRunner.enqueue(new byte[] { 5 }, Collections.singletonMap("imagename", "a.jpg\r\nX-Injected: 1"));
+    	testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "5");
+    	testRunner.run();
+
+    	testRunner.assertTransferCount(PostImageProcessor.REL_SUCCESS, 2);
+    	testRunner.assertTransferCount(PostImageProcessor.REL_FAILURE, 3);
+    	assertEquals(2, server.getRequests());
+    	for (MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_FAILURE)) {
+    		assertNotNull(flowFile.getAttribute(PostImageProcessor.ATTRIBUTE_ERROR));
+    	}
+    }
+
+    /**
+     * A response over the limit fails the post instead of being read into memory.
+     */
+    @Test
+    public void testResponseTooLarge() {
+    	server.predictions(1000);
+    	testRunner.setProperty(PostImageProcessor.MAX_RESPONSE_SIZE, server.getResponse().length + " B");
+    	testRunner.enqueue(new byte[] { 1 });
+    	runAndAssertHappy();
+
+    	testRunner.clearTransferState();
+    	testRunner.setProperty(PostImageProcessor.MAX_RESPONSE_SIZE, (server.getResponse().length - 1) + " B");
+    	testRunner.enqueue(new byte[] { 2 });
+    	testRunner.run();
+    	testRunner.assertAllFlowFilesTransferred(PostImageProcessor.REL_FAILURE, 1);
+    	MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_FAILURE).get(0);
+    	assertTrue(flowFile.getAttribute(PostImageProcessor.ATTRIBUTE_ERROR).contains("larger than"));
+    }
+
+    /**
+     * A partial batch waits out the linger time on its own, another URL's batch does not restart
+     * or end the wait.
+     */
+    @Test
+    public void testBatchLingerPerUrl() throws InterruptedException {
+    	testRunner.setProperty("url", "${target}");
+    	testRunner.setProperty(PostImageProcessor.IMAGES_PER_REQUEST, "4");
+    	testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "10");
+    	testRunner.setProperty(PostImageProcessor.BATCH_LINGER, "1 sec");
+    	testRunner.enqueue(new byte[] { 1 }, Collections.singletonMap("target", server.getUrl()));
+    	testRunner.enqueue(new byte[] { 2 }, Collections.singletonMap("target", server.getUrl()));
+    	testRunner.run(1, false, true);
+    	assertEquals(0, server.getRequests());
+    	assertEquals(2, testRunner.getQueueSize().getObjectCount());
+    	assertTrue(((MockProcessContext) testRunner.getProcessContext()).isYieldCalled());
+
+    	Thread.sleep(500);
+    	testRunner.enqueue(new byte[] { 3 }, Collections.singletonMap("target", server.getInferUrl()));
+    	testRunner.enqueue(new byte[] { 4 }, Collections.singletonMap("target", server.getInferUrl()));
+    	testRunner.run(1, false, false);
+    	assertEquals(0, server.getRequests());
+
+    	Thread.sleep(700);
+    	testRunner.run(1, false, false);
+    	assertEquals("only the first batch waited long enough", 1, server.getRequests());
+    	assertEquals(2, testRunner.getQueueSize().getObjectCount());
+
+    	Thread.sleep(700);
+    	testRunner.run(1, true, false);
+    	assertEquals(2, server.getRequests());
+    	testRunner.assertQueueEmpty();
+    }
+
+    @Test
+    public void testUnavailableIsRetried() {
+    	server.errors(1, 503);
+    	testRunner.enqueue(new byte[] { 1 });
+    	testRunner.run();
+    	testRunner.assertAllFlowFilesTransferred(PostImageProcessor.REL_RETRY);
+    	MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_RETRY).get(0);
+    	flowFile.assertAttributeEquals(PostImageProcessor.ATTRIBUTE_RETRY_COUNT, "1");
+    	flowFile.assertAttributeEquals(PostImageProcessor.ATTRIBUTE_OUTPUT_STATUS_CODE, "503");
+    	assertTrue(Long.parseLong(flowFile.getAttribute(PostImageProcessor.ATTRIBUTE_RETRY_AT)) >= System.currentTimeMillis());
+    }
+
+    @Test
+    public void testServerErrorFails() {
+    	server.errors(1, 500);
+    	testRunner.enqueue(new byte[] { 1 });
+    	testRunner.run();
+    	testRunner.assertAllFlowFilesTransferred(PostImageProcessor.REL_FAILURE);
+    	testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_FAILURE).get(0)
+    			.assertAttributeEquals(PostImageProcessor.ATTRIBUTE_OUTPUT_STATUS_CODE, "500");
+    }
+
+    /**
+     * The encoded image goes as a BYTES tensor and the binary scores come back as the top classes.
+     */
+    @Test
+    public void testKServeV2() {
+    	testRunner.setProperty("url", server.getInferUrl());
+    	testRunner.setProperty(PostImageProcessor.WIRE_FORMAT, PostImageProcessor.WIRE_KSERVE_V2);
+    	testRunner.setProperty(PostImageProcessor.TENSOR_OUTPUT, "OUTPUT__0");
+    	testRunner.setProperty(PostImageProcessor.RESULT_PATH, "$.outputs[0].top[0].index");
+    	testRunner.enqueue(new byte[] { 1, 2, 3 });
+
+    	MockFlowFile flowFile = runAndAssertTensor();
+    	flowFile.assertAttributeEquals(PostImageProcessor.ATTRIBUTE_OUTPUT_NAME, String.valueOf(StubModelServer.TOP_INDEX));
+    	assertTrue(server.getInferenceHeader(), server.getInferenceHeader().contains("\"datatype\":\"BYTES\""));
+    	assertEquals(4 + 3, server.getTensorBytes());
+    }
+
+    /**
+     * The image is decoded here and sent as normalized pixels at the model's input size.
+     */
+    @Test
+    public void testKServeV2Pixels() {
+    	testRunner.setProperty("url", server.getInferUrl());
+    	testRunner.setProperty(PostImageProcessor.WIRE_FORMAT, PostImageProcessor.WIRE_KSERVE_V2);
+    	testRunner.setProperty(PostImageProcessor.TENSOR_DATATYPE, KServeV2Codec.FP32);
+    	testRunner.setProperty(PostImageProcessor.TENSOR_TOP_K, "3");
+    	testRunner.setProperty(PostImageProcessor.RESULT_DESTINATION, PostImageProcessor.DESTINATION_CONTENT);
+    	testRunner.assertNotValid();
+    	testRunner.setProperty(PostImageProcessor.RESIZE_WIDTH, "224");
+    	testRunner.setProperty(PostImageProcessor.RESIZE_HEIGHT, "224");
+    	testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("IMG_2596.jpg"));
+
+    	MockFlowFile flowFile = runAndAssertTensor();
+    	assertTrue(server.getInferenceHeader(), server.getInferenceHeader().contains("\"shape\":[1,3,224,224]"));
+    	assertEquals(3 * 224 * 224 * 4, server.getTensorBytes());
+    	String content = new String(flowFile.toByteArray());
+    	assertTrue(content, content.startsWith("{\"model_name\":\"squeezenet\",\"model_version\":\"1\",\"outputs\":[{\"name\":\"OUTPUT__0\","
+    			+ "\"datatype\":\"FP32\",\"shape\":[1,1000],\"top\":[{\"index\":" + StubModelServer.TOP_INDEX + ",\"score\":0.95},"));
+    }
+
+    /**
+     * Rules route on the predictions, a flowfile matching two goes to both.
+     */
+    @Test
+    public void testRouting() {
+    	final String panda = "\"" + StubModelServer.TOP_CLASS + "\"";
+    	testRunner.setProperty("panda", panda + " >= 0.9");
+    	testRunner.setProperty("confident", "top1 in cat, " + panda + " >= 0.5");
+    	testRunner.setProperty("certain", panda + " > 0.99");
+    	testRunner.enqueue(new byte[] { 1 });
+    	testRunner.run();
 
-    //	testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("IMG_2596.jpg"));
+    	testRunner.assertTransferCount("panda", 1);
+    	testRunner.assertTransferCount("confident", 1);
+    	testRunner.assertTransferCount("certain", 0);
+    	testRunner.assertTransferCount(PostImageProcessor.REL_SUCCESS, 0);
+    	testRunner.getFlowFilesForRelationship("panda").get(0).assertAttributeEquals(PostImageProcessor.ATTRIBUTE_ROUTE, "panda");
+    	testRunner.getFlowFilesForRelationship("confident").get(0).assertAttributeEquals(PostImageProcessor.ATTRIBUTE_ROUTE, "confident");
 
-    //	runAndAssertHappy();
     }
 
+    @Test
+    public void testUnmatchedGoesToSuccess() {
+    	testRunner.setProperty("cats", "top1 in cat");
+    	testRunner.enqueue(new byte[] { 1 });
+
+    	runAndAssertHappy();
+    	assertTrue(testRunner.getProcessor().getRelationships().contains(new Relationship.Builder().name("cats").build()));
+
+    	testRunner.setProperty("rule", "not a rule");
+    	testRunner.assertNotValid();
+    	testRunner.setProperty("rule", "cat >= 0.5");
+    	testRunner.assertValid();
+    	testRunner.setProperty("success", "cat >= 0.5");
+    	testRunner.assertNotValid();
+    }
+
+    /**
+     * A second frame from the same camera that only differs by noise is not posted.
+     */
+    @Test
+    public void testNearDuplicateIsRouted() throws IOException {
+    	testRunner.setProperty(PostImageProcessor.DEDUPE, PostImageProcessor.DEDUPE_ROUTE);
+    	testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "2");
+    	testRunner.enqueue(PerceptualHashTest.frame(0, 1));
+    	testRunner.enqueue(PerceptualHashTest.frame(12, 2));
+    	testRunner.run();
+
+    	assertEquals(1, server.getRequests());
+    	testRunner.assertTransferCount(PostImageProcessor.REL_SUCCESS, 1);
+    	testRunner.assertTransferCount(PostImageProcessor.REL_DUPLICATE, 1);
+    	MockFlowFile duplicate = testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_DUPLICATE).get(0);
+    	assertNotNull(duplicate.getAttribute(PostImageProcessor.ATTRIBUTE_PHASH));
+    	assertTrue(Integer.parseInt(duplicate.getAttribute(PostImageProcessor.ATTRIBUTE_DUPLICATE_DISTANCE)) <= 4);
+
+    	testRunner.setProperty(PostImageProcessor.DEDUPE, PostImageProcessor.DEDUPE_OFF);
+    	assertTrue(!testRunner.getProcessor().getRelationships().contains(PostImageProcessor.REL_DUPLICATE));
+    }
+
+    @Test
+    public void testNearDuplicateReusesResults() throws IOException {
+    	testRunner.setProperty(PostImageProcessor.DEDUPE, PostImageProcessor.DEDUPE_REUSE);
+    	testRunner.setProperty(PostImageProcessor.DEDUPE_SOURCE, "${camera}");
+    	testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "3");
+    	testRunner.enqueue(PerceptualHashTest.frame(0, 1));
+    	testRunner.enqueue(PerceptualHashTest.frame(12, 2));
+    	testRunner.enqueue(PerceptualHashTest.frame(0, 1), Collections.singletonMap("camera", "2"));
+
+    	runAndAssertHappy();
+    	assertEquals(2, server.getRequests());
+    	List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_SUCCESS);
+    	assertEquals(flowFiles.get(0).getAttribute(PostImageProcessor.ATTRIBUTE_OUTPUT_NAME),
+    			flowFiles.get(1).getAttribute(PostImageProcessor.ATTRIBUTE_OUTPUT_NAME));
+    	flowFiles.get(0).assertAttributeNotExists(PostImageProcessor.ATTRIBUTE_DUPLICATE_DISTANCE);
+    	assertNotNull(flowFiles.get(1).getAttribute(PostImageProcessor.ATTRIBUTE_DUPLICATE_DISTANCE));
+    	flowFiles.get(1).assertAttributeEquals(PostImageProcessor.ATTRIBUTE_LATENCY, "0");
+    	flowFiles.get(2).assertAttributeNotExists(PostImageProcessor.ATTRIBUTE_DUPLICATE_DISTANCE);
+    }
+
+    @Test
+    public void testBasicAuth() {
+    	testRunner.setProperty(PostImageProcessor.BASIC_USERNAME, "susan");
+    	testRunner.setProperty(PostImageProcessor.BASIC_PASSWORD, "iscool");
+    	testRunner.enqueue(new byte[] { 1 });
+
+    	runAndAssertHappy();
+    	assertEquals("Basic c3VzYW46aXNjb29s", server.getAuthorization());
+    }
+
+    /**
+     * A batch of posts shares one token.
+     */
+    @Test
+    public void testOAuth2() {
+    	server.tokens(3600, 100);
+    	testRunner.setProperty(PostImageProcessor.OAUTH2_TOKEN_URL, server.getTokenUrl());
+    	testRunner.setProperty(PostImageProcessor.OAUTH2_CLIENT_ID, StubModelServer.CLIENT_ID);
+    	testRunner.assertNotValid();
+    	testRunner.setProperty(PostImageProcessor.OAUTH2_CLIENT_SECRET, StubModelServer.CLIENT_SECRET);
+    	testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "10");
+    	for (int i = 0; i < 10; i++) {
+    		testRunner.enqueue(new byte[] { (byte) i });
+    	}
+
+    	runAndAssertHappy();
+    	assertEquals(10, server.getRequests());
+    	assertEquals(1, server.getTokenRequests());
+    	assertEquals("Bearer token-1", server.getAuthorization());
+    }
+
+    /**
+     * Flowfiles over the rate stay queued rather than post and fail.
+     */
+    @Test
+    public void testRateLimit() {
+    	testRunner.setProperty(PostImageProcessor.RATE_LIMIT_REQUESTS, "2");
+    	testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "5");
+    	for (int i = 0; i < 5; i++) {
+    		testRunner.enqueue(new byte[] { (byte) i });
+    	}
+    	testRunner.run();
+
+    	assertEquals(2, server.getRequests());
+    	testRunner.assertTransferCount(PostImageProcessor.REL_SUCCESS, 2);
+    	testRunner.assertQueueNotEmpty();
+    	assertEquals(3, testRunner.getCounterValue("post.limiter.rejected").longValue());
+    }
+
+    /**
+     * Posts to a replica that hangs are hedged to the other one and answered from there.
+     */
+    @Test
+    public void testHedge() throws IOException {
+    	server.latency(5000, 0);
+    	final StubModelServer fast = new StubModelServer(4);
+    	try {
+    		testRunner.setProperty("url", server.getUrl() + ", " + fast.getUrl());
+    		testRunner.setProperty(PostImageProcessor.LOAD_BALANCING, LoadBalancer.ROUND_ROBIN);
+    		testRunner.setProperty(PostImageProcessor.HEDGE, "true");
+    		testRunner.setProperty(PostImageProcessor.HEDGE_DELAY, "500 millis");
+    		testRunner.setProperty(PostImageProcessor.HEDGE_BUDGET, "100");
+    		testRunner.setProperty(PostImageProcessor.HEDGE_MAX_SIZE, "3 GB");
+    		testRunner.assertNotValid();
+    		testRunner.setProperty(PostImageProcessor.HEDGE_MAX_SIZE, "8 MB");
+    		testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "4");
+    		for (int i = 0; i < 4; i++) {
+    			testRunner.enqueue(new byte[] { (byte) i });
+    		}
+
+    		long started = System.nanoTime();
+    		runAndAssertHappy();
+    		long elapsedMillis = (System.nanoTime() - started) / 1000000;
+    		assertTrue("hedged posts took " + elapsedMillis + " ms", elapsedMillis < 2000);
+    		assertEquals(2, testRunner.getCounterValue("post.hedge.sent").longValue());
+    		assertEquals(2, testRunner.getCounterValue("post.hedge.won").longValue());
+    		assertEquals(4, fast.getRequests());
+    	} finally {
+    		fast.close();
+    	}
+    }
+
+    /**
+     * Connections are opened on schedule and the posts go out over them.
+     */
+    @Test
+    public void testWarmUp() {
+    	testRunner.setProperty(PostImageProcessor.WARM_CONNECTIONS, "3");
+    	testRunner.setProperty(PostImageProcessor.BATCH_SIZE, "3");
+    	server.latency(100, 0);
+    	for (int i = 0; i < 3; i++) {
+    		testRunner.enqueue(new byte[] { (byte) i });
+    	}
+
+    	runAndAssertHappy();
+    	assertEquals(3, server.getWarmUps());
+    	assertEquals(3, server.getRequests());
+    	assertEquals("posts reuse the warm connections", 3, server.getConnections());
+    }
+
+    @Test
+    public void testResultToContent() throws IOException {
+    	testRunner.setProperty(PostImageProcessor.RESULT_DESTINATION, PostImageProcessor.DESTINATION_CONTENT);
+    	testRunner.enqueue(new byte[] { 1 });
+    	testRunner.run();
+    	testRunner.assertAllFlowFilesTransferred(PostImageProcessor.REL_SUCCESS);
+    	MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_SUCCESS).get(0);
+    	flowFile.assertContentEquals(server.getResponse());
+    	flowFile.assertAttributeEquals("mime.type", "application/json");
+    }
+
+    /**
+     * runs one tensor post, its results are checked by the test
+     */
+	private MockFlowFile runAndAssertTensor() {
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(PostImageProcessor.REL_SUCCESS, 1);
+		MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PostImageProcessor.REL_SUCCESS).get(0);
+		flowFile.assertAttributeEquals("post.status", "OK");
+		assertNotNull(flowFile.getAttribute(PostImageProcessor.ATTRIBUTE_LATENCY));
+		return flowFile;
+	}
+
     /**
      * 
      */
@@ -87,12 +486,12 @@ public class PostImageProcessorTest {
 				System.out.println("Attribute:" + attribute + " = " + mockFile.getAttribute(attribute));
 			}
 
-//			assertEquals("giant panda", mockFile.getAttribute("label_1"));
-//			assertEquals("95.23%", mockFile.getAttribute("probability_1"));
+			assertTrue(mockFile.getAttribute("post.results").contains("giant panda"));
 			assertNotNull(mockFile.getAttribute("post.header"));
 			assertNotNull(mockFile.getAttribute("post.results"));
 			assertEquals("OK", mockFile.getAttribute("post.status"));
+			assertNotNull(mockFile.getAttribute(PostImageProcessor.ATTRIBUTE_LATENCY));
 		}
 
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.MockRecordWriter;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class PostImageRecordProcessorTest {
+
+	private TestRunner testRunner;
+	private StubModelServer server;
+	private MockRecordParser reader;
+	private File image;
+
+	@Before
+	public void init() throws IOException, InitializationException {
+		server = new StubModelServer(16);
+		image = File.createTempFile("IMG_2596", ".jpg");
+		try (InputStream in = getClass().getClassLoader().getResourceAsStream("IMG_2596.jpg")) {
+			Files.copy(in, image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		testRunner = TestRunners.newTestRunner(PostImageRecordProcessor.class);
+		reader = new MockRecordParser();
+		reader.addSchemaField("id", RecordFieldType.INT);
+		reader.addSchemaField("image", RecordFieldType.STRING);
+		testRunner.addControllerService("reader", reader);
+		testRunner.enableControllerService(reader);
+		MockRecordWriter writer = new MockRecordWriter("header", false);
+		testRunner.addControllerService("writer", writer);
+		testRunner.enableControllerService(writer);
+
+		testRunner.setProperty(PostImageRecordProcessor.RECORD_READER, "reader");
+		testRunner.setProperty(PostImageRecordProcessor.RECORD_WRITER, "writer");
+		testRunner.setProperty(PostImageProcessor.URL_NAME, server.getUrl());
+		testRunner.setProperty(PostImageProcessor.FIELD_NAME, "data");
+		testRunner.setProperty(PostImageProcessor.IMAGE_NAME, "image.jpg");
+		testRunner.setProperty(PostImageProcessor.IMAGE_TYPE, "image/jpeg");
+		testRunner.setProperty(PostImageProcessor.RESULT_PATH, "$.prediction[0][0].class");
+		testRunner.setProperty(PostImageRecordProcessor.MAX_IN_FLIGHT, "4");
+	}
+
+	@After
+	public void shutdown() {
+		server.close();
+		image.delete();
+	}
+
+	@Test
+	public void testRecords() {
+		for (int i = 0; i < 10; i++) {
+			reader.addRecord(i, image.getAbsolutePath());
+		}
+		reader.addRecord(10, new File(image.getParentFile(), "missing.jpg").getAbsolutePath());
+		testRunner.enqueue(new byte[0]);
+		testRunner.run();
+
+		testRunner.assertTransferCount(PostImageRecordProcessor.REL_ORIGINAL, 1);
+		testRunner.assertTransferCount(PostImageRecordProcessor.REL_SUCCESS, 1);
+		MockFlowFile results = testRunner.getFlowFilesForRelationship(PostImageRecordProcessor.REL_SUCCESS).get(0);
+		results.assertAttributeEquals("record.count", "11");
+		results.assertAttributeEquals(PostImageRecordProcessor.ATTRIBUTE_FAILED_COUNT, "1");
+		assertEquals(10, server.getRequests());
+
+		String[] lines = new String(results.toByteArray()).split("\n");
+		assertEquals(12, lines.length);
+		// results are written in record order whatever order the posts finish in
+		for (int i = 0; i < 10; i++) {
+			assertTrue(lines[i + 1], lines[i + 1].startsWith(i + "," + image.getAbsolutePath() + ","
+					+ StubModelServer.TOP_CLASS + ",OK,200,"));
+		}
+		assertTrue(lines[11], lines[11].contains("FileNotFoundException"));
+	}
+
+	@Test
+	public void testServerErrors() {
+		server.errors(1, 500);
+		reader.addRecord(1, image.getAbsolutePath());
+		testRunner.enqueue(new byte[0]);
+		testRunner.run();
+
+		testRunner.assertTransferCount(PostImageRecordProcessor.REL_SUCCESS, 1);
+		MockFlowFile results = testRunner.getFlowFilesForRelationship(PostImageRecordProcessor.REL_SUCCESS).get(0);
+		results.assertAttributeEquals(PostImageRecordProcessor.ATTRIBUTE_FAILED_COUNT, "1");
+		assertTrue(new String(results.toByteArray()).contains(",500,"));
+	}
+
+	@Test
+	public void testUnreadable() {
+		reader.failAfter(0);
+		testRunner.enqueue(new byte[0]);
+		testRunner.run();
+
+		testRunner.assertAllFlowFilesTransferred(PostImageRecordProcessor.REL_FAILURE, 1);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void testRequestBurst() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(10, 0, 1000, 100);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limiter.tryAcquire("imgur.com", 1 << 20));
+		}
+		assertFalse(limiter.tryAcquire("imgur.com", 1));
+		assertTrue("keys have their own buckets", limiter.tryAcquire("other.com", 1));
+		Thread.sleep(150);
+		assertTrue(limiter.tryAcquire("imgur.com", 1));
+		assertFalse(limiter.tryAcquire("imgur.com", 1));
+	}
+
+	@Test
+	public void testBytes() {
+		RateLimiter limiter = new RateLimiter(0, 1000, 1000, 100);
+		assertTrue(limiter.tryAcquire("key", 600));
+		assertFalse(limiter.tryAcquire("key", 600));
+		assertTrue(limiter.tryAcquire("key", 300));
+
+		// bigger than the whole bucket, goes when the bucket is full
+		assertTrue(new RateLimiter(0, 1000, 1000, 100).tryAcquire("key", 5000));
+	}
+
+	@Test
+	public void testPause() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(0, 1000, 1000, 100);
+		limiter.pause("key", 100);
+		assertFalse(limiter.tryAcquire("key", 1));
+		Thread.sleep(150);
+		assertTrue(limiter.tryAcquire("key", 1));
+	}
+
+	/**
+	 * Concurrent tasks share the bucket, no more than the burst gets through.
+	 */
+	@Test
+	public void testConcurrentTasks() throws InterruptedException {
+		final RateLimiter limiter = new RateLimiter(1, 0, 100000, 100);
+		final AtomicInteger allowed = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(8);
+		for (int t = 0; t < 8; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						if (limiter.tryAcquire("key", 1)) {
+							allowed.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		assertEquals(100, allowed.get());
+	}
+
+	@Test
+	public void testHost() {
+		assertEquals("api.imgur.com", RateLimiter.host("https://api.imgur.com/3/upload"));
+		assertEquals("127.0.0.1:8080", RateLimiter.host("http://127.0.0.1:8080/predict"));
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class ResultCacheTest {
+
+	/** cache server in memory, keys and values kept as the bytes the client sends */
+	static class MemoryCacheClient extends AbstractControllerService implements DistributedMapCacheClient {
+		final ConcurrentMap<String, byte[]> values = new ConcurrentHashMap<String, byte[]>();
+		volatile boolean down;
+
+		private <K> String key(K key, Serializer<K> serializer) throws IOException {
+			if (down) {
+				throw new IOException("Connection refused");
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			serializer.serialize(key, out);
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public <K, V> boolean putIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer)
+				throws IOException {
+			if (containsKey(key, keySerializer)) {
+				return false;
+			}
+			put(key, value, keySerializer, valueSerializer);
+			return true;
+		}
+
+		@Override
+		public <K, V> V getAndPutIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+										  Deserializer<V> valueDeserializer) throws IOException {
+			V existing = get(key, keySerializer, valueDeserializer);
+			if (existing == null) {
+				put(key, value, keySerializer, valueSerializer);
+			}
+			return existing;
+		}
+
+		@Override
+		public <K> boolean containsKey(K key, Serializer<K> keySerializer) throws IOException {
+			return values.containsKey(key(key, keySerializer));
+		}
+
+		@Override
+		public <K, V> void put(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer)
+				throws IOException {
+			String serializedKey = key(key, keySerializer);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			valueSerializer.serialize(value, out);
+			values.put(serializedKey, out.toByteArray());
+		}
+
+		@Override
+		public <K, V> V get(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+			return valueDeserializer.deserialize(values.get(key(key, keySerializer)));
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public <K> boolean remove(K key, Serializer<K> serializer) throws IOException {
+			return values.remove(key(key, serializer)) != null;
+		}
+
+		@Override
+		public long removeByPattern(String regex) {
+			return 0;
+		}
+	}
+
+	@Test
+	public void testSharedRoundTrip() throws IOException {
+		MemoryCacheClient client = new MemoryCacheClient();
+		HTTPPostResults results = new HTTPPostResults("Content-Type: application/json", "OK", "giant panda", 200);
+		results.setContentType("application/json");
+		results.setBody("{\"class\":\"giant panda\"}".getBytes(StandardCharsets.UTF_8));
+		results.setInferenceHeaderLength(12);
+		new ResultCache(0, 60000, client).put("key", results);
+
+		HTTPPostResults cached = new ResultCache(0, 60000, client).get("key");
+		assertEquals(results, cached);
+		assertEquals(200, cached.getStatusCode());
+		assertEquals("application/json", cached.getContentType());
+		assertEquals(12, cached.getInferenceHeaderLength());
+		assertNull(cached.getRetryAfter());
+		assertArrayEquals(results.getBody(), cached.getBody());
+	}
+
+	@Test
+	public void testForeignEntriesAreMisses() throws IOException {
+		MemoryCacheClient client = new MemoryCacheClient();
+		ResultCache cache = new ResultCache(0, 60000, client);
+		// a serialized object is never instantiated
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+			out.writeObject(new HTTPPostResults("", "OK", "{}", 200));
+		}
+		client.values.put("serialized", serialized.toByteArray());
+		assertNull(cache.get("serialized"));
+
+		cache.put("truncated", new HTTPPostResults("", "OK", "{}", 200));
+		byte[] entry = client.values.get("truncated");
+		client.values.put("truncated", Arrays.copyOf(entry, entry.length - 3));
+		assertNull(new ResultCache(0, 60000, client).get("truncated"));
+
+		// a length bigger than the entry is not allocated
+		entry[13] = 0x7f;
+		client.values.put("oversized", entry);
+		assertNull(new ResultCache(0, 60000, client).get("oversized"));
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.NoHttpResponseException;
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class RetryPolicyTest {
+
+	private static HTTPPostResults status(int statusCode) {
+		HTTPPostResults results = new HTTPPostResults();
+		results.setStatusCode(statusCode);
+		return results;
+	}
+
+	@Test
+	public void testRetryable() {
+		assertTrue(RetryPolicy.isRetryable(null, new SocketTimeoutException()));
+		assertTrue(RetryPolicy.isRetryable(null, new ConnectException("Connection refused")));
+		assertTrue(RetryPolicy.isRetryable(null, new NoHttpResponseException("localhost failed to respond")));
+		assertTrue(RetryPolicy.isRetryable(null, new ConnectionClosedException("Connection closed")));
+		assertTrue(RetryPolicy.isRetryable(null, new ExecutionException(new ConnectException())));
+		assertTrue(RetryPolicy.isRetryable(null, new IOException("Token request failed", new ConnectException())));
+		assertFalse(RetryPolicy.isRetryable(null, new IllegalStateException()));
+		// a bad image or response fails the same way every time
+		assertFalse(RetryPolicy.isRetryable(null, new IOException("Unknown image format")));
+		assertFalse(RetryPolicy.isRetryable(null, new EOFException("Stream ended early")));
+		assertFalse(RetryPolicy.isRetryable(null, new IOException("Output scores is cut short")));
+		assertTrue(RetryPolicy.isRetryable(status(429), null));
+		assertTrue(RetryPolicy.isRetryable(status(503), null));
+		assertFalse(RetryPolicy.isRetryable(status(500), null));
+		assertFalse(RetryPolicy.isRetryable(status(400), null));
+	}
+
+	@Test
+	public void testBackoff() {
+		RetryPolicy policy = new RetryPolicy(5, 1000, 8000, 0.2);
+		for (int retries = 0; retries < 6; retries++) {
+			long cap = Math.min(8000, 1000L << retries);
+			long backoff = policy.backoff(retries, null);
+			assertTrue(backoff >= cap / 2 && backoff <= cap);
+		}
+		// shifts far past the cap still back off the most, not overflow
+		for (int retries : new int[] { 53, 54, 63, 64, 100, Integer.MAX_VALUE }) {
+			long backoff = policy.backoff(retries, null);
+			assertTrue(backoff >= 4000 && backoff <= 8000);
+		}
+		RetryPolicy large = new RetryPolicy(5, Long.MAX_VALUE / 4, Long.MAX_VALUE, 0.2);
+		assertTrue(large.backoff(1, null) >= Long.MAX_VALUE / 4);
+		assertTrue(large.backoff(2, null) >= Long.MAX_VALUE / 4);
+		HTTPPostResults results = status(503);
+		results.setRetryAfter("5");
+		assertEquals(5000, policy.backoff(0, results));
+		results.setRetryAfter("120");
+		assertEquals(8000, policy.backoff(0, results));
+	}
+
+	@Test
+	public void testBudget() throws IOException {
+		RetryPolicy policy = new RetryPolicy(3, 1000, 8000, 0.2);
+		assertFalse(policy.tryRetry(3));
+		int allowed = 0;
+		while (policy.tryRetry(0) && allowed < 1000) {
+			allowed++;
+		}
+		// the saved up balance, then only what the posts earn
+		assertTrue(allowed >= 100 && allowed < 110);
+		for (int i = 0; i < 10; i++) {
+			policy.posted();
+		}
+		assertTrue(policy.tryRetry(0));
+	}
+}
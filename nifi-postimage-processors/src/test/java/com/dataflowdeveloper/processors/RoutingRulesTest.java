@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author tspann
+ *
+ */
+public class RoutingRulesTest {
+
+	private static final byte[] PREDICTIONS = ("{\"prediction\":[[{\"class\":\"giant panda, panda\",\"probability\":0.82},"
+			+ "{\"class\":\"lesser panda\",\"probability\":\"0.1\"},{\"class\":\"cat\",\"probability\":0.05}]]}")
+			.getBytes(StandardCharsets.UTF_8);
+
+	private static RoutingRules rules(String... nameAndRule) {
+		Map<String, String> rules = new LinkedHashMap<String, String>();
+		for (int i = 0; i < nameAndRule.length; i += 2) {
+			rules.put(nameAndRule[i], nameAndRule[i + 1]);
+		}
+		return new RoutingRules(rules, "$.prediction[0]", "class", "probability");
+	}
+
+	@Test
+	public void testLabelRules() {
+		RoutingRules rules = rules(
+				"panda", "\"giant panda, panda\" >= 0.8",
+				"certain", "\"giant panda, panda\" > 0.9",
+				"lesser", "lesser panda >= 0.1",
+				"cat", "cat > 0.05");
+		assertEquals(Arrays.asList("panda", "lesser"), rules.evaluate(PREDICTIONS));
+	}
+
+	@Test
+	public void testTopRules() {
+		RoutingRules rules = rules(
+				"pandas", "top1 in \"giant panda, panda\", lesser panda",
+				"confident", "top1 in cat, \"giant panda, panda\" >= 0.8",
+				"cats", "top1 in cat",
+				"sure", "top1 in \"giant panda, panda\" >= 0.9");
+		assertEquals(Arrays.asList("pandas", "confident"), rules.evaluate(PREDICTIONS));
+	}
+
+	@Test
+	public void testLabelToScore() {
+		RoutingRules rules = new RoutingRules(new LinkedHashMap<String, String>() {
+			{
+				put("dog", "dog >= 0.5");
+				put("top", "top1 in dog");
+			}
+		}, "$.scores", "class", "probability");
+		assertEquals(Arrays.asList("dog", "top"),
+				rules.evaluate("{\"scores\":{\"cat\":0.2,\"dog\":0.7}}".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testNoPredictions() {
+		RoutingRules rules = rules("cat", "top1 in cat");
+		assertTrue(rules.evaluate("{\"error\":\"busy\"}".getBytes(StandardCharsets.UTF_8)).isEmpty());
+		assertTrue(rules.evaluate("not json".getBytes(StandardCharsets.UTF_8)).isEmpty());
+		assertTrue(rules.evaluate(null).isEmpty());
+	}
+
+	@Test
+	public void testInvalidRules() {
+		for (String rule : new String[] { "", "cat", "cat >= high", "cat, dog >= 0.5", "\"cat >= 0.5", "top1 in",
+				"\"cat\" dog >= 0.5" }) {
+			try {
+				RoutingRules.validate(rule);
+				throw new AssertionError(rule + " should not parse");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
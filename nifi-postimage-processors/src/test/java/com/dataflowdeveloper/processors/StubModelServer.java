@@ -0,0 +1,428 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In process stand in for a model server's /predict, answering like the MXNet Model Server
+ * squeezenet example.  Latency follows a log normal distribution around the median, a share of
+ * posts can fail, and the number of predictions sets the response size.
+ *
+ * /v2/models/squeezenet/infer answers KServe V2 binary requests with a binary FP32 output of
+ * every ImageNet class, {@link #TOP_INDEX} scoring highest.
+ *
+ * /oauth2/token grants bearer tokens to {@link #CLIENT_ID} with a client credentials grant.
+ *
+ * @author tspann
+ *
+ */
+public class StubModelServer implements Closeable {
+
+	/** first prediction of every successful response */
+	public static final String TOP_CLASS = "n02510455 giant panda, panda, panda bear, coon bear, Ailuropoda melanoleuca";
+
+	/** index of the highest score in a KServe V2 output */
+	public static final int TOP_INDEX = 388;
+
+	/** client the token endpoint grants tokens to */
+	public static final String CLIENT_ID = "nifi";
+
+	/** secret of the client */
+	public static final String CLIENT_SECRET = "s3cret/+";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	private volatile long medianLatencyMillis;
+	private volatile double latencySigma;
+	private volatile double errorRate;
+	private volatile int errorStatus = 503;
+	private volatile byte[] response;
+	private volatile String inferenceHeader;
+	private final AtomicInteger tensorBytes = new AtomicInteger();
+	private final AtomicInteger tokenRequests = new AtomicInteger();
+	private volatile long tokenLifetimeSeconds = 3600;
+	private volatile long tokenLatencyMillis;
+	private volatile String authorization;
+	private final AtomicInteger warmUps = new AtomicInteger();
+	private final Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	private long[] latencies = new long[1024];
+	private int latencyCount;
+
+	/**
+	 * @param threads
+	 *            posts the server handles at once
+	 * @throws IOException
+	 *            if no port is free
+	 */
+	public StubModelServer(int threads) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.server.setExecutor(executor);
+		this.server.createContext("/predict", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				predict(exchange);
+			}
+		});
+		this.server.createContext("/v2/models/squeezenet/infer", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				infer(exchange);
+			}
+		});
+		this.server.createContext("/oauth2/token", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				token(exchange);
+			}
+		});
+		predictions(5);
+		this.server.start();
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/predict";
+	}
+
+	/**
+	 * @return URL of the KServe V2 infer endpoint
+	 */
+	public String getInferUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/v2/models/squeezenet/infer";
+	}
+
+	/**
+	 * @return URL of the OAuth2 token endpoint
+	 */
+	public String getTokenUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/oauth2/token";
+	}
+
+	/**
+	 * @param lifetimeSeconds
+	 *            expires_in of the tokens granted
+	 * @param latencyMillis
+	 *            time to grant a token
+	 * @return this
+	 */
+	public StubModelServer tokens(long lifetimeSeconds, long latencyMillis) {
+		this.tokenLifetimeSeconds = lifetimeSeconds;
+		this.tokenLatencyMillis = latencyMillis;
+		return this;
+	}
+
+	/**
+	 * @return tokens granted so far, the last one is Bearer token-count
+	 */
+	public int getTokenRequests() {
+		return tokenRequests.get();
+	}
+
+	/**
+	 * @return Authorization header of the last post to /predict
+	 */
+	public String getAuthorization() {
+		return authorization;
+	}
+
+	/**
+	 * @param medianMillis
+	 *            median time to answer
+	 * @param sigma
+	 *            spread of the log normal, 0 always takes the median
+	 * @return this
+	 */
+	public StubModelServer latency(long medianMillis, double sigma) {
+		this.medianLatencyMillis = medianMillis;
+		this.latencySigma = sigma;
+		return this;
+	}
+
+	/**
+	 * @param rate
+	 *            share of posts that fail, from 0 to 1
+	 * @param status
+	 *            status of a failed post
+	 * @return this
+	 */
+	public StubModelServer errors(double rate, int status) {
+		this.errorRate = rate;
+		this.errorStatus = status;
+		return this;
+	}
+
+	/**
+	 * @param count
+	 *            predictions in each response, 1000 is every ImageNet class
+	 * @return this
+	 */
+	public StubModelServer predictions(int count) {
+		StringBuilder json = new StringBuilder("{\"prediction\":[[");
+		Random random = new Random(count);
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"class\":\"").append(i == 0 ? TOP_CLASS : "n0" + (1440764 + i) + " class " + i)
+					.append("\",\"probability\":").append(i == 0 ? 0.95 : random.nextDouble() / count).append('}');
+		}
+		this.response = json.append("]]}").toString().getBytes(StandardCharsets.UTF_8);
+		return this;
+	}
+
+	/**
+	 * @return body of a successful response
+	 */
+	public byte[] getResponse() {
+		return response;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return HEAD requests that opened a connection ahead of the posts
+	 */
+	public int getWarmUps() {
+		return warmUps.get();
+	}
+
+	/**
+	 * @return connections the predict endpoint has seen, by client port
+	 */
+	public int getConnections() {
+		return clientPorts.size();
+	}
+
+	/**
+	 * @return JSON header of the last KServe V2 request
+	 */
+	public String getInferenceHeader() {
+		return inferenceHeader;
+	}
+
+	/**
+	 * @return bytes after the JSON header of the last KServe V2 request
+	 */
+	public int getTensorBytes() {
+		return tensorBytes.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            like 99.9
+	 * @return milliseconds from receiving a post to answering it, at the percentile
+	 */
+	public synchronized double latencyMillis(double percentile) {
+		if (latencyCount == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(latencies, latencyCount);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * latencyCount) - 1;
+		return sorted[Math.max(0, Math.min(latencyCount - 1, index))] / 1e6;
+	}
+
+	/**
+	 * forgets the counts and latencies so far
+	 */
+	public synchronized void reset() {
+		requests.set(0);
+		bytesReceived.set(0);
+		latencyCount = 0;
+	}
+
+	private synchronized void record(long latencyNanos) {
+		if (latencyCount == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[latencyCount++] = latencyNanos;
+	}
+
+	private void predict(HttpExchange exchange) throws IOException {
+		clientPorts.add(exchange.getRemoteAddress().getPort());
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			warmUps.incrementAndGet();
+			// the JDK server closes a connection whose request was not read to the end
+			exchange.getRequestBody().read();
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+			return;
+		}
+		long started = System.nanoTime();
+		try {
+			long received = 0;
+			byte[] buffer = new byte[16384];
+			try (InputStream in = exchange.getRequestBody()) {
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					received += read;
+				}
+			}
+			requests.incrementAndGet();
+			bytesReceived.addAndGet(received);
+			authorization = exchange.getRequestHeaders().getFirst("Authorization");
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long sleep = (long) (medianLatencyMillis * Math.exp(latencySigma * random.nextGaussian()));
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			boolean failed = random.nextDouble() < errorRate;
+			byte[] body = failed ? "{\"code\":503,\"message\":\"Model busy\"}".getBytes(StandardCharsets.UTF_8) : response;
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			if (failed && errorStatus == 503) {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+			}
+			exchange.sendResponseHeaders(failed ? errorStatus : 200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+			record(System.nanoTime() - started);
+		}
+	}
+
+	private void infer(HttpExchange exchange) throws IOException {
+		try {
+			byte[] request;
+			try (InputStream in = exchange.getRequestBody()) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[16384];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+				request = out.toByteArray();
+			}
+			requests.incrementAndGet();
+			bytesReceived.addAndGet(request.length);
+			String length = exchange.getRequestHeaders().getFirst(KServeV2Codec.HEADER_LENGTH);
+			if (length == null) {
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+			int headerLength = Integer.parseInt(length);
+			inferenceHeader = new String(request, 0, headerLength, StandardCharsets.UTF_8);
+			tensorBytes.set(request.length - headerLength);
+
+			int classes = 1000;
+			byte[] header = ("{\"model_name\":\"squeezenet\",\"model_version\":\"1\",\"outputs\":[{\"name\":\"OUTPUT__0\","
+					+ "\"datatype\":\"FP32\",\"shape\":[1," + classes + "],\"parameters\":{\"binary_data_size\":"
+					+ classes * 4 + "}}]}").getBytes(StandardCharsets.UTF_8);
+			ByteBuffer scores = ByteBuffer.allocate(classes * 4).order(ByteOrder.LITTLE_ENDIAN);
+			Random random = new Random(classes);
+			for (int i = 0; i < classes; i++) {
+				scores.putFloat(i == TOP_INDEX ? 0.95f : random.nextFloat() / classes);
+			}
+			exchange.getResponseHeaders().set("Content-Type", KServeV2Codec.CONTENT_TYPE);
+			exchange.getResponseHeaders().set(KServeV2Codec.HEADER_LENGTH, String.valueOf(header.length));
+			exchange.sendResponseHeaders(200, header.length + scores.capacity());
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(header);
+				out.write(scores.array());
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void token(HttpExchange exchange) throws IOException {
+		try {
+			byte[] form;
+			try (InputStream in = exchange.getRequestBody()) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[1024];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+				form = out.toByteArray();
+			}
+			String client = "Basic " + Base64.getEncoder().encodeToString((URLEncoder.encode(CLIENT_ID, "UTF-8") + ":"
+					+ URLEncoder.encode(CLIENT_SECRET, "UTF-8")).getBytes(StandardCharsets.UTF_8));
+			if (!client.equals(exchange.getRequestHeaders().getFirst("Authorization"))
+					|| !new String(form, StandardCharsets.UTF_8).startsWith("grant_type=client_credentials")) {
+				exchange.sendResponseHeaders(401, -1);
+				return;
+			}
+			if (tokenLatencyMillis > 0) {
+				try {
+					Thread.sleep(tokenLatencyMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			byte[] body = ("{\"access_token\":\"token-" + tokenRequests.incrementAndGet() + "\",\"token_type\":\"bearer\","
+					+ "\"expires_in\":" + tokenLifetimeSeconds + "}").getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}